@@ -0,0 +1,520 @@
+package edu.sysu.ncps.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mura.servlet.LatencyHistogram;
+import org.mura.servlet.Logger;
+import org.mura.servlet.Metrics;
+
+/**
+ * 批量写入(组提交)
+ * <p>
+ * 请求线程调用<b>submit()</b>将值对象放入队列并立即得到一个CompletableFuture, 写入线程从队列中取出一批,
+ * 在同一个事务中以JDBC批处理执行后提交, 提交成功后才完成这一批中每个请求的Future<br>
+ * 一批在达到<b>maxBatch</b>条, 或第一条入队后经过<b>maxDelay</b>时写入: 负载低时每条最多多等待maxDelay,
+ * 负载高时一次事务提交(一次日志刷盘)分摊到多条记录上
+ * <p>
+ * 批处理失败时(如某一条违反约束)回滚, 然后逐条在各自的事务中重试, 只有出错的那一条失败<br>
+ * 写入的Query返回生成的主键时(<b>Query.hasGeneratedKeys()</b>), 提交后先对每条记录调用<b>generatedKey()</b>,
+ * 再调用<b>committed()</b><br>
+ * 队列已满或已关闭时, submit()返回的Future立即以RejectedExecutionException失败
+ *
+ * @author mura
+ *
+ * @param <VO>
+ *            写入的值对象类型
+ */
+public class BatchWriter<VO extends ValueObject> {
+
+	/**
+	 * 写入线程空闲时检查是否关闭的间隔(毫秒)
+	 */
+	private static final long POLL_INTERVAL = 100;
+
+	/**
+	 * 关闭时等待队列中的记录写入的最长时间(毫秒)
+	 */
+	private static final long CLOSE_TIMEOUT = 10000;
+
+	/**
+	 * 统计输出的分位数
+	 */
+	private static final double[] QUANTILES = { 0.5, 0.99 };
+
+	private static final Logger LOG = Logger.get("BatchWriter");
+
+	/**
+	 * Binder: 将值对象转换为写入SQL的参数
+	 *
+	 * @author mura
+	 */
+	public static interface Binder<VO> {
+
+		/**
+		 * @param vo
+		 *            值对象
+		 * @return 参数, 按'?'的顺序
+		 */
+		Object[] bind(VO vo);
+	}
+
+	/**
+	 * 名称(用于线程名, 日志和统计)
+	 */
+	private final String name;
+
+	private final DAO dao;
+
+	/**
+	 * 写入的SQL
+	 */
+	private final Query<VO> query;
+
+	private final Binder<VO> binder;
+
+	/**
+	 * 每批最多的记录数
+	 */
+	private final int maxBatch;
+
+	/**
+	 * 第一条入队后最多等待的时间(纳秒)
+	 */
+	private final long maxDelay;
+
+	/**
+	 * 等待写入的记录
+	 */
+	private final BlockingQueue<Pending<VO>> queue;
+
+	/**
+	 * 写入线程
+	 */
+	private final Thread thread;
+
+	/**
+	 * 统计数据源
+	 */
+	private final Metrics.Source metricsSource;
+
+	/**
+	 * 每批的记录数
+	 */
+	private final LatencyHistogram batchSizes = new LatencyHistogram();
+
+	/**
+	 * 每批从借出连接到提交完成的时间(纳秒)
+	 */
+	private final LatencyHistogram flushTimes = new LatencyHistogram();
+
+	/**
+	 * 从入队到提交完成的时间(纳秒)
+	 */
+	private final LatencyHistogram commitLatency = new LatencyHistogram();
+
+	private final LongAdder committed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder retried = new LongAdder();
+
+	/**
+	 * 是否已关闭
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * 构造方法, 创建后写入线程立即启动
+	 *
+	 * @param name
+	 *            名称(用于线程名, 日志和统计)
+	 * @param dao
+	 *            连接池
+	 * @param query
+	 *            写入的SQL(INSERT等)
+	 * @param binder
+	 *            值对象到参数的转换
+	 * @param maxBatch
+	 *            每批最多的记录数
+	 * @param maxDelay
+	 *            第一条入队后最多等待的时间(毫秒)
+	 * @param capacity
+	 *            队列容量, 超出时拒绝
+	 */
+	public BatchWriter(String name, DAO dao, Query<VO> query, Binder<VO> binder, int maxBatch, long maxDelay,
+			int capacity) {
+		if (maxBatch <= 0 || maxDelay < 0 || capacity < maxBatch) {
+			throw new IllegalArgumentException(
+					"Invalid batch settings: batch " + maxBatch + ", delay " + maxDelay + ", capacity " + capacity);
+		}
+		this.name = name;
+		this.dao = dao;
+		this.query = query;
+		this.binder = binder;
+		this.maxBatch = maxBatch;
+		this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+		this.queue = new ArrayBlockingQueue<Pending<VO>>(capacity);
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runWriter();
+			}
+		}, "mura-batch-writer-" + name);
+		this.thread.setDaemon(true);
+		this.metricsSource = new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				writeBatchMetrics(sb);
+			}
+		};
+		thread.start();
+		Metrics.register(metricsSource);
+	}
+
+	/**
+	 * 提交一条记录
+	 *
+	 * @param vo
+	 *            值对象
+	 * @return 事务提交后完成的Future; 写入失败时以对应的异常失败
+	 */
+	public CompletableFuture<Void> submit(VO vo) {
+		Pending<VO> pending = new Pending<VO>(vo);
+		if (closed) {
+			rejected.increment();
+			pending.future.completeExceptionally(new RejectedExecutionException("Batch writer " + name + " is closed"));
+		} else if (!queue.offer(pending)) {
+			rejected.increment();
+			pending.future.completeExceptionally(new RejectedExecutionException("Batch writer " + name + " is full"));
+		} else if (closed && queue.remove(pending)) {
+			// 入队时正在关闭: 写入线程和close()可能都已不再读取队列, 由此处拒绝;
+			// 已被取出时由写入线程写入或由close()拒绝
+			rejected.increment();
+			pending.future.completeExceptionally(new RejectedExecutionException("Batch writer " + name + " is closed"));
+		}
+		return pending.future;
+	}
+
+	/**
+	 * 当前等待写入的记录数
+	 */
+	public int pending() {
+		return queue.size();
+	}
+
+	/**
+	 * 关闭: 不再接受新的记录, 等待队列中已有的记录写入(最多CLOSE_TIMEOUT), 之后队列中剩余的记录以
+	 * RejectedExecutionException失败
+	 */
+	public void close() {
+		closed = true;
+		try {
+			thread.join(CLOSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Metrics.unregister(metricsSource);
+		// 超时未写入的记录
+		Pending<VO> pending;
+		while ((pending = queue.poll()) != null) {
+			rejected.increment();
+			pending.future.completeExceptionally(new RejectedExecutionException("Batch writer " + name + " is closed"));
+		}
+	}
+
+	/**
+	 * 写入线程: 收集一批, 写入, 重复; 关闭后写完队列中剩余的记录再退出
+	 */
+	private void runWriter() {
+		List<Pending<VO>> batch = new ArrayList<Pending<VO>>(maxBatch);
+		while (true) {
+			try {
+				Pending<VO> first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					if (closed && queue.isEmpty()) {
+						return;
+					}
+					continue;
+				}
+				batch.add(first);
+				collect(batch, first.enqueued + maxDelay);
+				flush(batch);
+			} catch (InterruptedException e) {
+				// 被中断时视为关闭, 继续写完剩余的记录
+				closed = true;
+			} catch (RuntimeException | Error e) {
+				// 写入线程不能退出, 这一批以此异常失败
+				LOG.error("batch flush failed", e, "writer", name, "size", batch.size());
+				fail(batch, e);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * 收集一批: 先取出队列中已有的记录, 不足maxBatch时等待到截止时间
+	 *
+	 * @param batch
+	 *            已有第一条记录的批
+	 * @param deadline
+	 *            截止时间(System.nanoTime())
+	 * @throws InterruptedException
+	 */
+	private void collect(List<Pending<VO>> batch, long deadline) throws InterruptedException {
+		while (batch.size() < maxBatch) {
+			if (queue.drainTo(batch, maxBatch - batch.size()) > 0) {
+				continue;
+			}
+			long wait = deadline - System.nanoTime();
+			if (wait <= 0 || closed) {
+				return;
+			}
+			Pending<VO> next = queue.poll(wait, TimeUnit.NANOSECONDS);
+			if (next == null) {
+				return;
+			}
+			batch.add(next);
+		}
+	}
+
+	/**
+	 * 在一个事务中写入一批记录
+	 */
+	private void flush(List<Pending<VO>> batch) {
+		long start = System.nanoTime();
+		List<Pending<VO>> bound = new ArrayList<Pending<VO>>(batch.size());
+		List<Object[]> paramsList = new ArrayList<Object[]>(batch.size());
+		for (Pending<VO> pending : batch) {
+			try {
+				paramsList.add(binder.bind(pending.vo));
+				bound.add(pending);
+			} catch (RuntimeException e) {
+				failed.increment();
+				pending.future.completeExceptionally(e);
+			}
+		}
+		if (bound.isEmpty()) {
+			return;
+		}
+		batchSizes.record(bound.size());
+		long[] keys = query.hasGeneratedKeys() ? new long[bound.size()] : null;
+		try (Connection connection = dao.getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				query.executeBatch(connection, paramsList, keys);
+				connection.commit();
+			} catch (SQLException e) {
+				rollback(connection);
+				if (bound.size() == 1 || connection.isClosed() || isFatal(e)) {
+					throw e;
+				}
+				LOG.warn("batch failed, retrying one by one", "writer", name, "size", bound.size(), "error",
+						e.getMessage());
+				retry(connection, bound, paramsList);
+				return;
+			}
+			complete(bound, keys);
+		} catch (SQLException e) {
+			fail(bound, e);
+		} finally {
+			flushTimes.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * 批处理失败后, 逐条在各自的事务中写入
+	 */
+	private void retry(Connection connection, List<Pending<VO>> bound, List<Object[]> paramsList) {
+		long[] key = query.hasGeneratedKeys() ? new long[1] : null;
+		for (int i = 0; i < bound.size(); i++) {
+			Pending<VO> pending = bound.get(i);
+			retried.increment();
+			try {
+				query.executeBatch(connection, paramsList.subList(i, i + 1), key);
+				connection.commit();
+				committed.increment();
+				commitLatency.record(System.nanoTime() - pending.enqueued);
+				if (key != null) {
+					notifyGeneratedKey(pending.vo, key[0]);
+				}
+				notifyCommitted(pending.vo);
+				pending.future.complete(null);
+			} catch (SQLException e) {
+				rollback(connection);
+				failed.increment();
+				pending.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * 提交成功, 完成这一批的Future
+	 *
+	 * @param keys
+	 *            每条记录生成的主键, 不返回主键时为<b>null</b>
+	 */
+	private void complete(List<Pending<VO>> batch, long[] keys) {
+		long now = System.nanoTime();
+		for (int i = 0; i < batch.size(); i++) {
+			Pending<VO> pending = batch.get(i);
+			committed.increment();
+			commitLatency.record(now - pending.enqueued);
+			if (keys != null) {
+				notifyGeneratedKey(pending.vo, keys[i]);
+			}
+			notifyCommitted(pending.vo);
+			pending.future.complete(null);
+		}
+	}
+
+	/**
+	 * 一条记录提交后, 在<b>committed()</b>之前调用, 传入生成的主键(只在Query返回生成的主键时), 默认不做任何事
+	 * <p>
+	 * 子类可以重写此方法, 将主键写入值对象
+	 *
+	 * @param vo
+	 *            已提交的值对象
+	 * @param key
+	 *            生成的主键
+	 */
+	protected void generatedKey(VO vo, long key) {
+	}
+
+	/**
+	 * 一条记录提交后调用(在写入线程中, 完成Future之前), 默认不做任何事
+	 * <p>
+	 * 子类可以重写此方法, 维护内存中与数据库同步的数据(如索引); 应很快返回, 抛出的异常只记录日志
+	 *
+	 * @param vo
+	 *            已提交的值对象
+	 */
+	protected void committed(VO vo) {
+	}
+
+	/**
+	 * 调用<b>committed</b>, 异常不影响这条记录的结果
+	 */
+	private void notifyCommitted(VO vo) {
+		try {
+			committed(vo);
+		} catch (RuntimeException e) {
+			LOG.error("commit listener failed", e, "writer", name);
+		}
+	}
+
+	/**
+	 * 调用<b>generatedKey</b>, 异常不影响这条记录的结果
+	 */
+	private void notifyGeneratedKey(VO vo, long key) {
+		try {
+			generatedKey(vo, key);
+		} catch (RuntimeException e) {
+			LOG.error("generated key listener failed", e, "writer", name);
+		}
+	}
+
+	/**
+	 * 以异常完成这一批中尚未完成的Future
+	 */
+	private void fail(List<Pending<VO>> batch, Throwable e) {
+		for (Pending<VO> pending : batch) {
+			if (pending.future.completeExceptionally(e)) {
+				failed.increment();
+			}
+		}
+	}
+
+	/**
+	 * 回滚, 忽略错误(连接归还时会再次回滚)
+	 */
+	private static void rollback(Connection connection) {
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			// 无需处理
+		}
+	}
+
+	/**
+	 * 是否是连接级别的错误(SQLState以08开头), 此时逐条重试没有意义
+	 */
+	private static boolean isFatal(SQLException e) {
+		String state = e.getSQLState();
+		return state != null && state.startsWith("08");
+	}
+
+	/**
+	 * 以Prometheus文本格式输出统计数据
+	 */
+	private void writeBatchMetrics(StringBuilder sb) {
+		String writer = "writer=\"" + name + "\"";
+		sb.append("# HELP mura_batch_writer_queue Records waiting to be written.\n");
+		sb.append("# TYPE mura_batch_writer_queue gauge\n");
+		sb.append("mura_batch_writer_queue{").append(writer).append("} ").append(queue.size()).append('\n');
+		sb.append("# HELP mura_batch_writer_records_total Records by result.\n");
+		sb.append("# TYPE mura_batch_writer_records_total counter\n");
+		appendRecords(sb, writer, "committed", committed.sum());
+		appendRecords(sb, writer, "failed", failed.sum());
+		appendRecords(sb, writer, "rejected", rejected.sum());
+		appendRecords(sb, writer, "retried", retried.sum());
+		appendSummary(sb, writer, "mura_batch_writer_batch_size", "Records per batch.", batchSizes, 1);
+		appendSummary(sb, writer, "mura_batch_writer_flush_seconds", "Time to write and commit one batch.",
+				flushTimes, 1e9);
+		appendSummary(sb, writer, "mura_batch_writer_commit_seconds", "Time from submit to commit.", commitLatency,
+				1e9);
+	}
+
+	/**
+	 * 输出一个记录数
+	 */
+	private static void appendRecords(StringBuilder sb, String writer, String result, long value) {
+		sb.append("mura_batch_writer_records_total{").append(writer).append(",result=\"").append(result)
+				.append("\"} ").append(value).append('\n');
+	}
+
+	/**
+	 * 输出一个summary
+	 */
+	private static void appendSummary(StringBuilder sb, String writer, String metric, String help,
+			LatencyHistogram histogram, double scale) {
+		sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(metric).append(" summary\n");
+		long[] values = histogram.quantiles(QUANTILES);
+		for (int i = 0; i < QUANTILES.length; i++) {
+			sb.append(metric).append('{').append(writer).append(",quantile=\"").append(QUANTILES[i]).append("\"} ")
+					.append(values[i] / scale).append('\n');
+		}
+		sb.append(metric).append("_sum{").append(writer).append("} ").append(histogram.sum() / scale).append('\n');
+		sb.append(metric).append("_count{").append(writer).append("} ").append(histogram.count()).append('\n');
+	}
+
+	/**
+	 * 一条等待写入的记录
+	 *
+	 * @author mura
+	 */
+	private static class Pending<VO> {
+
+		private final VO vo;
+
+		private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		/**
+		 * 入队时间(System.nanoTime())
+		 */
+		private final long enqueued = System.nanoTime();
+
+		public Pending(VO vo) {
+			this.vo = vo;
+		}
+	}
+}
@@ -0,0 +1,667 @@
+package edu.sysu.ncps.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.mura.servlet.Logger;
+
+/**
+ * 噪声投诉的数据库操作
+ * <p>
+ * complain表:
+ *
+ * <pre>
+ * CREATE TABLE complain (
+ * 	id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY,
+ * 	comment TEXT,
+ * 	date VARCHAR(32),
+ * 	intensity FLOAT,
+ * 	address VARCHAR(255),
+ * 	latitude FLOAT,
+ * 	longitude FLOAT,
+ * 	image_hash CHAR(64),
+ * 	sfa_type VARCHAR(32),
+ * 	noise_type VARCHAR(32),
+ * 	created TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+ * 	journal_key CHAR(36),
+ * 	INDEX complain_created (created, id),
+ * 	UNIQUE INDEX complain_journal_key (journal_key)
+ * ) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4;
+ * </pre>
+ *
+ * 已有的表: <b>ALTER TABLE complain ADD journal_key CHAR(36), ADD UNIQUE INDEX complain_journal_key (journal_key);</b>
+ * <p>
+ *
+ * 图片不保存在数据库中, 只保存ImageStore中的哈希值<br>
+ * 投诉的写入通过<b>getWriter()</b>的批量写入进行, 多个请求的投诉在同一个事务中提交<br>
+ * 也可以先写入本地日志(<b>getJournalWriter()</b>), 由后台写入数据库, 数据库慢或不可用时请求不受影响<br>
+ * 本地日志中的每条投诉有唯一的<b>journal_key</b>, 写入前去掉数据库中已有的(崩溃后再次写入的), 同一条投诉只插入一次,
+ * 也只加入索引, 热力图和汇总一次; 直接写入的投诉journal_key为NULL
+ * <p>
+ * 本地日志的目录和刷盘策略可以用系统属性<b>ncps.journal.dir</b>, <b>ncps.journal.sync</b>(always, interval,
+ * never)设置
+ * <p>
+ * 有经纬度的投诉保存在内存中的经纬度索引(<b>getIndex()</b>), 并累计到强度的热力图(<b>getHeatmap()</b>)中:
+ * 启动时从数据库读取(<b>loadIndex()</b>), 之后每条投诉在批量写入提交后加入<br>
+ * 每条投诉写入后也累计到按类型分组的时间序列汇总(ComplainRollup)中, 汇总保存在快照文件中, 启动时不从数据库读取
+ * <p>
+ * 按写入时间导出投诉(<b>export()</b>)时逐行读取, 不保存全部结果<br>
+ * 分页读取(<b>list()</b>)使用上一页最后一条的(写入时间, id)定位, 不使用OFFSET, 每一页的代价相同
+ *
+ * @author mura
+ */
+public final class ComplainDAO {
+
+	private static final Logger LOG = Logger.get("ComplainDAO");
+
+	/**
+	 * 每批最多的记录数
+	 */
+	private static final int MAX_BATCH = 64;
+
+	/**
+	 * 第一条入队后最多等待的时间(毫秒)
+	 */
+	private static final long MAX_DELAY = 5;
+
+	/**
+	 * 等待写入的最多记录数
+	 */
+	private static final int QUEUE_CAPACITY = 4096;
+
+	/**
+	 * 本地日志的目录, 默认在Tomcat目录(或当前目录)下
+	 */
+	private static final File JOURNAL_DIR = new File(System.getProperty("ncps.journal.dir",
+			new File(System.getProperty("catalina.base", System.getProperty("user.dir")), "ncps-journal").getPath()));
+
+	/**
+	 * 本地日志的刷盘策略, 系统属性的值无效时为ALWAYS
+	 */
+	private static final Journal.Sync JOURNAL_SYNC = parseSync(System.getProperty("ncps.journal.sync"));
+
+	/**
+	 * 本地日志段文件的大小
+	 */
+	private static final int JOURNAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * 本地日志最多的段文件个数
+	 */
+	private static final int JOURNAL_MAX_SEGMENTS = 64;
+
+	/**
+	 * 本地日志打开失败后, 再次尝试的间隔(毫秒)
+	 */
+	private static final long JOURNAL_RETRY = 60 * 1000;
+
+	/**
+	 * 经纬度索引的格子边长(度), 约1公里
+	 */
+	private static final double INDEX_CELL_SIZE = 0.01;
+
+	/**
+	 * 热力图的缩放级别范围(城市至街道)
+	 */
+	private static final int HEATMAP_MIN_ZOOM = 8;
+	private static final int HEATMAP_MAX_ZOOM = 16;
+
+	/**
+	 * 热力图的时间段长度(毫秒)
+	 */
+	private static final long HEATMAP_BUCKET = 60 * 60 * 1000;
+
+	/**
+	 * 热力图保留的时间段个数(30天)
+	 */
+	private static final int HEATMAP_BUCKETS = 30 * 24;
+
+	/**
+	 * 导出时每次从数据库读取的行数
+	 */
+	private static final int EXPORT_FETCH_SIZE = 1000;
+
+	/**
+	 * 启动时读取索引, 每次从数据库读取的行数
+	 */
+	private static final int INDEX_FETCH_SIZE = 1000;
+
+	/**
+	 * 本地日志记录格式的版本(3: 增加journal_key; 仍可读取没有journal_key的版本2)
+	 */
+	private static final byte CODEC_VERSION = 3;
+
+	/**
+	 * 没有journal_key的本地日志记录格式的版本
+	 */
+	private static final byte CODEC_VERSION_UNKEYED = 2;
+
+	/**
+	 * 每次查询已写入的journal_key的个数(不足时重复第一个)
+	 */
+	private static final int JOURNAL_KEY_BATCH = 64;
+
+	/**
+	 * 写入一条投诉, 返回生成的id
+	 */
+	static final Query<ComplainVO> INSERT = new Query<ComplainVO>(ComplainVO.class,
+			"INSERT INTO complain (comment, date, intensity, address, latitude, longitude, image_hash, sfa_type,"
+					+ " noise_type, journal_key) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", true);
+
+	/**
+	 * 查询已写入的journal_key, 参数: JOURNAL_KEY_BATCH个journal_key
+	 */
+	static final Query<ComplainVO> SELECT_JOURNAL_KEYS = new Query<ComplainVO>(ComplainVO.class,
+			"SELECT journal_key FROM complain WHERE journal_key IN (" + placeholders(JOURNAL_KEY_BATCH) + ")");
+
+	/**
+	 * 读取有经纬度的投诉(建立索引), 只读取索引和热力图需要的列
+	 */
+	static final Query<ComplainVO> SELECT_LOCATED = new Query<ComplainVO>(ComplainVO.class,
+			"SELECT id, intensity, latitude, longitude, image_hash, sfa_type, noise_type, created FROM complain"
+					+ " WHERE latitude IS NOT NULL AND longitude IS NOT NULL");
+
+	/**
+	 * 按写入时间读取投诉(导出), 使用complain_created索引
+	 */
+	static final Query<ComplainVO> SELECT_CREATED = new Query<ComplainVO>(ComplainVO.class,
+			"SELECT * FROM complain WHERE created >= ? AND created < ? ORDER BY created, id");
+
+	/**
+	 * 按写入时间和id从新到旧读取第一页, 参数: 条数
+	 */
+	static final Query<ComplainVO> SELECT_PAGE = new Query<ComplainVO>(ComplainVO.class,
+			"SELECT * FROM complain ORDER BY created DESC, id DESC LIMIT ?");
+
+	/**
+	 * 读取(写入时间, id)之前的一页, 参数: 写入时间, 写入时间, id, 条数<br>
+	 * 写成<b>created &lt;= ? AND (...)</b>而不是行比较<b>(created, id) &lt; (?, ?)</b>, 使MySQL可以对complain_created索引做范围扫描
+	 */
+	static final Query<ComplainVO> SELECT_PAGE_BEFORE = new Query<ComplainVO>(ComplainVO.class,
+			"SELECT * FROM complain WHERE created <= ? AND (created < ? OR id < ?)"
+					+ " ORDER BY created DESC, id DESC LIMIT ?");
+
+	/**
+	 * INSERT的参数
+	 */
+	static final BatchWriter.Binder<ComplainVO> INSERT_BINDER = new BatchWriter.Binder<ComplainVO>() {
+		@Override
+		public Object[] bind(ComplainVO vo) {
+			return new Object[] { vo.comment, vo.date, vo.intensity, vo.address, vo.latitude, vo.longitude, vo.imageHash,
+					vo.sfaType, vo.noiseType, vo.journalKey };
+		}
+	};
+
+	/**
+	 * 投诉在本地日志中的编码: 版本, journal_key, 各成员变量依次写入(可以为null)<br>
+	 * 编码时没有journal_key的投诉生成一个(随机UUID)
+	 */
+	static final JournalWriter.Codec<ComplainVO> CODEC = new JournalWriter.Codec<ComplainVO>() {
+		@Override
+		public byte[] encode(ComplainVO vo) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			DataOutputStream out = new DataOutputStream(bytes);
+			if (vo.journalKey == null) {
+				vo.journalKey = UUID.randomUUID().toString();
+			}
+			out.writeByte(CODEC_VERSION);
+			writeBytes(out, vo.journalKey.getBytes(StandardCharsets.UTF_8));
+			writeBytes(out, vo.comment == null ? null : vo.comment.getBytes(StandardCharsets.UTF_8));
+			writeBytes(out, vo.date == null ? null : vo.date.getBytes(StandardCharsets.UTF_8));
+			writeFloat(out, vo.intensity);
+			writeBytes(out, vo.address == null ? null : vo.address.getBytes(StandardCharsets.UTF_8));
+			writeFloat(out, vo.latitude);
+			writeFloat(out, vo.longitude);
+			writeBytes(out, vo.imageHash == null ? null : vo.imageHash.getBytes(StandardCharsets.UTF_8));
+			writeBytes(out, vo.sfaType == null ? null : vo.sfaType.getBytes(StandardCharsets.UTF_8));
+			writeBytes(out, vo.noiseType == null ? null : vo.noiseType.getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			return bytes.toByteArray();
+		}
+
+		@Override
+		public ComplainVO decode(byte[] data) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			byte version = in.readByte();
+			if (version != CODEC_VERSION && version != CODEC_VERSION_UNKEYED) {
+				throw new IOException("Unknown complain record version: " + version);
+			}
+			ComplainVO vo = new ComplainVO();
+			if (version == CODEC_VERSION) {
+				vo.journalKey = readString(in);
+			}
+			vo.comment = readString(in);
+			vo.date = readString(in);
+			vo.intensity = readFloat(in);
+			vo.address = readString(in);
+			vo.latitude = readFloat(in);
+			vo.longitude = readFloat(in);
+			vo.imageHash = readString(in);
+			vo.sfaType = readString(in);
+			vo.noiseType = readString(in);
+			return vo;
+		}
+	};
+
+	/**
+	 * 默认连接池上的批量写入
+	 */
+	private static final AtomicReference<BatchWriter<ComplainVO>> WRITER = new AtomicReference<BatchWriter<ComplainVO>>();
+
+	/**
+	 * 默认的本地日志写入
+	 */
+	private static final AtomicReference<JournalWriter<ComplainVO>> JOURNAL_WRITER =
+			new AtomicReference<JournalWriter<ComplainVO>>();
+
+	/**
+	 * 打开和关闭本地日志时的锁(同一个目录只能打开一次)
+	 */
+	private static final ReentrantLock JOURNAL_LOCK = new ReentrantLock();
+
+	/**
+	 * 是否正在后台再次尝试打开本地日志
+	 */
+	private static final AtomicBoolean JOURNAL_RETRYING = new AtomicBoolean();
+
+	/**
+	 * 本地日志上次打开失败的时间(毫秒)
+	 */
+	private static volatile long journalFailedAt;
+
+	/**
+	 * 本地日志是否已经关闭(Web应用停止), 关闭后不再打开
+	 */
+	private static volatile boolean journalClosed;
+
+	/**
+	 * 有经纬度的投诉的索引, 每个点只保存LocatedComplain(不保存投诉的全部内容)
+	 */
+	private static final SpatialIndex<LocatedComplain> INDEX = new SpatialIndex<LocatedComplain>("complain",
+			INDEX_CELL_SIZE);
+
+	/**
+	 * 有经纬度的投诉的强度热力图, 时间为投诉写入数据库的时间
+	 */
+	private static final Heatmap HEATMAP = new Heatmap("complain", HEATMAP_MIN_ZOOM, HEATMAP_MAX_ZOOM, HEATMAP_BUCKET,
+			HEATMAP_BUCKETS);
+
+	private ComplainDAO() {
+	}
+
+	/**
+	 * 获取投诉的批量写入(使用默认的连接池), 第一次调用时创建
+	 *
+	 * @return 批量写入
+	 */
+	public static BatchWriter<ComplainVO> getWriter() {
+		BatchWriter<ComplainVO> writer = WRITER.get();
+		if (writer == null) {
+			BatchWriter<ComplainVO> created = newWriter(DAO.getDefault());
+			if (WRITER.compareAndSet(null, created)) {
+				writer = created;
+			} else {
+				created.close();
+				writer = WRITER.get();
+			}
+		}
+		return writer;
+	}
+
+	/**
+	 * 在指定的连接池上创建投诉的批量写入
+	 *
+	 * @param dao
+	 *            连接池
+	 * @return 批量写入
+	 */
+	public static BatchWriter<ComplainVO> newWriter(DAO dao) {
+		return new BatchWriter<ComplainVO>("complain", dao, INSERT, INSERT_BINDER, MAX_BATCH, MAX_DELAY,
+				QUEUE_CAPACITY) {
+			@Override
+			protected void generatedKey(ComplainVO vo, long key) {
+				vo.id = key;
+			}
+
+			@Override
+			protected void committed(ComplainVO vo) {
+				onCommitted(vo);
+			}
+		};
+	}
+
+	/**
+	 * 获取有经纬度的投诉的索引
+	 *
+	 * @return 经纬度索引
+	 */
+	public static SpatialIndex<LocatedComplain> getIndex() {
+		return INDEX;
+	}
+
+	/**
+	 * 获取有经纬度的投诉的强度热力图
+	 *
+	 * @return 热力图
+	 */
+	public static Heatmap getHeatmap() {
+		return HEATMAP;
+	}
+
+	/**
+	 * 从数据库读取有经纬度的投诉, 加入索引和热力图
+	 * <p>
+	 * 只在启动时, 开始写入投诉(包括本地日志中上次未写入的投诉)之前调用一次, 否则同一条投诉可能被加入两次<br>
+	 * 每次从数据库读取<b>INDEX_FETCH_SIZE</b>行, 逐行加入, 不同时保存全部结果
+	 *
+	 * @return 加入的投诉数
+	 * @throws SQLException
+	 */
+	public static int loadIndex() throws SQLException {
+		final int[] count = new int[1];
+		try (Connection connection = DAO.getDefault().getConnection()) {
+			SELECT_LOCATED.stream(connection, INDEX_FETCH_SIZE, new Query.RowHandler<ComplainVO>() {
+				@Override
+				public void handle(ComplainVO vo) {
+					if (index(vo, vo.created == null ? System.currentTimeMillis() : vo.created.getTime())) {
+						count[0]++;
+					}
+				}
+			});
+		} catch (IOException e) {
+			// 处理每一行时不会抛出
+			throw new SQLException(e);
+		}
+		return count[0];
+	}
+
+	/**
+	 * 按写入时间导出投诉, 按写入时间和id的顺序逐行处理
+	 * <p>
+	 * 每次从数据库读取<b>EXPORT_FETCH_SIZE</b>行, 内存中只有当前的一行; 处理期间占用一个连接
+	 *
+	 * @param from
+	 *            开始时间(包含)
+	 * @param to
+	 *            结束时间(不包含)
+	 * @param handler
+	 *            处理每一条投诉的方法
+	 * @return 导出的投诉数
+	 * @throws SQLException
+	 * @throws IOException
+	 *             处理时输出失败
+	 */
+	public static int export(Timestamp from, Timestamp to, Query.RowHandler<ComplainVO> handler)
+			throws SQLException, IOException {
+		try (Connection connection = DAO.getDefault().getConnection()) {
+			return SELECT_CREATED.stream(connection, EXPORT_FETCH_SIZE, handler, from, to);
+		}
+	}
+
+	/**
+	 * 按写入时间和id从新到旧分页读取投诉
+	 * <p>
+	 * 从上一页最后一条之后开始(不使用OFFSET), 通过complain_created索引定位, 每一页的代价与页数无关
+	 *
+	 * @param created
+	 *            上一页最后一条的写入时间, 第一页为null
+	 * @param id
+	 *            上一页最后一条的id, 第一页为null
+	 * @param limit
+	 *            条数
+	 * @return 投诉列表
+	 * @throws SQLException
+	 */
+	public static List<ComplainVO> list(Timestamp created, Long id, int limit) throws SQLException {
+		try (Connection connection = DAO.getDefault().getConnection()) {
+			if (created == null || id == null) {
+				return SELECT_PAGE.list(connection, limit);
+			}
+			return SELECT_PAGE_BEFORE.list(connection, created, created, id, limit);
+		}
+	}
+
+	/**
+	 * 一条投诉写入数据库后(id已经设置), 加入索引, 热力图和时间序列汇总(时间为写入的时间)<br>
+	 * 写入时间由数据库生成, 不另外查询, 以提交的时间代替(相差不超过一秒)
+	 */
+	private static void onCommitted(ComplainVO vo) {
+		long time = System.currentTimeMillis();
+		if (vo.created == null) {
+			vo.created = new Timestamp(time);
+		}
+		index(vo, time);
+		ComplainRollup.getDefault().add(vo.noiseType, vo.sfaType, vo.intensity, time);
+	}
+
+	/**
+	 * 将有经纬度的投诉加入索引和热力图, 经纬度超出范围的投诉不加入
+	 *
+	 * @param vo
+	 *            投诉
+	 * @param time
+	 *            写入数据库的时间(毫秒)
+	 * @return 是否加入
+	 */
+	private static boolean index(ComplainVO vo, long time) {
+		if (vo.latitude == null || vo.longitude == null) {
+			return false;
+		}
+		try {
+			INDEX.add(vo.latitude, vo.longitude, new LocatedComplain(vo));
+			HEATMAP.add(vo.latitude, vo.longitude, vo.intensity, time);
+			return true;
+		} catch (IllegalArgumentException e) {
+			LOG.warn("complain location out of range, not indexed", "id", vo.id, "latitude", vo.latitude,
+					"longitude", vo.longitude);
+			return false;
+		}
+	}
+
+	/**
+	 * 打开投诉的本地日志(恢复并开始写入上次未写入数据库的投诉), Web应用启动时调用; 已经打开时直接返回
+	 *
+	 * @return 是否已打开
+	 */
+	public static boolean openJournalWriter() {
+		JOURNAL_LOCK.lock();
+		try {
+			if (JOURNAL_WRITER.get() != null) {
+				return true;
+			}
+			if (journalClosed) {
+				return false;
+			}
+			try {
+				Journal journal = new Journal("complain", JOURNAL_DIR, JOURNAL_SEGMENT_SIZE, JOURNAL_MAX_SEGMENTS,
+						JOURNAL_SYNC);
+				JOURNAL_WRITER.set(new JournalWriter<ComplainVO>("complain", journal, CODEC, getWriter()) {
+					@Override
+					protected void removeWritten(List<ComplainVO> records) throws SQLException {
+						ComplainDAO.removeWritten(records);
+					}
+				});
+				return true;
+			} catch (IOException | RuntimeException e) {
+				journalFailedAt = System.currentTimeMillis();
+				LOG.error("cannot open complain journal", e, "dir", JOURNAL_DIR.getPath());
+				return false;
+			}
+		} finally {
+			JOURNAL_LOCK.unlock();
+		}
+	}
+
+	/**
+	 * 获取投诉的本地日志写入(不加锁, 不进行I/O), 本地日志由<b>openJournalWriter()</b>打开
+	 *
+	 * @return 本地日志写入, 本地日志不可用时返回<b>null</b>(距上次打开失败超过JOURNAL_RETRY时在后台再次尝试)
+	 */
+	public static JournalWriter<ComplainVO> getJournalWriter() {
+		JournalWriter<ComplainVO> journalWriter = JOURNAL_WRITER.get();
+		if (journalWriter == null && !journalClosed
+				&& System.currentTimeMillis() - journalFailedAt >= JOURNAL_RETRY
+				&& JOURNAL_RETRYING.compareAndSet(false, true)) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						openJournalWriter();
+					} finally {
+						JOURNAL_RETRYING.set(false);
+					}
+				}
+			}, "ncps-journal-open");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return journalWriter;
+	}
+
+	/**
+	 * 关闭默认的本地日志写入, 未写入数据库的投诉保留在本地日志中, 在关闭批量写入之前调用
+	 */
+	public static void closeJournalWriter() {
+		JOURNAL_LOCK.lock();
+		try {
+			journalClosed = true;
+			JournalWriter<ComplainVO> journalWriter = JOURNAL_WRITER.getAndSet(null);
+			if (journalWriter != null) {
+				journalWriter.close();
+				try {
+					journalWriter.getJournal().close();
+				} catch (IOException e) {
+					LOG.error("cannot close complain journal", e);
+				}
+			}
+		} finally {
+			JOURNAL_LOCK.unlock();
+		}
+	}
+
+	/**
+	 * 关闭默认的批量写入(写完队列中的记录), 在关闭连接池之前调用
+	 */
+	public static void closeWriter() {
+		BatchWriter<ComplainVO> writer = WRITER.getAndSet(null);
+		if (writer != null) {
+			writer.close();
+		}
+	}
+
+	/**
+	 * 从本地日志读出的投诉中去掉journal_key已在数据库中的(崩溃前或提交结果未知时已经写入)
+	 */
+	private static void removeWritten(List<ComplainVO> records) throws SQLException {
+		List<String> keys = new ArrayList<String>(records.size());
+		for (ComplainVO vo : records) {
+			if (vo.journalKey != null) {
+				keys.add(vo.journalKey);
+			}
+		}
+		if (keys.isEmpty()) {
+			return;
+		}
+		Set<String> written = new HashSet<String>();
+		try (Connection connection = DAO.getDefault().getConnection()) {
+			Object[] params = new Object[JOURNAL_KEY_BATCH];
+			for (int start = 0; start < keys.size(); start += JOURNAL_KEY_BATCH) {
+				int count = Math.min(JOURNAL_KEY_BATCH, keys.size() - start);
+				for (int i = 0; i < params.length; i++) {
+					params[i] = keys.get(start + (i < count ? i : 0));
+				}
+				for (ComplainVO vo : SELECT_JOURNAL_KEYS.list(connection, params)) {
+					written.add(vo.journalKey);
+				}
+			}
+		}
+		if (written.isEmpty()) {
+			return;
+		}
+		for (Iterator<ComplainVO> it = records.iterator(); it.hasNext();) {
+			if (written.contains(it.next().journalKey)) {
+				it.remove();
+			}
+		}
+		LOG.info("journal records already written, skipped", "count", written.size());
+	}
+
+	/**
+	 * IN中的参数: count个'?'
+	 */
+	private static String placeholders(int count) {
+		StringBuilder sb = new StringBuilder(count * 3);
+		for (int i = 0; i < count; i++) {
+			sb.append(i == 0 ? "?" : ", ?");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 解析刷盘策略(不区分大小写), 没有设置或无效时为ALWAYS(无效时记录警告, 不影响启动)
+	 */
+	private static Journal.Sync parseSync(String value) {
+		if (value == null) {
+			return Journal.Sync.ALWAYS;
+		}
+		try {
+			return Journal.Sync.valueOf(value.trim().toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			LOG.warn("invalid journal sync policy, using always", "ncps.journal.sync", value);
+			return Journal.Sync.ALWAYS;
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(value.length);
+			out.write(value);
+		}
+	}
+
+	private static void writeFloat(DataOutputStream out, Float value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeFloat(value);
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] value = new byte[length];
+		in.readFully(value);
+		return value;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] value = readBytes(in);
+		return value == null ? null : new String(value, StandardCharsets.UTF_8);
+	}
+
+	private static Float readFloat(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readFloat() : null;
+	}
+}
@@ -0,0 +1,678 @@
+package edu.sysu.ncps.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.mura.servlet.Logger;
+import org.mura.servlet.Metrics;
+
+/**
+ * 投诉数和强度的时间序列汇总, 按噪声类型(noiseType)和场所类型(sfaType)分组
+ * <p>
+ * 每一对(noiseType, sfaType)一组序列, 每组按分钟, 小时, 天(<b>Resolution</b>)各一个环形数组,
+ * 每个位置保存一个时间段的点数, 有强度的点数, 强度的和, 最小值和最大值(基本类型数组)<br>
+ * 每条投诉写入数据库后累计一次(ComplainDAO), 查询时只读取范围内的时间段, 不查询数据库<br>
+ * 类型由客户端提交, 不是固定的取值: 每组序列约占用113KB, 组数达到<b>MAX_SERIES</b>后, 新的组合累计到("other", "other")组,
+ * 超过<b>MAX_TYPE_LENGTH</b>的类型累计为"other"
+ * <p>
+ * 每隔<b>SNAPSHOT_INTERVAL</b>(以及关闭时)将全部汇总写入快照文件, 启动时读取; 崩溃时最多丢失一个间隔内的累计<br>
+ * 快照先写入临时文件, 刷盘后再替换, 文件末尾有CRC32校验
+ * <p>
+ * 默认的汇总通过<b>getDefault()</b>获取, 快照文件可以用系统属性<b>ncps.rollup.file</b>设置
+ *
+ * @author mura
+ */
+public class ComplainRollup {
+
+	/**
+	 * 默认的快照文件, 在Tomcat目录(或当前目录)下
+	 */
+	private static final File DEFAULT_FILE = new File(System.getProperty("ncps.rollup.file",
+			new File(System.getProperty("catalina.base", System.getProperty("user.dir")), "ncps-rollup.dat").getPath()));
+
+	/**
+	 * 写入快照的间隔(毫秒)
+	 */
+	private static final long SNAPSHOT_INTERVAL = 60 * 1000;
+
+	/**
+	 * 快照文件的标识
+	 */
+	private static final int SNAPSHOT_MAGIC = 0x4e435052;
+
+	/**
+	 * 快照文件格式的版本
+	 */
+	private static final byte SNAPSHOT_VERSION = 1;
+
+	/**
+	 * 最多的序列组数(不含"other"组)
+	 */
+	private static final int MAX_SERIES = 128;
+
+	/**
+	 * 类型的最大长度(与complain表的列相同)
+	 */
+	private static final int MAX_TYPE_LENGTH = 32;
+
+	/**
+	 * 超出限制的类型累计到的组
+	 */
+	private static final String OTHER = "other";
+
+	private static final Logger LOG = Logger.get("ComplainRollup");
+
+	private static final AtomicReference<ComplainRollup> DEFAULT = new AtomicReference<ComplainRollup>();
+
+	/**
+	 * 全部时间段长度(避免每次调用values()复制数组)
+	 */
+	private static final Resolution[] RESOLUTIONS = Resolution.values();
+
+	/**
+	 * Resolution: 时间段的长度和保留的个数
+	 *
+	 * @author mura
+	 */
+	public static enum Resolution {
+
+		/**
+		 * 分钟, 保留1天
+		 */
+		MINUTE(60 * 1000L, 24 * 60),
+
+		/**
+		 * 小时, 保留30天
+		 */
+		HOUR(60 * 60 * 1000L, 30 * 24),
+
+		/**
+		 * 天, 保留2年
+		 */
+		DAY(24 * 60 * 60 * 1000L, 2 * 366);
+
+		/**
+		 * 时间段的长度(毫秒)
+		 */
+		public final long millis;
+
+		/**
+		 * 保留的时间段个数
+		 */
+		public final int length;
+
+		private Resolution(long millis, int length) {
+			this.millis = millis;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Point: 一个时间段(或时间范围)的合计
+	 *
+	 * @author mura
+	 */
+	public static final class Point {
+
+		/**
+		 * 开始时间(毫秒)
+		 */
+		public final long time;
+
+		public long count;
+
+		/**
+		 * 有强度的点数
+		 */
+		public long measured;
+
+		public double sum;
+
+		public float min = Float.POSITIVE_INFINITY;
+
+		public float max = Float.NEGATIVE_INFINITY;
+
+		private Point(long time) {
+			this.time = time;
+		}
+
+		private void merge(long count, long measured, double sum, float min, float max) {
+			this.count += count;
+			this.measured += measured;
+			this.sum += sum;
+			this.min = Math.min(this.min, min);
+			this.max = Math.max(this.max, max);
+		}
+	}
+
+	/**
+	 * Group: 一个分组在时间范围内的合计和各时间段
+	 *
+	 * @author mura
+	 */
+	public static final class Group {
+
+		/**
+		 * 噪声类型, 不按噪声类型分组或没有类型时为<b>null</b>
+		 */
+		public final String noiseType;
+
+		/**
+		 * 场所类型, 不按场所类型分组或没有类型时为<b>null</b>
+		 */
+		public final String sfaType;
+
+		/**
+		 * 时间范围内的合计, time为范围的开始
+		 */
+		public final Point total;
+
+		/**
+		 * 有投诉的各时间段, 按时间排列; 不需要时为<b>null</b>
+		 */
+		public final List<Point> points;
+
+		private Group(String noiseType, String sfaType, long from, boolean withPoints) {
+			this.noiseType = noiseType;
+			this.sfaType = sfaType;
+			this.total = new Point(from);
+			this.points = withPoints ? new ArrayList<Point>() : null;
+		}
+	}
+
+	/**
+	 * 快照文件
+	 */
+	private final File file;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * 各组序列, 键为<b>noiseType + '\0' + sfaType</b>
+	 */
+	private final Map<String, Series> series = new HashMap<String, Series>();
+
+	/**
+	 * 定时写入快照
+	 */
+	private final ScheduledExecutorService snapshotter;
+
+	/**
+	 * 统计数据源
+	 */
+	private final Metrics.Source metricsSource;
+
+	private final LongAdder added = new LongAdder();
+	private final LongAdder folded = new LongAdder();
+	private final LongAdder snapshots = new LongAdder();
+	private final LongAdder snapshotFailures = new LongAdder();
+
+	/**
+	 * 构造方法, 读取快照文件(不存在或损坏时从空的汇总开始), 开始定时写入快照
+	 *
+	 * @param file
+	 *            快照文件
+	 */
+	public ComplainRollup(File file) {
+		this.file = file;
+		restore();
+		this.snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mura-rollup-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		snapshotter.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				snapshot();
+			}
+		}, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+		this.metricsSource = new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				writeRollupMetrics(sb);
+			}
+		};
+		Metrics.register(metricsSource);
+	}
+
+	/**
+	 * 获取默认的汇总, 第一次调用时创建
+	 *
+	 * @return 汇总
+	 */
+	public static ComplainRollup getDefault() {
+		ComplainRollup rollup = DEFAULT.get();
+		if (rollup == null) {
+			synchronized (DEFAULT) {
+				// 同一个快照文件只能有一个汇总, 加锁创建
+				rollup = DEFAULT.get();
+				if (rollup == null) {
+					rollup = new ComplainRollup(DEFAULT_FILE);
+					DEFAULT.set(rollup);
+				}
+			}
+		}
+		return rollup;
+	}
+
+	/**
+	 * 累计一条投诉
+	 *
+	 * @param noiseType
+	 *            噪声类型, 可以为<b>null</b>
+	 * @param sfaType
+	 *            场所类型, 可以为<b>null</b>
+	 * @param intensity
+	 *            强度, 可以为<b>null</b>(只计点数)
+	 * @param time
+	 *            时间(毫秒)
+	 */
+	public void add(String noiseType, String sfaType, Float intensity, long time) {
+		if (noiseType != null && noiseType.length() > MAX_TYPE_LENGTH) {
+			noiseType = OTHER;
+		}
+		if (sfaType != null && sfaType.length() > MAX_TYPE_LENGTH) {
+			sfaType = OTHER;
+		}
+		String key = key(noiseType, sfaType);
+		lock.writeLock().lock();
+		try {
+			Series s = series.get(key);
+			if (s == null && series.size() >= MAX_SERIES) {
+				// 组数已达上限, 累计到"other"组
+				folded.increment();
+				noiseType = OTHER;
+				sfaType = OTHER;
+				key = key(OTHER, OTHER);
+				s = series.get(key);
+			}
+			if (s == null) {
+				s = new Series(noiseType, sfaType);
+				series.put(key, s);
+			}
+			for (Resolution resolution : RESOLUTIONS) {
+				Ring ring = s.rings[resolution.ordinal()];
+				if (intensity == null) {
+					ring.merge(Math.floorDiv(time, resolution.millis), 1, 0, 0, Float.POSITIVE_INFINITY,
+							Float.NEGATIVE_INFINITY);
+				} else {
+					ring.merge(Math.floorDiv(time, resolution.millis), 1, 1, intensity, intensity, intensity);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		added.increment();
+	}
+
+	/**
+	 * 查询时间范围内的汇总
+	 *
+	 * @param resolution
+	 *            时间段的长度
+	 * @param from
+	 *            开始时间(毫秒, 包含所在的时间段)
+	 * @param to
+	 *            结束时间(毫秒, 包含所在的时间段)
+	 * @param byNoiseType
+	 *            是否按噪声类型分组
+	 * @param bySfaType
+	 *            是否按场所类型分组
+	 * @param withPoints
+	 *            是否返回各时间段(否则只有合计)
+	 * @return 有投诉的各组, 按投诉数从多到少排列
+	 */
+	public List<Group> query(Resolution resolution, long from, long to, boolean byNoiseType, boolean bySfaType,
+			boolean withPoints) {
+		long first = Math.floorDiv(from, resolution.millis);
+		long last = Math.floorDiv(to, resolution.millis);
+		// 只查询环形数组中可能保留的时间段
+		first = Math.max(first, last - resolution.length + 1);
+		Map<String, Group> groups = new LinkedHashMap<String, Group>();
+		lock.readLock().lock();
+		try {
+			for (Series s : series.values()) {
+				String noiseType = byNoiseType ? s.noiseType : null;
+				String sfaType = bySfaType ? s.sfaType : null;
+				String key = key(noiseType, sfaType);
+				Group group = groups.get(key);
+				if (group == null) {
+					group = new Group(noiseType, sfaType, first * resolution.millis, withPoints);
+					groups.put(key, group);
+				}
+				s.rings[resolution.ordinal()].collect(group, first, last, resolution.millis);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		List<Group> list = new ArrayList<Group>(groups.size());
+		for (Group group : groups.values()) {
+			if (group.total.count > 0) {
+				if (withPoints) {
+					mergePoints(group.points);
+				}
+				list.add(group);
+			}
+		}
+		list.sort(new Comparator<Group>() {
+			@Override
+			public int compare(Group a, Group b) {
+				return Long.compare(b.total.count, a.total.count);
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * 写入快照: 在锁内复制为字节数组, 在锁外写入文件
+	 */
+	public void snapshot() {
+		try {
+			byte[] data;
+			lock.readLock().lock();
+			try {
+				data = encode();
+			} finally {
+				lock.readLock().unlock();
+			}
+			File temp = new File(file.getPath() + ".tmp");
+			try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+				out.setLength(0);
+				out.write(data);
+				out.getFD().sync();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			snapshots.increment();
+		} catch (IOException | RuntimeException e) {
+			snapshotFailures.increment();
+			LOG.error("rollup snapshot failed", e, "file", file.getPath());
+		}
+	}
+
+	/**
+	 * 关闭: 停止定时写入, 写入最后一次快照
+	 */
+	public void close() {
+		snapshotter.shutdown();
+		try {
+			snapshotter.awaitTermination(SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		snapshot();
+		Metrics.unregister(metricsSource);
+	}
+
+	/**
+	 * 关闭默认的汇总
+	 */
+	public static void closeDefault() {
+		synchronized (DEFAULT) {
+			ComplainRollup rollup = DEFAULT.getAndSet(null);
+			if (rollup != null) {
+				rollup.close();
+			}
+		}
+	}
+
+	/**
+	 * 同一个分组的点按时间合并(各序列的点分别按时间排列)
+	 */
+	private static void mergePoints(List<Point> points) {
+		points.sort(new Comparator<Point>() {
+			@Override
+			public int compare(Point a, Point b) {
+				return Long.compare(a.time, b.time);
+			}
+		});
+		int size = 0;
+		for (Point point : points) {
+			if (size > 0 && points.get(size - 1).time == point.time) {
+				points.get(size - 1).merge(point.count, point.measured, point.sum, point.min, point.max);
+			} else {
+				points.set(size++, point);
+			}
+		}
+		points.subList(size, points.size()).clear();
+	}
+
+	/**
+	 * 编码全部汇总(持有锁时调用): 标识, 版本, 长度, 内容, CRC32
+	 */
+	private byte[] encode() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(series.size());
+		for (Series s : series.values()) {
+			out.writeUTF(s.noiseType == null ? "" : s.noiseType);
+			out.writeUTF(s.sfaType == null ? "" : s.sfaType);
+			for (Resolution resolution : RESOLUTIONS) {
+				Ring ring = s.rings[resolution.ordinal()];
+				int used = 0;
+				for (int i = 0; i < ring.index.length; i++) {
+					if (ring.count[i] > 0) {
+						used++;
+					}
+				}
+				out.writeInt(used);
+				for (int i = 0; i < ring.index.length; i++) {
+					if (ring.count[i] > 0) {
+						out.writeLong(ring.index[i]);
+						out.writeLong(ring.count[i]);
+						out.writeLong(ring.measured[i]);
+						out.writeDouble(ring.sum[i]);
+						out.writeFloat(ring.min[i]);
+						out.writeFloat(ring.max[i]);
+					}
+				}
+			}
+		}
+		out.flush();
+		byte[] payload = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteArrayOutputStream framed = new ByteArrayOutputStream(payload.length + 17);
+		DataOutputStream frame = new DataOutputStream(framed);
+		frame.writeInt(SNAPSHOT_MAGIC);
+		frame.writeByte(SNAPSHOT_VERSION);
+		frame.writeInt(payload.length);
+		frame.write(payload);
+		frame.writeLong(crc.getValue());
+		frame.flush();
+		return framed.toByteArray();
+	}
+
+	/**
+	 * 读取快照文件(构造时调用), 时间段按各自的序号放入环形数组
+	 */
+	private void restore() {
+		byte[] data;
+		try {
+			data = Files.readAllBytes(file.toPath());
+		} catch (NoSuchFileException | FileNotFoundException e) {
+			LOG.info("no rollup snapshot, starting empty", "file", file.getPath());
+			return;
+		} catch (IOException e) {
+			LOG.error("cannot read rollup snapshot, starting empty", e, "file", file.getPath());
+			return;
+		}
+		try {
+			DataInputStream frame = new DataInputStream(new ByteArrayInputStream(data));
+			int magic = frame.readInt();
+			byte version = frame.readByte();
+			if (magic != SNAPSHOT_MAGIC || version != SNAPSHOT_VERSION) {
+				throw new IOException("Unknown rollup snapshot format: " + Integer.toHexString(magic) + " v" + version);
+			}
+			byte[] payload = new byte[frame.readInt()];
+			frame.readFully(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if (frame.readLong() != crc.getValue()) {
+				throw new IOException("Rollup snapshot checksum mismatch");
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			long points = 0;
+			for (int n = in.readInt(); n > 0; n--) {
+				String noiseType = in.readUTF();
+				String sfaType = in.readUTF();
+				Series s = new Series(noiseType.isEmpty() ? null : noiseType, sfaType.isEmpty() ? null : sfaType);
+				for (Resolution resolution : RESOLUTIONS) {
+					Ring ring = s.rings[resolution.ordinal()];
+					for (int used = in.readInt(); used > 0; used--) {
+						ring.merge(in.readLong(), in.readLong(), in.readLong(), in.readDouble(), in.readFloat(),
+								in.readFloat());
+						points++;
+					}
+				}
+				series.put(key(s.noiseType, s.sfaType), s);
+			}
+			LOG.info("rollup snapshot restored", "file", file.getPath(), "series", series.size(), "points", points);
+		} catch (IOException | RuntimeException e) {
+			series.clear();
+			LOG.error("corrupt rollup snapshot, starting empty", e, "file", file.getPath());
+		}
+	}
+
+	private static String key(String noiseType, String sfaType) {
+		return (noiseType == null ? "" : noiseType) + '\0' + (sfaType == null ? "" : sfaType);
+	}
+
+	/**
+	 * 以Prometheus文本格式输出统计数据
+	 */
+	private void writeRollupMetrics(StringBuilder sb) {
+		int count;
+		lock.readLock().lock();
+		try {
+			count = series.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+		sb.append("# HELP mura_rollup_series Complaint rollup series (noiseType, sfaType pairs).\n");
+		sb.append("# TYPE mura_rollup_series gauge\n");
+		sb.append("mura_rollup_series ").append(count).append('\n');
+		sb.append("# HELP mura_rollup_added_total Complaints added to the rollups.\n");
+		sb.append("# TYPE mura_rollup_added_total counter\n");
+		sb.append("mura_rollup_added_total ").append(added.sum()).append('\n');
+		sb.append("# HELP mura_rollup_folded_total Complaints added to the other series after the series limit.\n");
+		sb.append("# TYPE mura_rollup_folded_total counter\n");
+		sb.append("mura_rollup_folded_total ").append(folded.sum()).append('\n');
+		sb.append("# HELP mura_rollup_snapshots_total Rollup snapshots by result.\n");
+		sb.append("# TYPE mura_rollup_snapshots_total counter\n");
+		sb.append("mura_rollup_snapshots_total{result=\"written\"} ").append(snapshots.sum()).append('\n');
+		sb.append("mura_rollup_snapshots_total{result=\"failed\"} ").append(snapshotFailures.sum()).append('\n');
+	}
+
+	/**
+	 * 一组(noiseType, sfaType)的序列, 每个时间段长度一个环形数组
+	 */
+	private static final class Series {
+
+		private final String noiseType;
+
+		private final String sfaType;
+
+		private final Ring[] rings = new Ring[RESOLUTIONS.length];
+
+		private Series(String noiseType, String sfaType) {
+			this.noiseType = noiseType;
+			this.sfaType = sfaType;
+			for (Resolution resolution : RESOLUTIONS) {
+				rings[resolution.ordinal()] = new Ring(resolution.length);
+			}
+		}
+	}
+
+	/**
+	 * 一个时间段长度的环形数组, 位置为<b>序号 % 长度</b>, 保存的序号不同时为旧的时间段
+	 */
+	private static final class Ring {
+
+		private final long[] index;
+		private final long[] count;
+		private final long[] measured;
+		private final double[] sum;
+		private final float[] min;
+		private final float[] max;
+
+		private Ring(int length) {
+			index = new long[length];
+			count = new long[length];
+			measured = new long[length];
+			sum = new double[length];
+			min = new float[length];
+			max = new float[length];
+			Arrays.fill(index, Long.MIN_VALUE);
+		}
+
+		/**
+		 * 累计到一个时间段, 位置上是旧的时间段时先清空; 比位置上的时间段还旧时不累计
+		 */
+		private void merge(long i, long count, long measured, double sum, float min, float max) {
+			int slot = (int) Math.floorMod(i, (long) index.length);
+			if (index[slot] != i) {
+				if (index[slot] > i) {
+					return;
+				}
+				index[slot] = i;
+				this.count[slot] = 0;
+				this.measured[slot] = 0;
+				this.sum[slot] = 0;
+				this.min[slot] = Float.POSITIVE_INFINITY;
+				this.max[slot] = Float.NEGATIVE_INFINITY;
+			}
+			this.count[slot] += count;
+			this.measured[slot] += measured;
+			this.sum[slot] += sum;
+			this.min[slot] = Math.min(this.min[slot], min);
+			this.max[slot] = Math.max(this.max[slot], max);
+		}
+
+		/**
+		 * 将范围内的时间段累计到分组中
+		 */
+		private void collect(Group group, long first, long last, long millis) {
+			for (long i = first; i <= last; i++) {
+				int slot = (int) Math.floorMod(i, (long) index.length);
+				if (index[slot] != i || count[slot] == 0) {
+					continue;
+				}
+				group.total.merge(count[slot], measured[slot], sum[slot], min[slot], max[slot]);
+				if (group.points != null) {
+					Point point = new Point(i * millis);
+					point.merge(count[slot], measured[slot], sum[slot], min[slot], max[slot]);
+					group.points.add(point);
+				}
+			}
+		}
+	}
+}
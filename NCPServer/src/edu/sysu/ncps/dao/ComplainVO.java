@@ -0,0 +1,29 @@
+package edu.sysu.ncps.dao;
+
+import java.sql.Timestamp;
+
+/**
+ * 噪声投诉, 对应complain表的一行
+ *
+ * @author mura
+ */
+public class ComplainVO extends ValueObject {
+	public Long id;
+	public String comment;
+	public String date;
+	public Float intensity;
+	public String address;
+	public Float latitude;
+	public Float longitude;
+	/**
+	 * 图片在ImageStore中的哈希值
+	 */
+	public String imageHash;
+	public String sfaType;
+	public String noiseType;
+	public Timestamp created;
+	/**
+	 * 本地日志中投诉的唯一键, 再次写入时用于去重; 不经过本地日志写入的投诉为null
+	 */
+	public String journalKey;
+}
@@ -2,9 +2,562 @@ package edu.sysu.ncps.dao;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.mura.servlet.LatencyHistogram;
+import org.mura.servlet.Logger;
+import org.mura.servlet.Metrics;
+
+/**
+ * 数据库连接池
+ * <p>
+ * 请求处理中通过<b>getConnection()</b>借出连接, 使用后调用连接的<b>close()</b>归还(推荐使用try-with-resources)<br>
+ * 借出和归还不加锁: 用信号量限制借出的连接数(最大连接数), 空闲连接保存在无锁的双端队列中, 后归还的先借出(连接保持活跃)
+ * <p>
+ * 连接池的功能:
+ * <p>
+ * 1、最小/最大连接数: 维护线程保持至少<b>minSize</b>个连接, 空闲过久或存在过久的连接被关闭<br>
+ * 2、借出时检查: 根据<b>Validation</b>策略, 借出前确认连接可用, 不可用的连接被关闭<br>
+ * 3、泄漏检测: 借出超过<b>LEAK_THRESHOLD</b>仍未归还的连接记录警告日志(可以记录借出位置的调用栈)<br>
+ * 4、统计: 连接数, 借出等待时间以及各种事件的次数, 通过/metrics输出
+ * <p>
+ * 默认的连接池通过<b>getDefault()</b>获取, 连接参数可以用系统属性<b>ncps.db.url</b>, <b>ncps.db.user</b>,
+ * <b>ncps.db.password</b>设置<br>
+ * 测试时可以用<b>ConnectionFactory</b>创建连接到嵌入式数据库的连接池
+ *
+ * @author mura
+ */
 public class DAO {
 
+	/**
+	 * 默认的数据库地址<br>
+	 * useCursorFetch: 设置了fetchSize的查询(Query.stream())使用服务器端游标分批读取, 其他查询不受影响
+	 */
+	private static final String URL = System.getProperty("ncps.db.url",
+			"jdbc:mysql://localhost:3306/ncps?useUnicode=true&characterEncoding=UTF-8&useSSL=false"
+					+ "&useServerPrepStmts=true&rewriteBatchedStatements=true&useCursorFetch=true");
+
+	/**
+	 * 默认的数据库用户名
+	 */
+	private static final String USER = System.getProperty("ncps.db.user", "ncps");
+
+	/**
+	 * 默认的数据库密码
+	 */
+	private static final String PASSWORD = System.getProperty("ncps.db.password", "");
+
+	/**
+	 * MySQL驱动类(Web应用的类加载器中, DriverManager不一定能自动发现驱动)
+	 */
+	private static final String DRIVER = "com.mysql.jdbc.Driver";
+
+	/**
+	 * 默认的最小连接数
+	 */
+	private static final int MIN_SIZE = 2;
+
+	/**
+	 * 默认的最大连接数
+	 */
+	private static final int MAX_SIZE = 16;
+
+	/**
+	 * 借出连接的最长等待时间(毫秒), 超时抛出SQLTimeoutException
+	 */
+	private static final long BORROW_TIMEOUT = 5000;
+
+	/**
+	 * IDLE策略下, 空闲超过此时间(毫秒)的连接借出前需要检查
+	 */
+	private static final long VALIDATE_AFTER_IDLE = 5000;
+
+	/**
+	 * 检查连接是否可用的超时时间(秒)
+	 */
+	private static final int VALIDATION_TIMEOUT = 2;
+
+	/**
+	 * 空闲超过此时间(毫秒)的连接被关闭(保留最小连接数)
+	 */
+	private static final long IDLE_TIMEOUT = 10 * 60 * 1000;
+
+	/**
+	 * 存在超过此时间(毫秒)的连接被关闭, 避免数据库端的超时(MySQL默认wait_timeout为8小时)
+	 */
+	private static final long MAX_LIFETIME = 30 * 60 * 1000;
+
+	/**
+	 * 借出超过此时间(毫秒)仍未归还的连接视为泄漏
+	 */
+	private static final long LEAK_THRESHOLD = 60 * 1000;
+
+	/**
+	 * 是否记录借出位置的调用栈(用于定位泄漏, 有一定开销)
+	 */
+	private static final boolean LEAK_TRACE = false;
+
+	/**
+	 * 维护线程的执行间隔(毫秒)
+	 */
+	private static final long MAINTENANCE_INTERVAL = 10 * 1000;
+
+	/**
+	 * 输出的借出等待时间分位数
+	 */
+	private static final double[] QUANTILES = { 0.5, 0.99 };
+
+	/**
+	 * 日志
+	 */
+	private static final Logger LOG = Logger.get("DAO");
+
+	/**
+	 * 默认的连接池, 第一次使用时创建
+	 */
+	private static final AtomicReference<DAO> DEFAULT = new AtomicReference<DAO>();
+
+	/**
+	 * ConnectionFactory: 创建数据库连接的方法
+	 *
+	 * @author mura
+	 */
+	public static interface ConnectionFactory {
+
+		/**
+		 * 创建一个新的数据库连接
+		 *
+		 * @return 连接
+		 * @throws SQLException
+		 */
+		public Connection create() throws SQLException;
+	}
+
+	/**
+	 * Validation: 借出时检查连接的策略
+	 *
+	 * @author mura
+	 */
+	public static enum Validation {
+		/**
+		 * 每次借出都检查
+		 */
+		ALWAYS,
+		/**
+		 * 空闲超过VALIDATE_AFTER_IDLE时检查
+		 */
+		IDLE,
+		/**
+		 * 不检查
+		 */
+		NEVER
+	}
+
+	/**
+	 * 连接池名称
+	 */
+	private final String name;
+
+	/**
+	 * 创建连接的方法
+	 */
+	private final ConnectionFactory factory;
+
+	/**
+	 * 最小连接数
+	 */
+	private final int minSize;
+
+	/**
+	 * 最大连接数
+	 */
+	private final int maxSize;
+
+	/**
+	 * 借出时检查的策略
+	 */
+	private final Validation validation;
+
+	/**
+	 * 借出许可, 个数为最大连接数
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * 空闲连接, 头部为最近归还的
+	 */
+	private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<PooledConnection>();
+
+	/**
+	 * 已借出的连接
+	 */
+	private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * 当前打开的连接数
+	 */
+	private final AtomicInteger total = new AtomicInteger();
+
+	/**
+	 * 借出的等待时间(纳秒)
+	 */
+	private final LatencyHistogram borrowWait = new LatencyHistogram();
+
+	private final LongAdder created = new LongAdder();
+	private final LongAdder closedCount = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder validationFailures = new LongAdder();
+	private final LongAdder leaks = new LongAdder();
+	private final LongAdder statementHits = new LongAdder();
+	private final LongAdder statementMisses = new LongAdder();
+
+	/**
+	 * 维护线程
+	 */
+	private final ScheduledExecutorService maintenance;
+
+	/**
+	 * 统计数据源
+	 */
+	private final Metrics.Source metricsSource;
+
+	/**
+	 * 是否已关闭
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * 构造方法, 创建连接池并建立最小连接数个连接(失败时只记录日志)
+	 *
+	 * @param name
+	 *            连接池名称(用于日志和统计)
+	 * @param factory
+	 *            创建连接的方法
+	 * @param minSize
+	 *            最小连接数
+	 * @param maxSize
+	 *            最大连接数
+	 * @param validation
+	 *            借出时检查的策略
+	 */
+	public DAO(String name, ConnectionFactory factory, int minSize, int maxSize, Validation validation) {
+		if (minSize < 0 || maxSize <= 0 || minSize > maxSize) {
+			throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+		}
+		this.name = name;
+		this.factory = factory;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.validation = validation;
+		this.permits = new Semaphore(maxSize);
+		this.maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mura-db-pool-" + DAO.this.name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.metricsSource = new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				writePoolMetrics(sb);
+			}
+		};
+		fill();
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					maintain();
+				} catch (RuntimeException e) {
+					LOG.error("pool maintenance failed", e, "pool", DAO.this.name);
+				}
+			}
+		}, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS);
+		Metrics.register(metricsSource);
+	}
+
+	/**
+	 * 获取默认的连接池(连接MySQL), 第一次调用时创建
+	 *
+	 * @return 连接池
+	 */
+	public static DAO getDefault() {
+		DAO dao = DEFAULT.get();
+		if (dao == null) {
+			DAO created = new DAO("ncps", new ConnectionFactory() {
+				@Override
+				public Connection create() throws SQLException {
+					try {
+						Class.forName(DRIVER);
+					} catch (ClassNotFoundException e) {
+						throw new SQLException("JDBC driver not found: " + DRIVER, e);
+					}
+					return DriverManager.getConnection(URL, USER, PASSWORD);
+				}
+			}, MIN_SIZE, MAX_SIZE, Validation.IDLE);
+			if (DEFAULT.compareAndSet(null, created)) {
+				dao = created;
+			} else {
+				created.close();
+				dao = DEFAULT.get();
+			}
+		}
+		return dao;
+	}
+
+	/**
+	 * 关闭默认的连接池(没有创建时不做任何操作), 在Web应用停止时调用
+	 */
+	public static void closeDefault() {
+		DAO dao = DEFAULT.getAndSet(null);
+		if (dao != null) {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 借出一个连接, 使用后必须调用<b>close()</b>归还
+	 * <p>
+	 * 没有可用连接且已达到最大连接数时, 最多等待<b>BORROW_TIMEOUT</b>
+	 *
+	 * @return 连接
+	 * @throws SQLException
+	 *             连接池已关闭, 等待超时(SQLTimeoutException)或创建连接失败
+	 */
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		if (closed) {
+			throw new SQLException("Connection pool " + name + " is closed");
+		}
+		try {
+			if (!permits.tryAcquire(BORROW_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				timeouts.increment();
+				throw new SQLTimeoutException("Timed out waiting for a connection from pool " + name + " after "
+						+ BORROW_TIMEOUT + " ms (max " + maxSize + ")");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection", e);
+		}
+		try {
+			PooledConnection connection;
+			while ((connection = idle.pollFirst()) != null) {
+				if (usable(connection)) {
+					break;
+				}
+				discard(connection);
+			}
+			if (connection == null) {
+				connection = create();
+			}
+			borrowed.add(connection);
+			borrowWait.record(System.nanoTime() - start);
+			return connection.lend(LEAK_TRACE);
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * 归还一个连接(由连接代理的<b>close()</b>调用)
+	 * <p>
+	 * 未提交的事务被回滚, 自动提交恢复为开启; 出现过连接错误或已过期的连接被关闭
+	 *
+	 * @param connection
+	 *            连接
+	 */
+	void giveBack(PooledConnection connection) {
+		borrowed.remove(connection);
+		try {
+			if (!connection.broken && !connection.raw.getAutoCommit()) {
+				connection.raw.rollback();
+				connection.raw.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			connection.broken = true;
+		}
+		long now = System.currentTimeMillis();
+		if (closed || connection.broken || now - connection.createdAt > MAX_LIFETIME) {
+			discard(connection);
+		} else {
+			connection.lastReturned = now;
+			idle.offerFirst(connection);
+		}
+		permits.release();
+	}
+
+	/**
+	 * 记录一次PreparedStatement缓存命中
+	 */
+	void statementCacheHit() {
+		statementHits.increment();
+	}
+
+	/**
+	 * 记录一次PreparedStatement缓存未命中(需要预编译)
+	 */
+	void statementCacheMiss() {
+		statementMisses.increment();
+	}
+
+	/**
+	 * 关闭连接池: 关闭所有空闲连接, 已借出的连接在归还时关闭
+	 */
+	public void close() {
+		closed = true;
+		maintenance.shutdownNow();
+		Metrics.unregister(metricsSource);
+		PooledConnection connection;
+		while ((connection = idle.pollFirst()) != null) {
+			discard(connection);
+		}
+	}
+
+	/**
+	 * 借出前检查连接是否可用
+	 */
+	private boolean usable(PooledConnection connection) {
+		long now = System.currentTimeMillis();
+		if (now - connection.createdAt > MAX_LIFETIME) {
+			return false;
+		}
+		boolean check = validation == Validation.ALWAYS
+				|| (validation == Validation.IDLE && now - connection.lastReturned > VALIDATE_AFTER_IDLE);
+		if (!check) {
+			return true;
+		}
+		try {
+			if (connection.raw.isValid(VALIDATION_TIMEOUT)) {
+				return true;
+			}
+		} catch (SQLException e) {
+			// 按不可用处理
+		}
+		validationFailures.increment();
+		return false;
+	}
+
+	/**
+	 * 创建一个新的连接
+	 */
+	private PooledConnection create() throws SQLException {
+		total.incrementAndGet();
+		try {
+			PooledConnection connection = new PooledConnection(this, factory.create());
+			created.increment();
+			return connection;
+		} catch (SQLException | RuntimeException e) {
+			total.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * 关闭一个连接
+	 */
+	private void discard(PooledConnection connection) {
+		total.decrementAndGet();
+		closedCount.increment();
+		connection.closeRaw();
+	}
+
+	/**
+	 * 补足最小连接数, 使用借出许可, 不会超过最大连接数
+	 */
+	private void fill() {
+		while (!closed && total.get() < minSize && permits.tryAcquire()) {
+			try {
+				idle.offerLast(create());
+			} catch (SQLException e) {
+				LOG.warn("cannot open connection", "pool", name, "error", e);
+				break;
+			} finally {
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * 定期维护: 检测泄漏, 关闭空闲过久或存在过久的连接, 补足最小连接数
+	 */
+	private void maintain() {
+		long now = System.currentTimeMillis();
+		for (PooledConnection connection : borrowed) {
+			long held = now - connection.borrowedAt;
+			if (held > LEAK_THRESHOLD && !connection.leakReported) {
+				connection.leakReported = true;
+				leaks.increment();
+				LOG.log(Logger.Level.WARN, "connection leak suspected", connection.borrowTrace, "pool", name,
+						"borrower", connection.borrower, "heldMillis", held);
+			}
+		}
+		for (PooledConnection connection : idle) {
+			boolean expired = now - connection.createdAt > MAX_LIFETIME;
+			boolean idleTooLong = now - connection.lastReturned > IDLE_TIMEOUT && total.get() > minSize;
+			if ((expired || idleTooLong) && idle.remove(connection)) {
+				discard(connection);
+			}
+		}
+		fill();
+	}
+
+	/**
+	 * 以Prometheus文本格式输出连接池的统计数据
+	 */
+	private void writePoolMetrics(StringBuilder sb) {
+		String pool = "pool=\"" + name + "\"";
+		int active = borrowed.size();
+		sb.append("# HELP mura_db_pool_connections Open connections by state.\n");
+		sb.append("# TYPE mura_db_pool_connections gauge\n");
+		sb.append("mura_db_pool_connections{").append(pool).append(",state=\"active\"} ").append(active).append('\n');
+		sb.append("mura_db_pool_connections{").append(pool).append(",state=\"idle\"} ")
+				.append(Math.max(total.get() - active, 0)).append('\n');
+		sb.append("# HELP mura_db_pool_max_connections Maximum number of connections.\n");
+		sb.append("# TYPE mura_db_pool_max_connections gauge\n");
+		sb.append("mura_db_pool_max_connections{").append(pool).append("} ").append(maxSize).append('\n');
+		sb.append("# HELP mura_db_pool_borrow_seconds Time spent waiting for a connection.\n");
+		sb.append("# TYPE mura_db_pool_borrow_seconds summary\n");
+		long[] values = borrowWait.quantiles(QUANTILES);
+		for (int i = 0; i < QUANTILES.length; i++) {
+			sb.append("mura_db_pool_borrow_seconds{").append(pool).append(",quantile=\"").append(QUANTILES[i])
+					.append("\"} ").append(values[i] / 1e9).append('\n');
+		}
+		sb.append("mura_db_pool_borrow_seconds_sum{").append(pool).append("} ").append(borrowWait.sum() / 1e9)
+				.append('\n');
+		sb.append("mura_db_pool_borrow_seconds_count{").append(pool).append("} ").append(borrowWait.count())
+				.append('\n');
+		sb.append("# HELP mura_db_pool_events_total Connection pool events.\n");
+		sb.append("# TYPE mura_db_pool_events_total counter\n");
+		appendEvent(sb, pool, "created", created.sum());
+		appendEvent(sb, pool, "closed", closedCount.sum());
+		appendEvent(sb, pool, "timeout", timeouts.sum());
+		appendEvent(sb, pool, "validation_failed", validationFailures.sum());
+		appendEvent(sb, pool, "leak", leaks.sum());
+		appendEvent(sb, pool, "statement_cache_hit", statementHits.sum());
+		appendEvent(sb, pool, "statement_cache_miss", statementMisses.sum());
+	}
+
+	/**
+	 * 输出一个事件计数
+	 */
+	private static void appendEvent(StringBuilder sb, String pool, String event, long value) {
+		sb.append("mura_db_pool_events_total{").append(pool).append(",event=\"").append(event).append("\"} ")
+				.append(value).append('\n');
+	}
 }
@@ -0,0 +1,480 @@
+package edu.sysu.ncps.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mura.servlet.Metrics;
+
+/**
+ * 强度(intensity)的热力图, 按地图瓦片和时间段增量累计
+ * <p>
+ * 瓦片使用Web墨卡托(与常用地图相同的zoom/x/y), 每个点累计到<b>minZoom</b>至<b>maxZoom</b>每一级的瓦片中<br>
+ * 时间分为长度为<b>bucketMillis</b>的时间段, 只保留最近<b>buckets</b>个(环形数组, 新的时间段覆盖最旧的)<br>
+ * 每个时间段中每个有点的瓦片一个累计器: 点数, 有强度的点数, 强度的和, 强度的最大值
+ * <p>
+ * 累计器使用基本类型(AtomicLongArray), 不加锁; 先在一组公共的值上CAS, 出现竞争后才创建分散的槽,
+ * 各线程在自己的槽上累计, 读取时合并(与LongAdder相同)
+ * <p>
+ * 查询一个瓦片时, 返回其中更细一级(<b>detail</b>)的各个子瓦片在时间范围内的合计, 用于绘制这个瓦片
+ *
+ * @author mura
+ */
+public class Heatmap {
+
+	/**
+	 * Web墨卡托的纬度范围
+	 */
+	private static final double MAX_LATITUDE = 85.05112878;
+
+	/**
+	 * 查询最多细分的级数(子瓦片最多4^MAX_DETAIL个)
+	 */
+	public static final int MAX_DETAIL = 4;
+
+	/**
+	 * 累计器的分散槽数(2的幂)
+	 */
+	private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()))
+			* 2;
+
+	/**
+	 * 累计器的字段: 点数, 有强度的点数, 强度的和(double的位), 强度的最大值(double的位)
+	 */
+	private static final int COUNT = 0;
+	private static final int MEASURED = 1;
+	private static final int SUM = 2;
+	private static final int MAX = 3;
+	private static final int FIELDS = 4;
+
+	/**
+	 * 每个分散槽占用的long数(64字节, 不同的槽不在同一个缓存行)
+	 */
+	private static final int STRIDE = 8;
+
+	/**
+	 * 强度最大值的初始值
+	 */
+	private static final long NO_MAX = Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY);
+
+	/**
+	 * Cell: 一个瓦片在时间范围内的合计
+	 *
+	 * @author mura
+	 */
+	public static final class Cell {
+
+		public final int x;
+
+		public final int y;
+
+		/**
+		 * 点数
+		 */
+		public long count;
+
+		/**
+		 * 有强度的点数
+		 */
+		public long measured;
+
+		/**
+		 * 强度的和
+		 */
+		public double sum;
+
+		/**
+		 * 强度的最大值, 没有强度时为<b>NEGATIVE_INFINITY</b>
+		 */
+		public double max = Double.NEGATIVE_INFINITY;
+
+		private Cell(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	/**
+	 * 名称(用于统计)
+	 */
+	private final String name;
+
+	private final int minZoom;
+
+	private final int maxZoom;
+
+	/**
+	 * 时间段的长度(毫秒)
+	 */
+	private final long bucketMillis;
+
+	/**
+	 * 保留的时间段
+	 */
+	private final AtomicReferenceArray<Bucket> ring;
+
+	/**
+	 * 最新的时间段的序号, 早于保留范围的点不再累计
+	 */
+	private final AtomicLong latest = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * 统计数据源
+	 */
+	private final Metrics.Source metricsSource;
+
+	private final LongAdder added = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder queries = new LongAdder();
+
+	/**
+	 * 构造方法
+	 *
+	 * @param name
+	 *            名称(用于统计)
+	 * @param minZoom
+	 *            最小的缩放级别
+	 * @param maxZoom
+	 *            最大的缩放级别(不超过28)
+	 * @param bucketMillis
+	 *            时间段的长度(毫秒)
+	 * @param buckets
+	 *            保留的时间段个数
+	 */
+	public Heatmap(String name, int minZoom, int maxZoom, long bucketMillis, int buckets) {
+		if (minZoom < 0 || maxZoom > 28 || minZoom > maxZoom || bucketMillis <= 0 || buckets <= 0) {
+			throw new IllegalArgumentException("Invalid heatmap settings: zoom " + minZoom + "-" + maxZoom + ", bucket "
+					+ bucketMillis + " ms x " + buckets);
+		}
+		this.name = name;
+		this.minZoom = minZoom;
+		this.maxZoom = maxZoom;
+		this.bucketMillis = bucketMillis;
+		this.ring = new AtomicReferenceArray<Bucket>(buckets);
+		this.metricsSource = new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				writeHeatmapMetrics(sb);
+			}
+		};
+		Metrics.register(metricsSource);
+	}
+
+	/**
+	 * 累计一个点
+	 *
+	 * @param latitude
+	 *            纬度, 超出Web墨卡托范围的按边界计算
+	 * @param longitude
+	 *            经度, -180到180
+	 * @param intensity
+	 *            强度, 可以为<b>null</b>(只计点数)
+	 * @param time
+	 *            时间(毫秒), 早于保留的时间段时不累计
+	 * @return 是否累计
+	 */
+	public boolean add(float latitude, float longitude, Float intensity, long time) {
+		if (!(latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180)) {
+			throw new IllegalArgumentException("Invalid location: " + latitude + "," + longitude);
+		}
+		long index = Math.floorDiv(time, bucketMillis);
+		long newest = latest.get();
+		while (index > newest && !latest.compareAndSet(newest, index)) {
+			newest = latest.get();
+		}
+		newest = Math.max(newest, index);
+		Bucket bucket = index > newest - ring.length() ? bucket(index, true) : null;
+		if (bucket == null) {
+			expired.increment();
+			return false;
+		}
+		double x = tileX(longitude);
+		double y = tileY(latitude);
+		for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+			int scale = 1 << zoom;
+			long key = key(zoom, clamp((int) (x * scale), scale), clamp((int) (y * scale), scale));
+			Accumulator accumulator = bucket.tiles.get(key);
+			if (accumulator == null) {
+				Accumulator created = new Accumulator();
+				accumulator = bucket.tiles.putIfAbsent(key, created);
+				if (accumulator == null) {
+					accumulator = created;
+				}
+			}
+			accumulator.add(intensity);
+		}
+		added.increment();
+		return true;
+	}
+
+	/**
+	 * 查询一个瓦片中各子瓦片在时间范围内的合计
+	 *
+	 * @param zoom
+	 *            瓦片的缩放级别
+	 * @param x
+	 *            瓦片的x
+	 * @param y
+	 *            瓦片的y
+	 * @param detail
+	 *            细分的级数, 子瓦片的缩放级别为<b>zoom + detail</b>(超过maxZoom时减少)
+	 * @param from
+	 *            开始时间(毫秒, 包含所在的时间段)
+	 * @param to
+	 *            结束时间(毫秒, 包含所在的时间段)
+	 * @return 有点的子瓦片, 坐标为子瓦片的缩放级别下的x, y
+	 */
+	public List<Cell> query(int zoom, int x, int y, int detail, long from, long to) {
+		if (zoom < minZoom || zoom > maxZoom || x < 0 || y < 0 || x >= 1 << zoom || y >= 1 << zoom) {
+			throw new IllegalArgumentException("Invalid tile: " + zoom + "/" + x + "/" + y + ", zoom range: " + minZoom
+					+ "-" + maxZoom);
+		}
+		if (detail < 0 || detail > MAX_DETAIL) {
+			throw new IllegalArgumentException("Invalid detail: " + detail + ", range: 0-" + MAX_DETAIL);
+		}
+		queries.increment();
+		int cellZoom = Math.min(maxZoom, zoom + detail);
+		int side = 1 << (cellZoom - zoom);
+		Cell[] cells = new Cell[side * side];
+		long first = Math.floorDiv(from, bucketMillis);
+		long last = Math.floorDiv(to, bucketMillis);
+		// 只查询仍保留的时间段
+		first = Math.max(first, last - ring.length() + 1);
+		double[] values = new double[FIELDS];
+		for (long index = first; index <= last; index++) {
+			Bucket bucket = bucket(index, false);
+			if (bucket == null || bucket.tiles.isEmpty()) {
+				continue;
+			}
+			for (int i = 0; i < side; i++) {
+				for (int j = 0; j < side; j++) {
+					Accumulator accumulator = bucket.tiles.get(key(cellZoom, x * side + i, y * side + j));
+					if (accumulator == null) {
+						continue;
+					}
+					accumulator.read(values);
+					Cell cell = cells[i * side + j];
+					if (cell == null) {
+						cell = new Cell(x * side + i, y * side + j);
+						cells[i * side + j] = cell;
+					}
+					cell.count += (long) values[COUNT];
+					cell.measured += (long) values[MEASURED];
+					cell.sum += values[SUM];
+					cell.max = Math.max(cell.max, values[MAX]);
+				}
+			}
+		}
+		List<Cell> list = new ArrayList<Cell>();
+		for (Cell cell : cells) {
+			if (cell != null) {
+				list.add(cell);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * 最大的缩放级别
+	 */
+	public int getMaxZoom() {
+		return maxZoom;
+	}
+
+	/**
+	 * 关闭(只注销统计)
+	 */
+	public void close() {
+		Metrics.unregister(metricsSource);
+	}
+
+	/**
+	 * 获取时间段
+	 *
+	 * @param index
+	 *            时间段的序号(时间 / bucketMillis)
+	 * @param create
+	 *            不存在时是否创建(覆盖环形数组中同一位置的旧时间段)
+	 * @return 时间段, 已被更新的时间段覆盖或不存在(且不创建)时返回<b>null</b>
+	 */
+	private Bucket bucket(long index, boolean create) {
+		int slot = (int) Math.floorMod(index, (long) ring.length());
+		while (true) {
+			Bucket bucket = ring.get(slot);
+			if (bucket != null && bucket.index == index) {
+				return bucket;
+			}
+			if (!create || (bucket != null && bucket.index > index)) {
+				return null;
+			}
+			if (ring.compareAndSet(slot, bucket, new Bucket(index))) {
+				return ring.get(slot);
+			}
+		}
+	}
+
+	/**
+	 * 经度对应的x(0到1)
+	 */
+	private static double tileX(double longitude) {
+		return (longitude + 180) / 360;
+	}
+
+	/**
+	 * 纬度对应的y(0到1, 北边为0)
+	 */
+	private static double tileY(double latitude) {
+		double phi = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+		return (1 - Math.log(Math.tan(phi) + 1 / Math.cos(phi)) / Math.PI) / 2;
+	}
+
+	private static int clamp(int value, int scale) {
+		return Math.max(0, Math.min(scale - 1, value));
+	}
+
+	/**
+	 * 瓦片的键: zoom(5位), x(29位), y(29位)
+	 */
+	private static long key(int zoom, int x, int y) {
+		return (long) zoom << 58 | (long) x << 29 | y;
+	}
+
+	/**
+	 * 以Prometheus文本格式输出统计数据
+	 */
+	private void writeHeatmapMetrics(StringBuilder sb) {
+		String heatmap = "heatmap=\"" + name + "\"";
+		long tiles = 0;
+		for (int i = 0; i < ring.length(); i++) {
+			Bucket bucket = ring.get(i);
+			if (bucket != null) {
+				tiles += bucket.tiles.size();
+			}
+		}
+		sb.append("# HELP mura_heatmap_tiles Tile accumulators held across all time buckets.\n");
+		sb.append("# TYPE mura_heatmap_tiles gauge\n");
+		sb.append("mura_heatmap_tiles{").append(heatmap).append("} ").append(tiles).append('\n');
+		sb.append("# HELP mura_heatmap_points_total Points by result.\n");
+		sb.append("# TYPE mura_heatmap_points_total counter\n");
+		sb.append("mura_heatmap_points_total{").append(heatmap).append(",result=\"added\"} ").append(added.sum())
+				.append('\n');
+		sb.append("mura_heatmap_points_total{").append(heatmap).append(",result=\"expired\"} ").append(expired.sum())
+				.append('\n');
+		sb.append("# HELP mura_heatmap_queries_total Tile queries.\n");
+		sb.append("# TYPE mura_heatmap_queries_total counter\n");
+		sb.append("mura_heatmap_queries_total{").append(heatmap).append("} ").append(queries.sum()).append('\n');
+	}
+
+	/**
+	 * 一个时间段
+	 */
+	private static final class Bucket {
+
+		/**
+		 * 时间段的序号
+		 */
+		private final long index;
+
+		/**
+		 * 各瓦片的累计器
+		 */
+		private final ConcurrentHashMap<Long, Accumulator> tiles = new ConcurrentHashMap<Long, Accumulator>();
+
+		private Bucket(long index) {
+			this.index = index;
+		}
+	}
+
+	/**
+	 * 一个瓦片的累计器
+	 * <p>
+	 * 先在<b>base</b>上CAS; CAS失败(有竞争)时创建分散的槽, 之后按线程选择槽累计, 只有同一个槽的线程之间竞争
+	 */
+	private static final class Accumulator {
+
+		private static final AtomicReferenceFieldUpdater<Accumulator, AtomicLongArray> STRIPES_UPDATER =
+				AtomicReferenceFieldUpdater.newUpdater(Accumulator.class, AtomicLongArray.class, "stripes");
+
+		private final AtomicLongArray base = newFields(1);
+
+		/**
+		 * 分散的槽, 没有竞争时为<b>null</b>
+		 */
+		private volatile AtomicLongArray stripes;
+
+		private void add(Float intensity) {
+			AtomicLongArray fields = stripes;
+			if (fields == null) {
+				if (tryAdd(base, 0, intensity)) {
+					return;
+				}
+				// 有竞争, 创建分散的槽(只有一个线程的创建有效)
+				STRIPES_UPDATER.compareAndSet(this, null, newFields(STRIPES));
+				fields = stripes;
+			}
+			int offset = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+			while (!tryAdd(fields, offset, intensity)) {
+				// 同一个槽的竞争, 重试
+			}
+		}
+
+		/**
+		 * 尝试在一个槽上累计: 点数只用一次CAS, 失败时返回<b>false</b>, 成功后其他字段累计到成功为止
+		 */
+		private static boolean tryAdd(AtomicLongArray fields, int offset, Float intensity) {
+			long count = fields.get(offset + COUNT);
+			if (!fields.compareAndSet(offset + COUNT, count, count + 1)) {
+				return false;
+			}
+			if (intensity != null) {
+				double value = intensity;
+				fields.getAndIncrement(offset + MEASURED);
+				long bits;
+				do {
+					bits = fields.get(offset + SUM);
+				} while (!fields.compareAndSet(offset + SUM, bits,
+						Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + value)));
+				do {
+					bits = fields.get(offset + MAX);
+				} while (value > Double.longBitsToDouble(bits)
+						&& !fields.compareAndSet(offset + MAX, bits, Double.doubleToRawLongBits(value)));
+			}
+			return true;
+		}
+
+		/**
+		 * 读取合并后的值
+		 *
+		 * @param values
+		 *            写入各字段的值(点数, 有强度的点数, 和, 最大值)
+		 */
+		private void read(double[] values) {
+			values[COUNT] = base.get(COUNT);
+			values[MEASURED] = base.get(MEASURED);
+			values[SUM] = Double.longBitsToDouble(base.get(SUM));
+			values[MAX] = Double.longBitsToDouble(base.get(MAX));
+			AtomicLongArray fields = stripes;
+			if (fields != null) {
+				for (int offset = 0; offset < fields.length(); offset += STRIDE) {
+					values[COUNT] += fields.get(offset + COUNT);
+					values[MEASURED] += fields.get(offset + MEASURED);
+					values[SUM] += Double.longBitsToDouble(fields.get(offset + SUM));
+					values[MAX] = Math.max(values[MAX], Double.longBitsToDouble(fields.get(offset + MAX)));
+				}
+			}
+		}
+
+		private static AtomicLongArray newFields(int stripes) {
+			AtomicLongArray fields = new AtomicLongArray(stripes * STRIDE);
+			for (int offset = 0; offset < fields.length(); offset += STRIDE) {
+				fields.set(offset + MAX, NO_MAX);
+			}
+			return fields;
+		}
+	}
+}
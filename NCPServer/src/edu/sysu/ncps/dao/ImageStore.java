@@ -0,0 +1,393 @@
+package edu.sysu.ncps.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mura.servlet.Logger;
+import org.mura.servlet.Metrics;
+
+/**
+ * 图片存储: 按内容(SHA-256)寻址, 相同的图片只保存一份
+ * <p>
+ * 图片保存为<b>根目录/ab/cd/abcd...</b>(哈希值的前两个字节作为两级目录, 每个目录中的文件数有限)<br>
+ * 写入时先写临时文件(FileChannel), 刷盘后重命名为最终的文件名: 文件存在时内容一定完整
+ * <p>
+ * 去重: 内存中的布隆过滤器记录已保存的哈希值(启动时后台扫描已有的文件)<br>
+ * 过滤器中没有的哈希值一定不存在, 直接写入; 过滤器中可能有的再检查文件是否存在<br>
+ * 扫描完成前, 已有的图片可能被重复写入一次(内容相同, 不影响正确性)
+ * <p>
+ * 缩略图(Thumbnailer生成)保存在原图的同一个目录, 文件名为<b>哈希值-长边.jpg</b>
+ * <p>
+ * 默认的图片存储通过<b>getDefault()</b>获取, 目录可以用系统属性<b>ncps.image.dir</b>设置
+ *
+ * @author mura
+ */
+public class ImageStore {
+
+	/**
+	 * 默认的目录, 在Tomcat目录(或当前目录)下
+	 */
+	private static final File DEFAULT_DIR = new File(System.getProperty("ncps.image.dir",
+			new File(System.getProperty("catalina.base", System.getProperty("user.dir")), "ncps-images").getPath()));
+
+	/**
+	 * 布隆过滤器的位数(2的幂)
+	 */
+	private static final int FILTER_BITS = 1 << 24;
+
+	/**
+	 * 布隆过滤器的哈希函数个数
+	 */
+	private static final int FILTER_HASHES = 4;
+
+	/**
+	 * 临时文件的目录名
+	 */
+	private static final String TEMP_DIR = "tmp";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final Logger LOG = Logger.get("ImageStore");
+
+	private static final AtomicReference<ImageStore> DEFAULT = new AtomicReference<ImageStore>();
+
+	/**
+	 * 名称(用于日志和统计)
+	 */
+	private final String name;
+
+	/**
+	 * 根目录
+	 */
+	private final Path root;
+
+	/**
+	 * 临时文件的目录
+	 */
+	private final Path temp;
+
+	/**
+	 * 已保存的哈希值的布隆过滤器, 每个long保存64位
+	 */
+	private final AtomicLongArray filter = new AtomicLongArray(FILTER_BITS / 64);
+
+	/**
+	 * 统计数据源
+	 */
+	private final Metrics.Source metricsSource;
+
+	private final LongAdder stored = new LongAdder();
+	private final LongAdder storedBytes = new LongAdder();
+	private final LongAdder duplicates = new LongAdder();
+	private final LongAdder filterChecks = new LongAdder();
+
+	/**
+	 * 构造方法, 创建目录, 后台扫描已有的图片
+	 *
+	 * @param name
+	 *            名称(用于日志和统计)
+	 * @param dir
+	 *            根目录
+	 * @throws IOException
+	 */
+	public ImageStore(String name, File dir) throws IOException {
+		this(name, dir, true);
+	}
+
+	/**
+	 * 构造方法, 创建目录
+	 *
+	 * @param scan
+	 *            是否立即开始后台扫描, 为<b>false</b>时由<b>startScan()</b>开始
+	 */
+	private ImageStore(String name, File dir, boolean scan) throws IOException {
+		this.name = name;
+		this.root = dir.toPath();
+		this.temp = root.resolve(TEMP_DIR);
+		Files.createDirectories(temp);
+		this.metricsSource = new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				writeStoreMetrics(sb);
+			}
+		};
+		if (scan) {
+			startScan();
+		}
+		Metrics.register(metricsSource);
+	}
+
+	/**
+	 * 获取默认的图片存储, 第一次调用时创建
+	 *
+	 * @return 图片存储
+	 * @throws IOException
+	 *             无法创建目录
+	 */
+	public static ImageStore getDefault() throws IOException {
+		ImageStore store = DEFAULT.get();
+		if (store == null) {
+			// 只有成为默认的图片存储后才开始扫描, 竞争失败的不启动扫描线程
+			ImageStore created = new ImageStore("ncps", DEFAULT_DIR, false);
+			if (DEFAULT.compareAndSet(null, created)) {
+				created.startScan();
+				store = created;
+			} else {
+				created.close();
+				store = DEFAULT.get();
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * 保存图片, 已经存在时不写入
+	 *
+	 * @param data
+	 *            图片内容
+	 * @return 哈希值(64位小写十六进制)
+	 * @throws IOException
+	 */
+	public String put(byte[] data) throws IOException {
+		byte[] digest = sha256(data);
+		String hash = hex(digest);
+		Path file = path(hash);
+		if (mightContain(digest)) {
+			filterChecks.increment();
+			if (Files.exists(file)) {
+				duplicates.increment();
+				return hash;
+			}
+		}
+		write(file, data);
+		add(digest);
+		stored.increment();
+		storedBytes.add(data.length);
+		return hash;
+	}
+
+	/**
+	 * 写入文件: 先写临时文件并刷盘, 再重命名为目标文件
+	 *
+	 * @param file
+	 *            目标文件, 已存在时被替换
+	 * @param data
+	 *            内容
+	 * @throws IOException
+	 */
+	void write(Path file, byte[] data) throws IOException {
+		Files.createDirectories(file.getParent());
+		Path tempFile = Files.createTempFile(temp, file.getFileName().toString().substring(0, 8), null);
+		try {
+			try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(false);
+			}
+			// 同时写入相同的图片时, 后重命名的覆盖先重命名的, 内容相同
+			Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	/**
+	 * 哈希值对应的缩略图文件(与原图在同一个目录, 不检查是否存在)
+	 *
+	 * @param hash
+	 *            原图的哈希值, 必须是<b>isHash()</b>为true的字符串
+	 * @param size
+	 *            缩略图的长边
+	 * @return 文件路径
+	 */
+	public Path thumbnailPath(String hash, int size) {
+		return path(hash).resolveSibling(hash + "-" + size + ".jpg");
+	}
+
+	/**
+	 * 哈希值对应的文件(不检查是否存在)
+	 *
+	 * @param hash
+	 *            哈希值, 必须是<b>isHash()</b>为true的字符串
+	 * @return 文件路径
+	 */
+	public Path path(String hash) {
+		return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+	}
+
+	/**
+	 * 是否是合法的哈希值(64位小写十六进制), 用于检查客户端传入的值
+	 */
+	public static boolean isHash(String value) {
+		if (value == null || value.length() != 64) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 关闭(只注销统计, 写入是同步的)
+	 */
+	public void close() {
+		Metrics.unregister(metricsSource);
+	}
+
+	/**
+	 * 关闭默认的图片存储
+	 */
+	public static void closeDefault() {
+		ImageStore store = DEFAULT.getAndSet(null);
+		if (store != null) {
+			store.close();
+		}
+	}
+
+	/**
+	 * 启动后台扫描线程
+	 */
+	private void startScan() {
+		Thread scanner = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				scan();
+			}
+		}, "mura-image-scan-" + name);
+		scanner.setDaemon(true);
+		scanner.start();
+	}
+
+	/**
+	 * 扫描已有的图片, 加入过滤器
+	 */
+	private void scan() {
+		long count = 0;
+		try (DirectoryStream<Path> level1 = Files.newDirectoryStream(root)) {
+			for (Path dir1 : level1) {
+				if (!Files.isDirectory(dir1) || dir1.getFileName().toString().length() != 2) {
+					continue;
+				}
+				try (DirectoryStream<Path> level2 = Files.newDirectoryStream(dir1)) {
+					for (Path dir2 : level2) {
+						try (DirectoryStream<Path> files = Files.newDirectoryStream(dir2)) {
+							for (Path file : files) {
+								String hash = file.getFileName().toString();
+								if (isHash(hash)) {
+									add(unhex(hash));
+									count++;
+								}
+							}
+						}
+					}
+				}
+			}
+			LOG.info("image store scanned", "store", name, "images", count);
+		} catch (IOException | RuntimeException e) {
+			LOG.error("image store scan failed", e, "store", name, "images", count);
+		}
+	}
+
+	/**
+	 * 哈希值是否可能已经保存
+	 */
+	private boolean mightContain(byte[] digest) {
+		for (int i = 0; i < FILTER_HASHES; i++) {
+			int bit = bit(digest, i);
+			if ((filter.get(bit >>> 6) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 将哈希值加入过滤器
+	 */
+	private void add(byte[] digest) {
+		for (int i = 0; i < FILTER_HASHES; i++) {
+			int bit = bit(digest, i);
+			long mask = 1L << bit;
+			int index = bit >>> 6;
+			long value;
+			while (((value = filter.get(index)) & mask) == 0 && !filter.compareAndSet(index, value, value | mask)) {
+				// 重试
+			}
+		}
+	}
+
+	/**
+	 * 第i个哈希函数的位: SHA-256的结果已经均匀分布, 直接取其中的4个字节
+	 */
+	private static int bit(byte[] digest, int i) {
+		int offset = i * 4;
+		int value = (digest[offset] & 0xff) << 24 | (digest[offset + 1] & 0xff) << 16
+				| (digest[offset + 2] & 0xff) << 8 | (digest[offset + 3] & 0xff);
+		return value & (FILTER_BITS - 1);
+	}
+
+	private static byte[] sha256(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			// 所有JDK都支持SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	private static byte[] unhex(String hash) {
+		byte[] bytes = new byte[hash.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (Character.digit(hash.charAt(i * 2), 16) << 4 | Character.digit(hash.charAt(i * 2 + 1), 16));
+		}
+		return bytes;
+	}
+
+	/**
+	 * 以Prometheus文本格式输出统计数据
+	 */
+	private void writeStoreMetrics(StringBuilder sb) {
+		String store = "store=\"" + name + "\"";
+		sb.append("# HELP mura_image_store_puts_total Image writes by result.\n");
+		sb.append("# TYPE mura_image_store_puts_total counter\n");
+		sb.append("mura_image_store_puts_total{").append(store).append(",result=\"stored\"} ").append(stored.sum())
+				.append('\n');
+		sb.append("mura_image_store_puts_total{").append(store).append(",result=\"duplicate\"} ")
+				.append(duplicates.sum()).append('\n');
+		sb.append("# HELP mura_image_store_stored_bytes_total Bytes written for new images.\n");
+		sb.append("# TYPE mura_image_store_stored_bytes_total counter\n");
+		sb.append("mura_image_store_stored_bytes_total{").append(store).append("} ").append(storedBytes.sum())
+				.append('\n');
+		sb.append("# HELP mura_image_store_filter_checks_total Puts the filter could not rule out (checked on disk).\n");
+		sb.append("# TYPE mura_image_store_filter_checks_total counter\n");
+		sb.append("mura_image_store_filter_checks_total{").append(store).append("} ").append(filterChecks.sum())
+				.append('\n');
+	}
+}
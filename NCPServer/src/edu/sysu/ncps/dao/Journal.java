@@ -0,0 +1,681 @@
+package edu.sysu.ncps.dao;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.mura.servlet.LatencyHistogram;
+import org.mura.servlet.Logger;
+import org.mura.servlet.Metrics;
+
+/**
+ * 本地的只追加日志(预写日志)
+ * <p>
+ * 日志由多个固定大小的段文件组成, 每个段文件整个映射到内存(MappedByteBuffer), 追加记录只是内存复制<br>
+ * 每条记录的格式为: 长度(4字节), CRC32(4字节), 内容; 长度为0表示段中后面没有记录(段文件创建时以0填充)<br>
+ * 当前段放不下新的记录时, 创建下一个段(文件名为段序号)
+ * <p>
+ * 位置: 段序号和段内偏移组成的long(高32位为段序号), 按写入顺序递增
+ * <p>
+ * 刷盘策略(<b>Sync</b>):
+ * <p>
+ * 1、ALWAYS: 每次追加后刷盘再返回, 同时追加的多条记录共用一次刷盘<br>
+ * 2、INTERVAL: 每<b>SYNC_INTERVAL</b>刷盘一次, 进程崩溃不丢数据(数据已在页缓存中), 系统崩溃最多丢失一个间隔的记录<br>
+ * 3、NEVER: 不主动刷盘, 由操作系统决定
+ * <p>
+ * 只有一个读取者: <b>read()</b>从读取位置依次读出记录, 处理完成后调用<b>acknowledge()</b>写入检查点,
+ * 检查点之前的段文件被删除<br>
+ * 打开时进行恢复: 从检查点开始读取, 最后一个段中校验失败的部分(崩溃时未写完的记录)被清零
+ * <p>
+ * 追加和刷盘在持有锁时会进行文件I/O(刷盘, 切换段时创建和映射文件), 使用ReentrantLock而不是synchronized,
+ * 虚拟线程等待时不占住载体线程
+ *
+ * @author mura
+ */
+public class Journal implements Closeable {
+
+	/**
+	 * 记录头的长度(长度和CRC32)
+	 */
+	private static final int HEADER = 8;
+
+	/**
+	 * 段文件的扩展名
+	 */
+	private static final String SUFFIX = ".seg";
+
+	/**
+	 * 检查点文件名
+	 */
+	private static final String CHECKPOINT = "checkpoint";
+
+	/**
+	 * INTERVAL策略的刷盘间隔(毫秒)
+	 */
+	private static final long SYNC_INTERVAL = 200;
+
+	/**
+	 * 统计输出的分位数
+	 */
+	private static final double[] QUANTILES = { 0.5, 0.99 };
+
+	private static final Logger LOG = Logger.get("Journal");
+
+	/**
+	 * Sync: 刷盘策略
+	 *
+	 * @author mura
+	 */
+	public static enum Sync {
+		ALWAYS, INTERVAL, NEVER
+	}
+
+	/**
+	 * 名称(用于日志和统计)
+	 */
+	private final String name;
+
+	/**
+	 * 日志目录
+	 */
+	private final File dir;
+
+	/**
+	 * 段文件的大小
+	 */
+	private final int segmentSize;
+
+	/**
+	 * 最多的段文件个数, 超出时追加失败
+	 */
+	private final int maxSegments;
+
+	private final Sync sync;
+
+	/**
+	 * 打开的段文件, 键为段序号
+	 */
+	private final ConcurrentNavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+
+	/**
+	 * 追加时的锁
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/**
+	 * 刷盘时的锁
+	 */
+	private final ReentrantLock syncLock = new ReentrantLock();
+
+	/**
+	 * 当前写入的段
+	 */
+	private volatile Segment head;
+
+	/**
+	 * 当前段中下一条记录的偏移
+	 */
+	private int writeOffset;
+
+	/**
+	 * 已写完的记录之后的位置, 读取者只读到这里
+	 */
+	private volatile long written;
+
+	/**
+	 * 已刷盘的位置
+	 */
+	private volatile long synced;
+
+	/**
+	 * 读取者的下一条记录的位置
+	 */
+	private long readPosition;
+
+	/**
+	 * 已写入检查点的位置
+	 */
+	private volatile long checkpoint;
+
+	/**
+	 * INTERVAL策略的刷盘线程
+	 */
+	private final ScheduledExecutorService syncer;
+
+	/**
+	 * 统计数据源
+	 */
+	private final Metrics.Source metricsSource;
+
+	/**
+	 * 每次刷盘的时间(纳秒)
+	 */
+	private final LatencyHistogram syncTimes = new LatencyHistogram();
+
+	private final LongAdder appended = new LongAdder();
+	private final LongAdder appendedBytes = new LongAdder();
+	private final LongAdder readCount = new LongAdder();
+	private final LongAdder corrupted = new LongAdder();
+
+	/**
+	 * 是否已关闭
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * 打开日志(目录不存在时创建), 并从检查点恢复
+	 *
+	 * @param name
+	 *            名称(用于日志和统计)
+	 * @param dir
+	 *            日志目录, 只能被一个Journal使用
+	 * @param segmentSize
+	 *            段文件的大小
+	 * @param maxSegments
+	 *            最多的段文件个数
+	 * @param sync
+	 *            刷盘策略
+	 * @throws IOException
+	 */
+	public Journal(String name, File dir, int segmentSize, int maxSegments, Sync sync) throws IOException {
+		if (segmentSize <= HEADER || maxSegments <= 0) {
+			throw new IllegalArgumentException("Invalid journal size: segment " + segmentSize + ", max " + maxSegments);
+		}
+		this.name = name;
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+		this.sync = sync;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create journal directory: " + dir);
+		}
+		recover();
+		if (sync == Sync.INTERVAL) {
+			this.syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "mura-journal-sync-" + Journal.this.name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			syncer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sync(written);
+					} catch (IOException | RuntimeException e) {
+						LOG.error("journal sync failed", e, "journal", Journal.this.name);
+					}
+				}
+			}, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+		} else {
+			this.syncer = null;
+		}
+		this.metricsSource = new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				writeJournalMetrics(sb);
+			}
+		};
+		Metrics.register(metricsSource);
+	}
+
+	/**
+	 * 追加一条记录, 按刷盘策略返回
+	 *
+	 * @param data
+	 *            记录内容, 不能为空
+	 * @return 记录之后的位置
+	 * @throws IOException
+	 *             记录超过段大小, 段文件个数已达上限, 或写入失败
+	 */
+	public long append(byte[] data) throws IOException {
+		long position = appendDeferred(data);
+		awaitDurable(position);
+		return position;
+	}
+
+	/**
+	 * 追加一条记录, 不等待刷盘; 之后对最后一条的位置调用<b>awaitDurable()</b>, 连续追加的多条记录共用一次刷盘
+	 *
+	 * @param data
+	 *            记录内容, 不能为空
+	 * @return 记录之后的位置
+	 * @throws IOException
+	 *             记录超过段大小, 段文件个数已达上限, 或写入失败
+	 */
+	public long appendDeferred(byte[] data) throws IOException {
+		if (data.length == 0) {
+			throw new IllegalArgumentException("Empty journal record");
+		}
+		if (data.length > segmentSize - HEADER) {
+			throw new IOException("Journal record too large: " + data.length + " bytes");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		long position;
+		writeLock.lock();
+		try {
+			if (closed) {
+				throw new IOException("Journal " + name + " is closed");
+			}
+			if (writeOffset + HEADER + data.length > segmentSize) {
+				roll();
+			}
+			ByteBuffer buffer = head.buffer;
+			// 先写内容和CRC, 最后写长度: 长度不为0时记录已完整
+			buffer.position(writeOffset + HEADER);
+			buffer.put(data);
+			buffer.putInt(writeOffset + 4, (int) crc.getValue());
+			buffer.putInt(writeOffset, data.length);
+			writeOffset += HEADER + data.length;
+			position = position(head.id, writeOffset);
+			written = position;
+		} finally {
+			writeLock.unlock();
+		}
+		appended.increment();
+		appendedBytes.add(HEADER + data.length);
+		return position;
+	}
+
+	/**
+	 * 按刷盘策略等待追加的记录落盘: ALWAYS时刷盘到指定位置, 其他策略直接返回
+	 *
+	 * @param position
+	 *            位置(<b>appendDeferred()</b>的返回值)
+	 * @throws IOException
+	 */
+	public void awaitDurable(long position) throws IOException {
+		if (sync == Sync.ALWAYS) {
+			sync(position);
+		}
+	}
+
+	/**
+	 * 刷盘到指定位置: 已经有其他线程刷到这个位置时直接返回
+	 *
+	 * @param position
+	 *            位置
+	 * @throws IOException
+	 */
+	public void sync(long position) throws IOException {
+		if (synced >= position) {
+			return;
+		}
+		syncLock.lock();
+		try {
+			if (synced >= position) {
+				return;
+			}
+			// 之前的段在切换时已经刷盘, 只需要刷当前段; 这次刷盘也包含了等待锁期间其他线程追加的记录
+			long target = written;
+			Segment segment = head;
+			long start = System.nanoTime();
+			segment.buffer.force();
+			syncTimes.record(System.nanoTime() - start);
+			synced = target;
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * 从读取位置读出记录(只能由一个线程调用)
+	 *
+	 * @param records
+	 *            读出的记录添加到这里
+	 * @param max
+	 *            最多读出的记录数
+	 * @return 读出的最后一条记录之后的位置, 处理完后传给<b>acknowledge()</b>
+	 */
+	public long read(List<byte[]> records, int max) {
+		long position = readPosition;
+		long end = written;
+		int count = 0;
+		while (count < max && position < end) {
+			int id = segmentId(position);
+			int offset = offset(position);
+			Segment segment = segments.get(id);
+			if (segment == null) {
+				// 段文件丢失(如被手动删除), 跳到下一个段
+				position = position(id + 1, 0);
+				continue;
+			}
+			ByteBuffer buffer = segment.buffer.duplicate();
+			int length = offset + HEADER <= segmentSize ? buffer.getInt(offset) : 0;
+			if (length == 0) {
+				if (id < segmentId(end)) {
+					position = position(id + 1, 0);
+					continue;
+				}
+				break;
+			}
+			if (length < 0 || offset + HEADER + length > segmentSize) {
+				corrupt(id, offset, "invalid length " + length);
+				position = position(id + 1, 0);
+				continue;
+			}
+			byte[] data = new byte[length];
+			buffer.position(offset + HEADER);
+			buffer.get(data);
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, length);
+			if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+				corrupt(id, offset, "CRC mismatch");
+				position = position(id + 1, 0);
+				continue;
+			}
+			records.add(data);
+			position = position(id, offset + HEADER + length);
+			count++;
+		}
+		readPosition = position;
+		readCount.add(count);
+		return position;
+	}
+
+	/**
+	 * 确认位置之前的记录已处理: 写入检查点, 删除之前的段文件
+	 * <p>
+	 * 检查点先写入临时文件, 刷盘后再替换, 崩溃时检查点为旧的或新的位置, 不会损坏
+	 *
+	 * @param position
+	 *            <b>read()</b>返回的位置
+	 * @throws IOException
+	 */
+	public void acknowledge(long position) throws IOException {
+		if (position <= checkpoint) {
+			return;
+		}
+		File temp = new File(dir, CHECKPOINT + ".tmp");
+		try (RandomAccessFile file = new RandomAccessFile(temp, "rw")) {
+			file.setLength(0);
+			file.writeLong(position);
+			file.writeLong(~position);
+			file.getFD().sync();
+		}
+		Files.move(temp.toPath(), new File(dir, CHECKPOINT).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		checkpoint = position;
+		int id = segmentId(position);
+		for (Segment segment : segments.headMap(id).values()) {
+			segments.remove(segment.id);
+			// 映射在MappedByteBuffer被回收时释放, Linux下删除已映射的文件不受影响
+			if (!segment.file.delete()) {
+				LOG.warn("cannot delete journal segment", "journal", name, "file", segment.file.getName());
+			}
+		}
+	}
+
+	/**
+	 * 尚未确认的字节数(估计值)
+	 */
+	public long backlog() {
+		long end = written;
+		long start = checkpoint;
+		return (long) (segmentId(end) - segmentId(start)) * segmentSize + offset(end) - offset(start);
+	}
+
+	/**
+	 * 关闭: 刷盘并关闭所有段文件
+	 */
+	@Override
+	public void close() throws IOException {
+		writeLock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		} finally {
+			writeLock.unlock();
+		}
+		if (syncer != null) {
+			syncer.shutdownNow();
+		}
+		Metrics.unregister(metricsSource);
+		if (sync != Sync.NEVER) {
+			head.buffer.force();
+		}
+		segments.clear();
+	}
+
+	/**
+	 * 打开时恢复: 读取检查点, 删除已确认的段, 找到最后一个段中有效记录的结尾
+	 */
+	private void recover() throws IOException {
+		long position = readCheckpoint();
+		int first = segmentId(position);
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String fileName = file.getName();
+				if (!fileName.endsWith(SUFFIX)) {
+					continue;
+				}
+				int id;
+				try {
+					id = Integer.parseInt(fileName.substring(0, fileName.length() - SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				if (id < first) {
+					file.delete();
+				} else {
+					segments.put(id, Segment.open(file, id, segmentSize));
+				}
+			}
+		}
+		if (segments.isEmpty()) {
+			head = Segment.open(segmentFile(first), first, segmentSize);
+			segments.put(first, head);
+			writeOffset = 0;
+			position = position(first, 0);
+		} else {
+			head = segments.lastEntry().getValue();
+			writeOffset = scan(head);
+			if (!segments.containsKey(first)) {
+				position = position(segments.firstKey(), 0);
+			}
+		}
+		readPosition = position;
+		checkpoint = position;
+		written = position(head.id, writeOffset);
+		synced = written;
+		LOG.info("journal opened", "journal", name, "segments", segments.size(), "checkpoint",
+				segmentId(position) + ":" + offset(position), "end", head.id + ":" + writeOffset);
+	}
+
+	/**
+	 * 读取检查点, 不存在或损坏时返回0
+	 */
+	private long readCheckpoint() throws IOException {
+		File file = new File(dir, CHECKPOINT);
+		if (!file.isFile()) {
+			return 0;
+		}
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			if (in.length() == 16) {
+				long position = in.readLong();
+				if (in.readLong() == ~position) {
+					return position;
+				}
+			}
+		}
+		LOG.warn("journal checkpoint corrupted, replaying all segments", "journal", name);
+		return 0;
+	}
+
+	/**
+	 * 找到段中有效记录的结尾, 之后的部分清零(崩溃时未写完的记录)
+	 *
+	 * @return 结尾的偏移
+	 */
+	private int scan(Segment segment) {
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int offset = 0;
+		CRC32 crc = new CRC32();
+		while (offset + HEADER <= segmentSize) {
+			int length = buffer.getInt(offset);
+			if (length <= 0 || offset + HEADER + length > segmentSize) {
+				break;
+			}
+			byte[] data = new byte[length];
+			buffer.position(offset + HEADER);
+			buffer.get(data);
+			crc.reset();
+			crc.update(data, 0, length);
+			if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+				break;
+			}
+			offset += HEADER + length;
+		}
+		int end = offset;
+		if (offset + HEADER <= segmentSize && buffer.getInt(offset) != 0) {
+			corrupt(segment.id, offset, "incomplete record");
+		}
+		for (int i = end; i < segmentSize; i++) {
+			if (buffer.get(i) != 0) {
+				buffer.put(i, (byte) 0);
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * 切换到下一个段, 旧段先刷盘(调用时持有writeLock)
+	 */
+	private void roll() throws IOException {
+		Segment old = head;
+		if (segments.size() >= maxSegments) {
+			throw new IOException("Journal " + name + " is full: " + segments.size() + " segments");
+		}
+		if (sync != Sync.NEVER) {
+			old.buffer.force();
+		}
+		Segment segment = Segment.open(segmentFile(old.id + 1), old.id + 1, segmentSize);
+		segments.put(segment.id, segment);
+		head = segment;
+		writeOffset = 0;
+	}
+
+	/**
+	 * 记录一条损坏的记录
+	 */
+	private void corrupt(int id, int offset, String reason) {
+		corrupted.increment();
+		LOG.error("journal record corrupted, skipping rest of segment", null, "journal", name, "segment", id,
+				"offset", offset, "reason", reason);
+	}
+
+	private File segmentFile(int id) {
+		return new File(dir, String.format("%010d", id) + SUFFIX);
+	}
+
+	private static long position(int id, int offset) {
+		return ((long) id << 32) | offset;
+	}
+
+	private static int segmentId(long position) {
+		return (int) (position >>> 32);
+	}
+
+	private static int offset(long position) {
+		return (int) position;
+	}
+
+	/**
+	 * 以Prometheus文本格式输出统计数据
+	 */
+	private void writeJournalMetrics(StringBuilder sb) {
+		String journal = "journal=\"" + name + "\"";
+		sb.append("# HELP mura_journal_records_total Journal records by operation.\n");
+		sb.append("# TYPE mura_journal_records_total counter\n");
+		appendRecords(sb, journal, "appended", appended.sum());
+		appendRecords(sb, journal, "read", readCount.sum());
+		appendRecords(sb, journal, "corrupted", corrupted.sum());
+		sb.append("# HELP mura_journal_appended_bytes_total Bytes appended to the journal.\n");
+		sb.append("# TYPE mura_journal_appended_bytes_total counter\n");
+		sb.append("mura_journal_appended_bytes_total{").append(journal).append("} ").append(appendedBytes.sum())
+				.append('\n');
+		sb.append("# HELP mura_journal_backlog_bytes Bytes not yet acknowledged.\n");
+		sb.append("# TYPE mura_journal_backlog_bytes gauge\n");
+		sb.append("mura_journal_backlog_bytes{").append(journal).append("} ").append(backlog()).append('\n');
+		sb.append("# HELP mura_journal_segments Open segment files.\n");
+		sb.append("# TYPE mura_journal_segments gauge\n");
+		sb.append("mura_journal_segments{").append(journal).append("} ").append(segments.size()).append('\n');
+		sb.append("# HELP mura_journal_sync_seconds Time spent forcing the journal to disk.\n");
+		sb.append("# TYPE mura_journal_sync_seconds summary\n");
+		long[] values = syncTimes.quantiles(QUANTILES);
+		for (int i = 0; i < QUANTILES.length; i++) {
+			sb.append("mura_journal_sync_seconds{").append(journal).append(",quantile=\"").append(QUANTILES[i])
+					.append("\"} ").append(values[i] / 1e9).append('\n');
+		}
+		sb.append("mura_journal_sync_seconds_sum{").append(journal).append("} ").append(syncTimes.sum() / 1e9)
+				.append('\n');
+		sb.append("mura_journal_sync_seconds_count{").append(journal).append("} ").append(syncTimes.count())
+				.append('\n');
+	}
+
+	/**
+	 * 输出一个记录数
+	 */
+	private static void appendRecords(StringBuilder sb, String journal, String operation, long value) {
+		sb.append("mura_journal_records_total{").append(journal).append(",operation=\"").append(operation)
+				.append("\"} ").append(value).append('\n');
+	}
+
+	/**
+	 * 一个段文件
+	 *
+	 * @author mura
+	 */
+	private static class Segment {
+
+		private final int id;
+
+		private final File file;
+
+		/**
+		 * 整个文件的映射
+		 */
+		private final MappedByteBuffer buffer;
+
+		private Segment(int id, File file, MappedByteBuffer buffer) {
+			this.id = id;
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * 打开段文件, 不存在时创建(以0填充)
+		 */
+		static Segment open(File file, int id, int size) throws IOException {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				if (raf.length() != size) {
+					raf.setLength(size);
+				}
+				// 映射在文件关闭后仍然有效
+				return new Segment(id, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+			}
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package edu.sysu.ncps.dao;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mura.servlet.Logger;
+import org.mura.servlet.Metrics;
+
+/**
+ * 先写本地日志, 后台写入数据库
+ * <p>
+ * 请求线程调用<b>append()</b>将值对象编码后追加到Journal, 按Journal的刷盘策略返回, 不等待数据库<br>
+ * 写入线程从Journal中依次读出一批记录, 通过BatchWriter写入数据库, 全部提交后确认(写入检查点)
+ * <p>
+ * 数据库不可用时, 写入线程等待一段时间(逐渐增加, 最多<b>MAX_BACKOFF</b>)后只重试失败的记录, 记录保留在Journal中<br>
+ * 数据错误(SQLState以22或23开头, 如违反约束)的记录重试也不会成功, 记录日志后丢弃
+ * <p>
+ * 写入数据库至少一次: 提交后, 写入检查点前崩溃时(或提交的结果未知而重试时), 这一批会再次写入<br>
+ * 每次写入前调用<b>removeWritten()</b>去掉已经写入数据库的记录, 子类重写此方法(如按记录中的唯一键查询)使写入只生效一次
+ *
+ * @author mura
+ *
+ * @param <VO>
+ *            写入的值对象类型
+ */
+public class JournalWriter<VO extends ValueObject> {
+
+	/**
+	 * 每批从Journal读出的最多记录数
+	 */
+	private static final int DRAIN_BATCH = 256;
+
+	/**
+	 * Journal中没有记录时, 写入线程的等待时间(毫秒)
+	 */
+	private static final long DRAIN_INTERVAL = 20;
+
+	/**
+	 * 重试的最短等待时间(毫秒)
+	 */
+	private static final long MIN_BACKOFF = 100;
+
+	/**
+	 * 重试的最长等待时间(毫秒)
+	 */
+	private static final long MAX_BACKOFF = 10000;
+
+	/**
+	 * 关闭时等待写入线程退出的最长时间(毫秒)
+	 */
+	private static final long CLOSE_TIMEOUT = 10000;
+
+	private static final Logger LOG = Logger.get("JournalWriter");
+
+	/**
+	 * Codec: 值对象与Journal记录之间的转换
+	 *
+	 * @author mura
+	 */
+	public static interface Codec<VO> {
+
+		byte[] encode(VO vo) throws IOException;
+
+		VO decode(byte[] data) throws IOException;
+	}
+
+	/**
+	 * 名称(用于线程名, 日志和统计)
+	 */
+	private final String name;
+
+	private final Journal journal;
+
+	private final Codec<VO> codec;
+
+	private final BatchWriter<VO> writer;
+
+	/**
+	 * 写入线程
+	 */
+	private final Thread thread;
+
+	/**
+	 * 统计数据源
+	 */
+	private final Metrics.Source metricsSource;
+
+	private final LongAdder drained = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder duplicates = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+
+	/**
+	 * 是否已关闭
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * 构造方法, 创建后写入线程立即启动(先写入Journal中上次未写入的记录)
+	 *
+	 * @param name
+	 *            名称(用于线程名, 日志和统计)
+	 * @param journal
+	 *            本地日志, 只能被一个JournalWriter使用
+	 * @param codec
+	 *            值对象的编码
+	 * @param writer
+	 *            数据库的批量写入
+	 */
+	public JournalWriter(String name, Journal journal, Codec<VO> codec, BatchWriter<VO> writer) {
+		this.name = name;
+		this.journal = journal;
+		this.codec = codec;
+		this.writer = writer;
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runDrainer();
+			}
+		}, "mura-journal-drainer-" + name);
+		this.thread.setDaemon(true);
+		this.metricsSource = new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				writeDrainerMetrics(sb);
+			}
+		};
+		thread.start();
+		Metrics.register(metricsSource);
+	}
+
+	/**
+	 * 追加一条记录到Journal
+	 *
+	 * @param vo
+	 *            值对象
+	 * @throws IOException
+	 *             编码失败, 记录过大, Journal已满或写入失败
+	 */
+	public void append(VO vo) throws IOException {
+		journal.append(codec.encode(vo));
+	}
+
+	/**
+	 * 追加一条记录到Journal, 不等待刷盘(批量追加时使用), 之后对最后一条调用<b>awaitDurable()</b>
+	 *
+	 * @param vo
+	 *            值对象
+	 * @return 记录之后的位置
+	 * @throws IOException
+	 *             编码失败, 记录过大, Journal已满或写入失败
+	 */
+	public long appendDeferred(VO vo) throws IOException {
+		return journal.appendDeferred(codec.encode(vo));
+	}
+
+	/**
+	 * 按Journal的刷盘策略等待记录落盘, 之前追加的记录都包含在内
+	 *
+	 * @param position
+	 *            位置(<b>appendDeferred()</b>的返回值)
+	 * @throws IOException
+	 *             刷盘失败
+	 */
+	public void awaitDurable(long position) throws IOException {
+		journal.awaitDurable(position);
+	}
+
+	/**
+	 * 获取本地日志
+	 */
+	public Journal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * 关闭: 停止写入线程(正在写入的一批完成或放弃), 未写入数据库的记录保留在Journal中
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(CLOSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Metrics.unregister(metricsSource);
+	}
+
+	/**
+	 * 写入线程: 读出一批, 写入数据库, 确认, 重复
+	 */
+	private void runDrainer() {
+		List<byte[]> records = new ArrayList<byte[]>(DRAIN_BATCH);
+		while (!closed) {
+			try {
+				long position = journal.read(records, DRAIN_BATCH);
+				if (records.isEmpty()) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(DRAIN_INTERVAL));
+					continue;
+				}
+				if (drain(records)) {
+					journal.acknowledge(position);
+				}
+			} catch (IOException | RuntimeException e) {
+				LOG.error("journal drain failed", e, "writer", name);
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(MAX_BACKOFF));
+			} finally {
+				records.clear();
+			}
+		}
+	}
+
+	/**
+	 * 写入一批记录, 失败的记录等待后重试, 直到全部完成
+	 *
+	 * @return 全部完成时返回<b>true</b>, 中途关闭时返回<b>false</b>
+	 */
+	private boolean drain(List<byte[]> records) {
+		List<VO> pending = new ArrayList<VO>(records.size());
+		for (byte[] data : records) {
+			try {
+				pending.add(codec.decode(data));
+			} catch (IOException | RuntimeException e) {
+				dropped.increment();
+				LOG.error("cannot decode journal record, dropped", e, "writer", name, "bytes", data.length);
+			}
+		}
+		long backoff = MIN_BACKOFF;
+		while (!pending.isEmpty()) {
+			Throwable error;
+			try {
+				int count = pending.size();
+				removeWritten(pending);
+				duplicates.add(count - pending.size());
+				error = write(pending);
+			} catch (SQLException | RuntimeException e) {
+				error = e;
+			}
+			if (pending.isEmpty()) {
+				break;
+			}
+			if (closed) {
+				return false;
+			}
+			retries.increment();
+			LOG.warn("database write failed, retrying", "writer", name, "records", pending.size(), "backoff", backoff,
+					"error", String.valueOf(error));
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(backoff));
+			if (closed) {
+				return false;
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		}
+		return true;
+	}
+
+	/**
+	 * 写入记录, 完成和丢弃的记录从<b>pending</b>中去掉, 剩下需要重试的记录
+	 *
+	 * @return 最后一条需要重试的记录失败的原因, 没有时返回<b>null</b>
+	 */
+	private Throwable write(List<VO> pending) {
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(pending.size());
+		for (VO vo : pending) {
+			futures.add(writer.submit(vo));
+		}
+		List<VO> failed = new ArrayList<VO>();
+		Throwable error = null;
+		for (int i = 0; i < futures.size(); i++) {
+			Throwable cause = await(futures.get(i));
+			if (cause == null) {
+				drained.increment();
+			} else if (isDataError(cause)) {
+				dropped.increment();
+				LOG.error("journal record rejected by database, dropped", cause, "writer", name);
+			} else {
+				failed.add(pending.get(i));
+				error = cause;
+			}
+		}
+		pending.clear();
+		pending.addAll(failed);
+		return error;
+	}
+
+	/**
+	 * 每次写入(包括重试)之前调用, 从<b>records</b>中去掉已经写入数据库的记录, 默认不做任何事
+	 * <p>
+	 * 子类可以重写此方法: 按记录中的唯一键查询数据库, 使崩溃后或提交结果未知时再次写入的记录不会重复插入,
+	 * <b>BatchWriter.committed()</b>也只对真正插入的记录调用
+	 *
+	 * @param records
+	 *            将要写入的记录
+	 * @throws SQLException
+	 *             查询失败, 等待后重试
+	 */
+	protected void removeWritten(List<VO> records) throws SQLException {
+	}
+
+	/**
+	 * 等待一条记录写入
+	 *
+	 * @return 失败的原因, 成功时返回<b>null</b>
+	 */
+	private static Throwable await(CompletableFuture<Void> future) {
+		while (true) {
+			try {
+				future.get();
+				return null;
+			} catch (ExecutionException e) {
+				return e.getCause();
+			} catch (InterruptedException e) {
+				// 写入线程不响应中断, 关闭通过closed标志
+			}
+		}
+	}
+
+	/**
+	 * 是否是数据错误(SQLState以22或23开头), 此时重试没有意义
+	 */
+	private static boolean isDataError(Throwable e) {
+		if (e instanceof SQLException) {
+			String state = ((SQLException) e).getSQLState();
+			return state != null && (state.startsWith("22") || state.startsWith("23"));
+		}
+		return false;
+	}
+
+	/**
+	 * 以Prometheus文本格式输出统计数据
+	 */
+	private void writeDrainerMetrics(StringBuilder sb) {
+		String writer = "writer=\"" + name + "\"";
+		sb.append("# HELP mura_journal_drained_total Journal records by drain result.\n");
+		sb.append("# TYPE mura_journal_drained_total counter\n");
+		sb.append("mura_journal_drained_total{").append(writer).append(",result=\"written\"} ").append(drained.sum())
+				.append('\n');
+		sb.append("mura_journal_drained_total{").append(writer).append(",result=\"dropped\"} ").append(dropped.sum())
+				.append('\n');
+		sb.append("mura_journal_drained_total{").append(writer).append(",result=\"duplicate\"} ")
+				.append(duplicates.sum()).append('\n');
+		sb.append("# HELP mura_journal_drain_retries_total Times the drainer backed off after a failed write.\n");
+		sb.append("# TYPE mura_journal_drain_retries_total counter\n");
+		sb.append("mura_journal_drain_retries_total{").append(writer).append("} ").append(retries.sum()).append('\n');
+	}
+}
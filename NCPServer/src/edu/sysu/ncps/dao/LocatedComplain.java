@@ -0,0 +1,31 @@
+package edu.sysu.ncps.dao;
+
+/**
+ * 经纬度索引中保存的投诉: 只有查询附近的投诉时需要的列(经纬度保存在索引中), 不保存投诉的全部内容<br>
+ * 投诉的其他内容(描述, 地址等)按<b>id</b>从数据库读取
+ *
+ * @author mura
+ */
+public final class LocatedComplain {
+
+	public final Long id;
+
+	public final Float intensity;
+
+	/**
+	 * 图片在ImageStore中的哈希值
+	 */
+	public final String imageHash;
+
+	public final String sfaType;
+
+	public final String noiseType;
+
+	public LocatedComplain(ComplainVO vo) {
+		this.id = vo.id;
+		this.intensity = vo.intensity;
+		this.imageHash = vo.imageHash;
+		this.sfaType = vo.sfaType;
+		this.noiseType = vo.noiseType;
+	}
+}
@@ -0,0 +1,264 @@
+package edu.sysu.ncps.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 连接池中的一个数据库连接
+ * <p>
+ * 每次借出时创建一个代理对象(Connection接口), 代理的<b>close()</b>将连接归还给连接池, 而不是关闭<br>
+ * 归还后代理对象失效, 继续使用会抛出SQLException, 避免归还后误用已被其他请求借出的连接
+ * <p>
+ * 每个连接缓存最近使用的PreparedStatement(LRU), 同一条SQL不需要重复预编译, 缓存随连接一起关闭<br>
+ * 连接同一时间只被一个线程借出, 缓存不需要同步
+ *
+ * @author mura
+ */
+final class PooledConnection {
+
+	/**
+	 * 每个连接缓存的PreparedStatement个数
+	 */
+	private static final int STATEMENT_CACHE_SIZE = 64;
+
+	/**
+	 * 所属的连接池
+	 */
+	private final DAO pool;
+
+	/**
+	 * 实际的数据库连接
+	 */
+	final Connection raw;
+
+	/**
+	 * 创建时间(毫秒)
+	 */
+	final long createdAt = System.currentTimeMillis();
+
+	/**
+	 * 最后一次归还的时间(毫秒)
+	 */
+	volatile long lastReturned = System.currentTimeMillis();
+
+	/**
+	 * 最后一次借出的时间(毫秒)
+	 */
+	volatile long borrowedAt;
+
+	/**
+	 * 借出此连接的线程名称
+	 */
+	volatile String borrower;
+
+	/**
+	 * 借出位置的调用栈, 只在开启泄漏追踪时记录
+	 */
+	volatile Throwable borrowTrace;
+
+	/**
+	 * 是否已报告为泄漏(每次借出只报告一次)
+	 */
+	volatile boolean leakReported;
+
+	/**
+	 * 是否出现过连接错误, 归还时关闭而不放回连接池
+	 */
+	volatile boolean broken;
+
+	/**
+	 * 当前借出的代理对象
+	 */
+	private volatile Handle handle;
+
+	/**
+	 * PreparedStatement缓存, 键为SQL, 按访问顺序排列
+	 */
+	private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f,
+			true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+			if (size() > STATEMENT_CACHE_SIZE) {
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+	};
+
+	PooledConnection(DAO pool, Connection raw) {
+		this.pool = pool;
+		this.raw = raw;
+	}
+
+	/**
+	 * 借出时调用, 创建新的代理对象
+	 *
+	 * @param trace
+	 *            是否记录借出位置的调用栈
+	 * @return 代理对象
+	 */
+	Connection lend(boolean trace) {
+		borrowedAt = System.currentTimeMillis();
+		borrower = Thread.currentThread().getName();
+		borrowTrace = trace ? new Throwable("Connection borrowed here") : null;
+		leakReported = false;
+		Handle h = new Handle();
+		handle = h;
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+				h);
+	}
+
+	/**
+	 * 获取一个已借出的连接代理对应的连接池连接
+	 *
+	 * @param connection
+	 *            连接
+	 * @return 连接池连接, 不是连接池的连接或已经归还时返回<b>null</b>
+	 */
+	static PooledConnection unwrap(Connection connection) {
+		if (connection != null && Proxy.isProxyClass(connection.getClass())) {
+			InvocationHandler h = Proxy.getInvocationHandler(connection);
+			if (h instanceof Handle && !((Handle) h).returned) {
+				return ((Handle) h).owner();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 获取SQL对应的PreparedStatement, 优先使用缓存
+	 * <p>
+	 * 返回的PreparedStatement属于缓存, 使用者不能关闭, 参数已经清空
+	 *
+	 * @param sql
+	 *            SQL
+	 * @param generatedKeys
+	 *            是否返回生成的主键(同一条SQL总是使用相同的值, 缓存的键只有SQL)
+	 * @return PreparedStatement
+	 * @throws SQLException
+	 */
+	PreparedStatement prepare(String sql, boolean generatedKeys) throws SQLException {
+		PreparedStatement statement = statements.get(sql);
+		if (statement != null) {
+			pool.statementCacheHit();
+			statement.clearParameters();
+			return statement;
+		}
+		pool.statementCacheMiss();
+		statement = raw.prepareStatement(sql,
+				generatedKeys ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS);
+		statements.put(sql, statement);
+		return statement;
+	}
+
+	/**
+	 * 执行SQL出错时调用: 移除并关闭缓存的PreparedStatement, 连接级别的错误使连接在归还时被关闭
+	 *
+	 * @param sql
+	 *            出错的SQL
+	 * @param e
+	 *            异常
+	 */
+	void failed(String sql, SQLException e) {
+		closeQuietly(statements.remove(sql));
+		if (isFatal(e)) {
+			broken = true;
+		}
+	}
+
+	/**
+	 * 关闭一个PreparedStatement, 忽略错误
+	 */
+	private static void closeQuietly(PreparedStatement statement) {
+		if (statement != null) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				// 无需处理
+			}
+		}
+	}
+
+	/**
+	 * 关闭实际的连接, 忽略错误
+	 */
+	void closeRaw() {
+		try {
+			raw.close();
+		} catch (SQLException e) {
+			// 连接已经不可用, 无需处理
+		}
+	}
+
+	/**
+	 * 代理对象的调用处理
+	 *
+	 * @author mura
+	 */
+	private class Handle implements InvocationHandler {
+
+		/**
+		 * 是否已经归还
+		 */
+		private volatile boolean returned;
+
+		/**
+		 * 所属的连接池连接
+		 */
+		private PooledConnection owner() {
+			return PooledConnection.this;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				if (!returned && handle == this) {
+					returned = true;
+					pool.giveBack(PooledConnection.this);
+				}
+				return null;
+			} else if (name.equals("isClosed")) {
+				return returned || raw.isClosed();
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("toString")) {
+				return "PooledConnection[" + raw + (returned ? ", returned]" : "]");
+			}
+			if (returned) {
+				throw new SQLException("Connection has been returned to the pool", "08003");
+			}
+			try {
+				return method.invoke(raw, args);
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof SQLException && isFatal((SQLException) cause)) {
+					broken = true;
+				}
+				throw cause;
+			}
+		}
+	}
+
+	/**
+	 * 是否是连接级别的错误(SQLState以08开头)
+	 */
+	private static boolean isFatal(SQLException e) {
+		String state = e.getSQLState();
+		return state != null && state.startsWith("08");
+	}
+}
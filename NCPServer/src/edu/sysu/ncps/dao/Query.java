@@ -1,7 +1,375 @@
 package edu.sysu.ncps.dao;
 
-public interface Query<VO extends ValueObject> {
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
 
-	
-	
+/**
+ * 类型化的SQL查询
+ * <p>
+ * 每个查询只定义一次(通常为静态常量), 执行时传入连接和参数:
+ *
+ * <pre>
+ * private static final Query&lt;ComplainVO&gt; BY_TYPE = new Query&lt;ComplainVO&gt;(ComplainVO.class,
+ * 		"SELECT * FROM complain WHERE noise_type = ?");
+ *
+ * try (Connection c = DAO.getDefault().getConnection()) {
+ * 	List&lt;ComplainVO&gt; list = BY_TYPE.list(c, "traffic");
+ * }
+ * </pre>
+ *
+ * 连接来自连接池(DAO)时, PreparedStatement在连接上缓存, 同一个查询不会重复预编译<br>
+ * 第一次执行时根据结果的列生成行映射计划(RowMapper), 之后的每一行都按列序号直接赋值
+ * <p>
+ * 结果很多时(如导出)使用<b>stream()</b>逐行处理, 不保存全部结果
+ * <p>
+ * INSERT需要自增主键时, 构造时指定<b>generatedKeys</b>, 批量写入(BatchWriter)会读取每一行生成的主键
+ * <p>
+ * Query对象是线程安全的, 可以在多个请求中同时使用
+ *
+ * @author mura
+ *
+ * @param <VO>
+ *            结果行对应的值对象类型
+ */
+public class Query<VO extends ValueObject> {
+
+	/**
+	 * 查询超时(秒), 与异步请求的超时相同<br>
+	 * 请求超时后执行主方法的线程不被中断(中断会关闭连接), 阻塞的查询由驱动在超时后取消
+	 */
+	private static final int QUERY_TIMEOUT = 30;
+
+	/**
+	 * 值对象类
+	 */
+	private final Class<VO> type;
+
+	/**
+	 * SQL
+	 */
+	private final String sql;
+
+	/**
+	 * 执行时是否返回生成的主键
+	 */
+	private final boolean generatedKeys;
+
+	/**
+	 * 行映射计划, 第一次执行查询时生成
+	 */
+	private volatile RowMapper<VO> mapper;
+
+	/**
+	 * RowHandler: 逐行处理查询结果的方法
+	 *
+	 * @author mura
+	 *
+	 * @param <VO>
+	 *            值对象类型
+	 */
+	public static interface RowHandler<VO> {
+
+		/**
+		 * 处理一行
+		 *
+		 * @param vo
+		 *            值对象, 处理后不再使用
+		 * @throws IOException
+		 *             输出失败, 停止查询
+		 */
+		public void handle(VO vo) throws IOException;
+	}
+
+	/**
+	 * 构造方法
+	 *
+	 * @param type
+	 *            值对象类
+	 * @param sql
+	 *            SQL, 参数使用'?'
+	 */
+	public Query(Class<VO> type, String sql) {
+		this(type, sql, false);
+	}
+
+	/**
+	 * 构造方法
+	 *
+	 * @param type
+	 *            值对象类
+	 * @param sql
+	 *            SQL, 参数使用'?'
+	 * @param generatedKeys
+	 *            执行时是否返回生成的主键(自增列的INSERT)
+	 */
+	public Query(Class<VO> type, String sql, boolean generatedKeys) {
+		this.type = type;
+		this.sql = sql;
+		this.generatedKeys = generatedKeys;
+	}
+
+	/**
+	 * 获取SQL
+	 */
+	public String getSQL() {
+		return sql;
+	}
+
+	/**
+	 * 执行时是否返回生成的主键
+	 */
+	public boolean hasGeneratedKeys() {
+		return generatedKeys;
+	}
+
+	/**
+	 * 执行查询, 返回全部结果
+	 *
+	 * @param connection
+	 *            连接
+	 * @param params
+	 *            参数, 按'?'的顺序
+	 * @return 值对象列表
+	 * @throws SQLException
+	 */
+	public List<VO> list(Connection connection, Object... params) throws SQLException {
+		List<VO> list = new ArrayList<VO>();
+		PooledConnection pooled = PooledConnection.unwrap(connection);
+		PreparedStatement statement = prepare(connection, pooled);
+		try {
+			bind(statement, params);
+			try (ResultSet rs = statement.executeQuery()) {
+				RowMapper<VO> rowMapper = mapper(rs);
+				while (rs.next()) {
+					list.add(rowMapper.map(rs));
+				}
+			}
+		} catch (SQLException e) {
+			failed(pooled, e);
+			throw e;
+		} finally {
+			release(statement, pooled);
+		}
+		return list;
+	}
+
+	/**
+	 * 执行查询, 返回第一行结果
+	 *
+	 * @param connection
+	 *            连接
+	 * @param params
+	 *            参数, 按'?'的顺序
+	 * @return 值对象, 没有结果时返回<b>null</b>
+	 * @throws SQLException
+	 */
+	public VO first(Connection connection, Object... params) throws SQLException {
+		PooledConnection pooled = PooledConnection.unwrap(connection);
+		PreparedStatement statement = prepare(connection, pooled);
+		try {
+			bind(statement, params);
+			try (ResultSet rs = statement.executeQuery()) {
+				return rs.next() ? mapper(rs).map(rs) : null;
+			}
+		} catch (SQLException e) {
+			failed(pooled, e);
+			throw e;
+		} finally {
+			release(statement, pooled);
+		}
+	}
+
+	/**
+	 * 执行查询, 逐行处理结果, 内存中只有当前的一行
+	 * <p>
+	 * 每次从数据库读取<b>fetchSize</b>行(MySQL需要连接参数useCursorFetch=true, 否则一次读取全部结果)<br>
+	 * 处理期间连接被占用; 结束后恢复默认的fetchSize, 缓存的PreparedStatement可以被其他查询复用
+	 *
+	 * @param connection
+	 *            连接
+	 * @param fetchSize
+	 *            每次读取的行数
+	 * @param handler
+	 *            处理每一行的方法
+	 * @param params
+	 *            参数, 按'?'的顺序
+	 * @return 处理的行数
+	 * @throws SQLException
+	 * @throws IOException
+	 *             处理时输出失败
+	 */
+	public int stream(Connection connection, int fetchSize, RowHandler<? super VO> handler, Object... params)
+			throws SQLException, IOException {
+		int count = 0;
+		PooledConnection pooled = PooledConnection.unwrap(connection);
+		PreparedStatement statement = prepare(connection, pooled);
+		try {
+			bind(statement, params);
+			statement.setFetchSize(fetchSize);
+			try (ResultSet rs = statement.executeQuery()) {
+				RowMapper<VO> rowMapper = mapper(rs);
+				while (rs.next()) {
+					handler.handle(rowMapper.map(rs));
+					count++;
+				}
+			} finally {
+				statement.setFetchSize(0);
+			}
+		} catch (SQLException e) {
+			failed(pooled, e);
+			throw e;
+		} finally {
+			release(statement, pooled);
+		}
+		return count;
+	}
+
+	/**
+	 * 执行更新(INSERT, UPDATE, DELETE等)
+	 *
+	 * @param connection
+	 *            连接
+	 * @param params
+	 *            参数, 按'?'的顺序
+	 * @return 影响的行数
+	 * @throws SQLException
+	 */
+	public int update(Connection connection, Object... params) throws SQLException {
+		PooledConnection pooled = PooledConnection.unwrap(connection);
+		PreparedStatement statement = prepare(connection, pooled);
+		try {
+			bind(statement, params);
+			return statement.executeUpdate();
+		} catch (SQLException e) {
+			failed(pooled, e);
+			throw e;
+		} finally {
+			release(statement, pooled);
+		}
+	}
+
+	/**
+	 * 以JDBC批处理执行多组参数(不提交事务, 由调用方控制)
+	 *
+	 * @param connection
+	 *            连接
+	 * @param paramsList
+	 *            每组参数, 按'?'的顺序
+	 * @param keys
+	 *            每组参数生成的主键写入这里(长度与paramsList相同); 为<b>null</b>时不读取
+	 * @return 每组参数影响的行数
+	 * @throws SQLException
+	 *             执行失败, 或返回的主键少于参数的组数
+	 */
+	int[] executeBatch(Connection connection, List<Object[]> paramsList, long[] keys) throws SQLException {
+		PooledConnection pooled = PooledConnection.unwrap(connection);
+		PreparedStatement statement = prepare(connection, pooled);
+		try {
+			for (Object[] params : paramsList) {
+				bind(statement, params);
+				statement.addBatch();
+			}
+			int[] counts = statement.executeBatch();
+			if (keys != null) {
+				readKeys(statement, keys);
+			}
+			return counts;
+		} catch (SQLException e) {
+			failed(pooled, e);
+			throw e;
+		} finally {
+			statement.clearBatch();
+			release(statement, pooled);
+		}
+	}
+
+	/**
+	 * 读取批处理生成的主键, 按参数的顺序
+	 */
+	private static void readKeys(PreparedStatement statement, long[] keys) throws SQLException {
+		int count = 0;
+		try (ResultSet rs = statement.getGeneratedKeys()) {
+			while (count < keys.length && rs.next()) {
+				keys[count++] = rs.getLong(1);
+			}
+		}
+		if (count < keys.length) {
+			throw new SQLException("Expected " + keys.length + " generated keys, got " + count);
+		}
+	}
+
+	/**
+	 * 获取PreparedStatement: 连接池的连接使用缓存, 其他连接每次预编译; 设置查询超时
+	 */
+	PreparedStatement prepare(Connection connection, PooledConnection pooled) throws SQLException {
+		PreparedStatement statement;
+		if (pooled != null) {
+			statement = pooled.prepare(sql, generatedKeys);
+		} else {
+			statement = connection.prepareStatement(sql,
+					generatedKeys ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS);
+		}
+		statement.setQueryTimeout(QUERY_TIMEOUT);
+		return statement;
+	}
+
+	/**
+	 * 使用完PreparedStatement: 缓存的不关闭, 其他的关闭
+	 */
+	void release(PreparedStatement statement, PooledConnection pooled) throws SQLException {
+		if (pooled == null) {
+			statement.close();
+		}
+	}
+
+	/**
+	 * 执行出错时, 使缓存的PreparedStatement失效
+	 */
+	void failed(PooledConnection pooled, SQLException e) {
+		if (pooled != null) {
+			pooled.failed(sql, e);
+		}
+	}
+
+	/**
+	 * 获取(第一次时生成)行映射计划
+	 */
+	private RowMapper<VO> mapper(ResultSet rs) throws SQLException {
+		RowMapper<VO> rowMapper = mapper;
+		if (rowMapper == null) {
+			// 多个线程同时生成时结果相同, 不需要加锁
+			rowMapper = new RowMapper<VO>(type, rs.getMetaData());
+			mapper = rowMapper;
+		}
+		return rowMapper;
+	}
+
+	/**
+	 * 设置参数
+	 *
+	 * @param statement
+	 *            PreparedStatement
+	 * @param params
+	 *            参数, 按'?'的顺序
+	 * @throws SQLException
+	 */
+	static void bind(PreparedStatement statement, Object... params) throws SQLException {
+		for (int i = 0; i < params.length; i++) {
+			Object param = params[i];
+			if (param == null) {
+				statement.setNull(i + 1, Types.NULL);
+			} else if (param instanceof byte[]) {
+				statement.setBytes(i + 1, (byte[]) param);
+			} else {
+				statement.setObject(i + 1, param);
+			}
+		}
+	}
 }
@@ -0,0 +1,277 @@
+package edu.sysu.ncps.dao;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 将查询结果的行转换为值对象
+ * <p>
+ * 创建时根据ResultSetMetaData生成一个列序号的映射计划: 每个有对应成员变量的列, 记录列序号, 读取方式和赋值方法<br>
+ * 转换每一行时只按计划依次读取列并赋值, 不再按列名查找, 也不使用反射(构造方法和赋值都是预先生成的MethodHandle)
+ * <p>
+ * 每个值对象类的成员变量信息只分析一次(ClassValue), 每个查询的映射计划只生成一次(Query中缓存)
+ *
+ * @author mura
+ */
+final class RowMapper<VO extends ValueObject> {
+
+	/**
+	 * 各值对象类的成员变量信息
+	 */
+	private static final ClassValue<ClassInfo> CLASS_INFO = new ClassValue<ClassInfo>() {
+		@Override
+		protected ClassInfo computeValue(Class<?> type) {
+			return new ClassInfo(type);
+		}
+	};
+
+	/**
+	 * 创建值对象, 类型为()Object
+	 */
+	private final MethodHandle constructor;
+
+	/**
+	 * 各映射的列序号(从1开始)
+	 */
+	private final int[] columns;
+
+	/**
+	 * 各映射列的读取方式
+	 */
+	private final Kind[] kinds;
+
+	/**
+	 * 各映射列的赋值方法, 类型为(Object, Object)void
+	 */
+	private final MethodHandle[] setters;
+
+	/**
+	 * 根据查询结果的列生成映射计划
+	 *
+	 * @param type
+	 *            值对象类
+	 * @param meta
+	 *            查询结果的列信息
+	 * @throws SQLException
+	 */
+	RowMapper(Class<VO> type, ResultSetMetaData meta) throws SQLException {
+		ClassInfo info = CLASS_INFO.get(type);
+		List<Integer> columnList = new ArrayList<Integer>();
+		List<FieldInfo> fieldList = new ArrayList<FieldInfo>();
+		for (int i = 1; i <= meta.getColumnCount(); i++) {
+			FieldInfo field = info.fields.get(normalize(meta.getColumnLabel(i)));
+			if (field != null) {
+				columnList.add(i);
+				fieldList.add(field);
+			}
+		}
+		this.constructor = info.constructor;
+		this.columns = new int[columnList.size()];
+		this.kinds = new Kind[columnList.size()];
+		this.setters = new MethodHandle[columnList.size()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = columnList.get(i);
+			kinds[i] = fieldList.get(i).kind;
+			setters[i] = fieldList.get(i).setter;
+		}
+	}
+
+	/**
+	 * 将当前行转换为值对象
+	 *
+	 * @param rs
+	 *            查询结果, 已经移动到要转换的行
+	 * @return 值对象
+	 * @throws SQLException
+	 */
+	@SuppressWarnings("unchecked")
+	VO map(ResultSet rs) throws SQLException {
+		try {
+			Object vo = constructor.invokeExact();
+			for (int i = 0; i < columns.length; i++) {
+				Object value = kinds[i].read(rs, columns[i]);
+				if (value != null) {
+					setters[i].invokeExact(vo, value);
+				}
+			}
+			return (VO) vo;
+		} catch (SQLException | RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new SQLException("Cannot map row", e);
+		}
+	}
+
+	/**
+	 * 列名或成员变量名的比较形式: 小写并去掉下划线
+	 */
+	private static String normalize(String name) {
+		return name.replace("_", "").toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Kind: 列的读取方式, 与成员变量的类型对应
+	 *
+	 * @author mura
+	 */
+	private static enum Kind {
+		INT {
+			@Override
+			Object read(ResultSet rs, int column) throws SQLException {
+				int value = rs.getInt(column);
+				return rs.wasNull() ? null : value;
+			}
+		},
+		LONG {
+			@Override
+			Object read(ResultSet rs, int column) throws SQLException {
+				long value = rs.getLong(column);
+				return rs.wasNull() ? null : value;
+			}
+		},
+		FLOAT {
+			@Override
+			Object read(ResultSet rs, int column) throws SQLException {
+				float value = rs.getFloat(column);
+				return rs.wasNull() ? null : value;
+			}
+		},
+		DOUBLE {
+			@Override
+			Object read(ResultSet rs, int column) throws SQLException {
+				double value = rs.getDouble(column);
+				return rs.wasNull() ? null : value;
+			}
+		},
+		BOOLEAN {
+			@Override
+			Object read(ResultSet rs, int column) throws SQLException {
+				boolean value = rs.getBoolean(column);
+				return rs.wasNull() ? null : value;
+			}
+		},
+		STRING {
+			@Override
+			Object read(ResultSet rs, int column) throws SQLException {
+				return rs.getString(column);
+			}
+		},
+		BYTES {
+			@Override
+			Object read(ResultSet rs, int column) throws SQLException {
+				return rs.getBytes(column);
+			}
+		},
+		TIMESTAMP {
+			@Override
+			Object read(ResultSet rs, int column) throws SQLException {
+				return rs.getTimestamp(column);
+			}
+		};
+
+		/**
+		 * 读取一列, 值为NULL时返回<b>null</b>(基本类型的成员变量保持默认值)
+		 */
+		abstract Object read(ResultSet rs, int column) throws SQLException;
+
+		/**
+		 * 成员变量类型对应的读取方式
+		 *
+		 * @return 读取方式, 不支持的类型返回<b>null</b>
+		 */
+		static Kind of(Class<?> type) {
+			if (type == Integer.class || type == int.class) {
+				return INT;
+			} else if (type == Long.class || type == long.class) {
+				return LONG;
+			} else if (type == Float.class || type == float.class) {
+				return FLOAT;
+			} else if (type == Double.class || type == double.class) {
+				return DOUBLE;
+			} else if (type == Boolean.class || type == boolean.class) {
+				return BOOLEAN;
+			} else if (type == String.class) {
+				return STRING;
+			} else if (type == byte[].class) {
+				return BYTES;
+			} else if (type == Timestamp.class) {
+				return TIMESTAMP;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * 一个成员变量的读取方式和赋值方法
+	 *
+	 * @author mura
+	 */
+	private static class FieldInfo {
+
+		private final Kind kind;
+
+		/**
+		 * 赋值方法, 类型为(Object, Object)void
+		 */
+		private final MethodHandle setter;
+
+		public FieldInfo(Kind kind, MethodHandle setter) {
+			this.kind = kind;
+			this.setter = setter;
+		}
+	}
+
+	/**
+	 * 一个值对象类的构造方法和成员变量信息
+	 *
+	 * @author mura
+	 */
+	private static class ClassInfo {
+
+		/**
+		 * 构造方法, 类型为()Object
+		 */
+		private final MethodHandle constructor;
+
+		/**
+		 * 各成员变量, 键为比较形式的名称
+		 */
+		private final Map<String, FieldInfo> fields = new HashMap<String, FieldInfo>();
+
+		public ClassInfo(Class<?> type) {
+			// 值对象类可以不是public的(如包内的类), 取消访问检查后生成MethodHandle
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			try {
+				Constructor<?> ctor = type.getDeclaredConstructor();
+				ctor.setAccessible(true);
+				constructor = lookup.unreflectConstructor(ctor).asType(MethodType.methodType(Object.class));
+				for (Field field : type.getFields()) {
+					Kind kind = Kind.of(field.getType());
+					if (kind == null || Modifier.isStatic(field.getModifiers())
+							|| Modifier.isFinal(field.getModifiers())) {
+						continue;
+					}
+					field.setAccessible(true);
+					MethodHandle setter = lookup.unreflectSetter(field)
+							.asType(MethodType.methodType(void.class, Object.class, Object.class));
+					fields.put(normalize(field.getName()), new FieldInfo(kind, setter));
+				}
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalArgumentException("Invalid ValueObject class: " + type.getName(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,610 @@
+package edu.sysu.ncps.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.mura.servlet.LatencyHistogram;
+import org.mura.servlet.Metrics;
+
+/**
+ * 内存中的经纬度索引(网格)
+ * <p>
+ * 地图按经纬度分为边长<b>cellSize</b>度的网格, 每个格子用基本类型数组保存其中的点的纬度, 经度和值<br>
+ * 格子保存在以格子编号为键的开放寻址哈希表中(long数组, 不创建键的对象), 只有有点的格子占用内存
+ * <p>
+ * 查询时只扫描与查询范围相交的格子, 计算其中每个点的距离(球面距离, 米), 用大小为<b>limit</b>的最大堆保留最近的点,
+ * 结果按距离从近到远排列<br>
+ * 查询范围覆盖的格子比已有的格子还多时, 直接扫描已有的格子
+ * <p>
+ * 不处理跨越经度180度的范围; 索引是线程安全的(读写锁), 查询可以并发进行
+ *
+ * @author mura
+ *
+ * @param <T>
+ *            点对应的值类型
+ */
+public class SpatialIndex<T> {
+
+	/**
+	 * 地球平均半径(米)
+	 */
+	private static final double EARTH_RADIUS = 6371008.8;
+
+	/**
+	 * 纬度每度的距离(米)
+	 */
+	private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+
+	/**
+	 * 哈希表中的空位(格子编号都不是负数)
+	 */
+	private static final long EMPTY = -1;
+
+	/**
+	 * 哈希表的初始大小(2的幂)
+	 */
+	private static final int INITIAL_TABLE_SIZE = 1024;
+
+	/**
+	 * 格子中数组的初始大小
+	 */
+	private static final int INITIAL_CELL_SIZE = 4;
+
+	/**
+	 * 统计输出的分位数
+	 */
+	private static final double[] QUANTILES = { 0.5, 0.99 };
+
+	/**
+	 * Hit: 一个查询结果
+	 *
+	 * @author mura
+	 */
+	public static final class Hit<T> {
+
+		public final float latitude;
+
+		public final float longitude;
+
+		/**
+		 * 与查询中心的距离(米)
+		 */
+		public final double distance;
+
+		public final T value;
+
+		private Hit(float latitude, float longitude, double distance, T value) {
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.distance = distance;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * 一个格子中的点
+	 */
+	private static final class Cell {
+
+		private float[] latitudes = new float[INITIAL_CELL_SIZE];
+
+		private float[] longitudes = new float[INITIAL_CELL_SIZE];
+
+		private Object[] values = new Object[INITIAL_CELL_SIZE];
+
+		private int size;
+
+		private void add(float latitude, float longitude, Object value) {
+			if (size == values.length) {
+				int capacity = size * 2;
+				latitudes = Arrays.copyOf(latitudes, capacity);
+				longitudes = Arrays.copyOf(longitudes, capacity);
+				values = Arrays.copyOf(values, capacity);
+			}
+			latitudes[size] = latitude;
+			longitudes[size] = longitude;
+			values[size] = value;
+			size++;
+		}
+	}
+
+	/**
+	 * 名称(用于统计)
+	 */
+	private final String name;
+
+	/**
+	 * 格子的边长(度)
+	 */
+	private final double cellSize;
+
+	/**
+	 * 经度方向的格子数
+	 */
+	private final int columns;
+
+	/**
+	 * 纬度方向的格子数
+	 */
+	private final int rows;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * 哈希表: 格子编号, EMPTY为空位
+	 */
+	private long[] keys;
+
+	/**
+	 * 哈希表: 格子
+	 */
+	private Cell[] cells;
+
+	/**
+	 * 已有的格子数
+	 */
+	private int cellCount;
+
+	/**
+	 * 点的个数
+	 */
+	private int size;
+
+	/**
+	 * 统计数据源
+	 */
+	private final Metrics.Source metricsSource;
+
+	/**
+	 * 查询时间(纳秒)
+	 */
+	private final LatencyHistogram queryTimes = new LatencyHistogram();
+
+	private final LongAdder radiusQueries = new LongAdder();
+	private final LongAdder boxQueries = new LongAdder();
+	private final LongAdder scanned = new LongAdder();
+
+	/**
+	 * 构造方法
+	 *
+	 * @param name
+	 *            名称(用于统计)
+	 * @param cellSize
+	 *            格子的边长(度), 与常用的查询半径相当时查询最快
+	 */
+	public SpatialIndex(String name, double cellSize) {
+		if (!(cellSize > 0) || cellSize > 90) {
+			throw new IllegalArgumentException("Invalid cell size: " + cellSize);
+		}
+		this.name = name;
+		this.cellSize = cellSize;
+		this.columns = (int) Math.ceil(360 / cellSize);
+		this.rows = (int) Math.ceil(180 / cellSize);
+		this.keys = new long[INITIAL_TABLE_SIZE];
+		this.cells = new Cell[INITIAL_TABLE_SIZE];
+		Arrays.fill(keys, EMPTY);
+		this.metricsSource = new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				writeIndexMetrics(sb);
+			}
+		};
+		Metrics.register(metricsSource);
+	}
+
+	/**
+	 * 添加一个点
+	 *
+	 * @param latitude
+	 *            纬度, -90到90
+	 * @param longitude
+	 *            经度, -180到180
+	 * @param value
+	 *            值
+	 * @throws IllegalArgumentException
+	 *             经纬度超出范围
+	 */
+	public void add(float latitude, float longitude, T value) {
+		checkLocation(latitude, longitude);
+		long key = key(row(latitude), column(longitude));
+		lock.writeLock().lock();
+		try {
+			Cell cell = find(key);
+			if (cell == null) {
+				cell = new Cell();
+				insert(key, cell);
+			}
+			cell.add(latitude, longitude, value);
+			size++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * 查询距离中心不超过<b>radius</b>的点
+	 *
+	 * @param latitude
+	 *            中心的纬度
+	 * @param longitude
+	 *            中心的经度
+	 * @param radius
+	 *            半径(米)
+	 * @param limit
+	 *            最多返回的个数
+	 * @return 最近的点, 按距离从近到远排列
+	 */
+	public List<Hit<T>> nearby(double latitude, double longitude, double radius, int limit) {
+		checkLocation(latitude, longitude);
+		radiusQueries.increment();
+		double latitudeSpan = radius / METERS_PER_DEGREE;
+		double minLatitude = Math.max(-90, latitude - latitudeSpan);
+		double maxLatitude = Math.min(90, latitude + latitudeSpan);
+		double minLongitude = -180;
+		double maxLongitude = 180;
+		// 经度方向的范围按纬度最大(离赤道最远)处计算, 范围包含极点时为所有经度
+		double cos = Math.cos(Math.toRadians(Math.max(Math.abs(minLatitude), Math.abs(maxLatitude))));
+		if (maxLatitude < 90 && minLatitude > -90 && cos > 0) {
+			double longitudeSpan = latitudeSpan / cos;
+			if (longitudeSpan < 180) {
+				minLongitude = Math.max(-180, longitude - longitudeSpan);
+				maxLongitude = Math.min(180, longitude + longitudeSpan);
+			}
+		}
+		return search(minLatitude, minLongitude, maxLatitude, maxLongitude, latitude, longitude, radius, limit);
+	}
+
+	/**
+	 * 查询矩形范围内的点
+	 *
+	 * @param minLatitude
+	 *            最小纬度
+	 * @param minLongitude
+	 *            最小经度
+	 * @param maxLatitude
+	 *            最大纬度
+	 * @param maxLongitude
+	 *            最大经度
+	 * @param latitude
+	 *            计算距离的中心的纬度
+	 * @param longitude
+	 *            计算距离的中心的经度
+	 * @param limit
+	 *            最多返回的个数
+	 * @return 范围内离中心最近的点, 按距离从近到远排列
+	 */
+	public List<Hit<T>> within(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+			double latitude, double longitude, int limit) {
+		checkLocation(minLatitude, minLongitude);
+		checkLocation(maxLatitude, maxLongitude);
+		checkLocation(latitude, longitude);
+		if (minLatitude > maxLatitude || minLongitude > maxLongitude) {
+			throw new IllegalArgumentException("Invalid bounding box: " + minLatitude + "," + minLongitude + " - "
+					+ maxLatitude + "," + maxLongitude);
+		}
+		boxQueries.increment();
+		return search(minLatitude, minLongitude, maxLatitude, maxLongitude, latitude, longitude,
+				Double.POSITIVE_INFINITY, limit);
+	}
+
+	/**
+	 * 点的个数
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 关闭(只注销统计)
+	 */
+	public void close() {
+		Metrics.unregister(metricsSource);
+	}
+
+	/**
+	 * 扫描与矩形范围相交的格子, 保留矩形内且距离不超过<b>radius</b>的最近的<b>limit</b>个点
+	 */
+	private List<Hit<T>> search(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+			double latitude, double longitude, double radius, int limit) {
+		if (limit <= 0) {
+			return new ArrayList<Hit<T>>(0);
+		}
+		long start = System.nanoTime();
+		int minRow = row(minLatitude);
+		int maxRow = row(maxLatitude);
+		int minColumn = column(minLongitude);
+		int maxColumn = column(maxLongitude);
+		long rangeCells = (long) (maxRow - minRow + 1) * (maxColumn - minColumn + 1);
+		Heap heap = new Heap(limit);
+		List<Hit<T>> hits;
+		long count = 0;
+		lock.readLock().lock();
+		try {
+			if (rangeCells <= cellCount) {
+				for (int row = minRow; row <= maxRow; row++) {
+					for (int column = minColumn; column <= maxColumn; column++) {
+						Cell cell = find(key(row, column));
+						if (cell != null) {
+							count += scan(cell, heap, minLatitude, minLongitude, maxLatitude, maxLongitude, latitude,
+									longitude, radius);
+						}
+					}
+				}
+			} else {
+				for (int i = 0; i < keys.length; i++) {
+					long key = keys[i];
+					if (key == EMPTY) {
+						continue;
+					}
+					int row = (int) (key / columns);
+					int column = (int) (key % columns);
+					if (row >= minRow && row <= maxRow && column >= minColumn && column <= maxColumn) {
+						count += scan(cells[i], heap, minLatitude, minLongitude, maxLatitude, maxLongitude, latitude,
+								longitude, radius);
+					}
+				}
+			}
+			hits = heap.drain();
+		} finally {
+			lock.readLock().unlock();
+		}
+		scanned.add(count);
+		queryTimes.record(System.nanoTime() - start);
+		return hits;
+	}
+
+	/**
+	 * 扫描一个格子中的点, 符合条件的放入堆中
+	 *
+	 * @return 扫描的点数
+	 */
+	private int scan(Cell cell, Heap heap, double minLatitude, double minLongitude, double maxLatitude,
+			double maxLongitude, double latitude, double longitude, double radius) {
+		float[] latitudes = cell.latitudes;
+		float[] longitudes = cell.longitudes;
+		int size = cell.size;
+		for (int i = 0; i < size; i++) {
+			float pointLatitude = latitudes[i];
+			float pointLongitude = longitudes[i];
+			if (pointLatitude < minLatitude || pointLatitude > maxLatitude || pointLongitude < minLongitude
+					|| pointLongitude > maxLongitude) {
+				continue;
+			}
+			double distance = distance(latitude, longitude, pointLatitude, pointLongitude);
+			if (distance <= radius) {
+				heap.offer(distance, cell, i);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * 两点之间的球面距离(米, haversine公式)
+	 */
+	static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+		double phi1 = Math.toRadians(latitude1);
+		double phi2 = Math.toRadians(latitude2);
+		double sinLatitude = Math.sin((phi2 - phi1) / 2);
+		double sinLongitude = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+		double a = sinLatitude * sinLatitude + Math.cos(phi1) * Math.cos(phi2) * sinLongitude * sinLongitude;
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	private static void checkLocation(double latitude, double longitude) {
+		if (!(latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180)) {
+			throw new IllegalArgumentException("Invalid location: " + latitude + "," + longitude);
+		}
+	}
+
+	private int row(double latitude) {
+		return Math.min(rows - 1, (int) ((latitude + 90) / cellSize));
+	}
+
+	private int column(double longitude) {
+		return Math.min(columns - 1, (int) ((longitude + 180) / cellSize));
+	}
+
+	private long key(int row, int column) {
+		return (long) row * columns + column;
+	}
+
+	/**
+	 * 在哈希表中查找格子(持有锁时调用)
+	 */
+	private Cell find(long key) {
+		int mask = keys.length - 1;
+		for (int i = slot(key, mask);; i = (i + 1) & mask) {
+			long k = keys[i];
+			if (k == key) {
+				return cells[i];
+			}
+			if (k == EMPTY) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * 在哈希表中加入格子, 超过一半时扩容(持有写锁时调用)
+	 */
+	private void insert(long key, Cell cell) {
+		if ((cellCount + 1) * 2 > keys.length) {
+			long[] oldKeys = keys;
+			Cell[] oldCells = cells;
+			keys = new long[oldKeys.length * 2];
+			cells = new Cell[oldKeys.length * 2];
+			Arrays.fill(keys, EMPTY);
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != EMPTY) {
+					put(oldKeys[i], oldCells[i]);
+				}
+			}
+		}
+		put(key, cell);
+		cellCount++;
+	}
+
+	private void put(long key, Cell cell) {
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		while (keys[i] != EMPTY) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		cells[i] = cell;
+	}
+
+	private static int slot(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * 以Prometheus文本格式输出统计数据
+	 */
+	private void writeIndexMetrics(StringBuilder sb) {
+		String index = "index=\"" + name + "\"";
+		int points;
+		int cellsUsed;
+		lock.readLock().lock();
+		try {
+			points = size;
+			cellsUsed = cellCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+		sb.append("# HELP mura_spatial_index_points Points in the spatial index.\n");
+		sb.append("# TYPE mura_spatial_index_points gauge\n");
+		sb.append("mura_spatial_index_points{").append(index).append("} ").append(points).append('\n');
+		sb.append("# HELP mura_spatial_index_cells Grid cells holding at least one point.\n");
+		sb.append("# TYPE mura_spatial_index_cells gauge\n");
+		sb.append("mura_spatial_index_cells{").append(index).append("} ").append(cellsUsed).append('\n');
+		sb.append("# HELP mura_spatial_index_queries_total Queries by type.\n");
+		sb.append("# TYPE mura_spatial_index_queries_total counter\n");
+		sb.append("mura_spatial_index_queries_total{").append(index).append(",type=\"radius\"} ")
+				.append(radiusQueries.sum()).append('\n');
+		sb.append("mura_spatial_index_queries_total{").append(index).append(",type=\"box\"} ")
+				.append(boxQueries.sum()).append('\n');
+		sb.append("# HELP mura_spatial_index_scanned_total Points examined by queries.\n");
+		sb.append("# TYPE mura_spatial_index_scanned_total counter\n");
+		sb.append("mura_spatial_index_scanned_total{").append(index).append("} ").append(scanned.sum()).append('\n');
+		sb.append("# HELP mura_spatial_index_query_seconds Time to answer one query.\n");
+		sb.append("# TYPE mura_spatial_index_query_seconds summary\n");
+		long[] values = queryTimes.quantiles(QUANTILES);
+		for (int i = 0; i < QUANTILES.length; i++) {
+			sb.append("mura_spatial_index_query_seconds{").append(index).append(",quantile=\"").append(QUANTILES[i])
+					.append("\"} ").append(values[i] / 1e9).append('\n');
+		}
+		sb.append("mura_spatial_index_query_seconds_sum{").append(index).append("} ").append(queryTimes.sum() / 1e9)
+				.append('\n');
+		sb.append("mura_spatial_index_query_seconds_count{").append(index).append("} ").append(queryTimes.count())
+				.append('\n');
+	}
+
+	/**
+	 * 保留距离最近的点的最大堆(堆顶为保留的点中最远的), 用基本类型数组保存距离
+	 */
+	private final class Heap {
+
+		private final int limit;
+
+		private double[] distances;
+
+		private Cell[] heapCells;
+
+		private int[] indexes;
+
+		private int size;
+
+		private Heap(int limit) {
+			this.limit = limit;
+			int capacity = Math.min(limit, 64);
+			this.distances = new double[capacity];
+			this.heapCells = new Cell[capacity];
+			this.indexes = new int[capacity];
+		}
+
+		private void offer(double distance, Cell cell, int index) {
+			if (size < limit) {
+				if (size == distances.length) {
+					int capacity = Math.min(limit, size * 2);
+					distances = Arrays.copyOf(distances, capacity);
+					heapCells = Arrays.copyOf(heapCells, capacity);
+					indexes = Arrays.copyOf(indexes, capacity);
+				}
+				set(size, distance, cell, index);
+				siftUp(size++);
+			} else if (distance < distances[0]) {
+				set(0, distance, cell, index);
+				siftDown(0);
+			}
+		}
+
+		/**
+		 * 按距离从近到远取出全部结果(持有读锁时调用)
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private List<Hit<T>> drain() {
+			Hit<T>[] hits = new Hit[size];
+			while (size > 0) {
+				Cell cell = heapCells[0];
+				int index = indexes[0];
+				hits[size - 1] = new Hit<T>(cell.latitudes[index], cell.longitudes[index], distances[0],
+						(T) cell.values[index]);
+				size--;
+				set(0, distances[size], heapCells[size], indexes[size]);
+				heapCells[size] = null;
+				siftDown(0);
+			}
+			return Arrays.asList(hits);
+		}
+
+		private void siftUp(int i) {
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (distances[parent] >= distances[i]) {
+					return;
+				}
+				swap(i, parent);
+				i = parent;
+			}
+		}
+
+		private void siftDown(int i) {
+			while (true) {
+				int left = i * 2 + 1;
+				if (left >= size) {
+					return;
+				}
+				int largest = left + 1 < size && distances[left + 1] > distances[left] ? left + 1 : left;
+				if (distances[i] >= distances[largest]) {
+					return;
+				}
+				swap(i, largest);
+				i = largest;
+			}
+		}
+
+		private void set(int i, double distance, Cell cell, int index) {
+			distances[i] = distance;
+			heapCells[i] = cell;
+			indexes[i] = index;
+		}
+
+		private void swap(int i, int j) {
+			double distance = distances[i];
+			Cell cell = heapCells[i];
+			int index = indexes[i];
+			set(i, distances[j], heapCells[j], indexes[j]);
+			set(j, distance, cell, index);
+		}
+	}
+}
@@ -0,0 +1,371 @@
+package edu.sysu.ncps.dao;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.mura.servlet.LatencyHistogram;
+import org.mura.servlet.Logger;
+import org.mura.servlet.Metrics;
+
+/**
+ * 缩略图生成
+ * <p>
+ * 投诉保存后调用<b>submit()</b>, 后台线程读取ImageStore中的原图, 生成<b>SIZES</b>中各个长边的JPEG缩略图,
+ * 保存在原图的同一个目录(ImageStore.thumbnailPath())<br>
+ * 队列中只保存哈希值, 原图从文件读取; 队列已满时直接丢弃(缩略图不存在时使用原图), 调用者不会等待
+ * <p>
+ * 解码时按缩略图的大小设置隔行采样(ImageReadParam.setSourceSubsampling), 大图片不需要完整解码到内存<br>
+ * 像素数超过<b>MAX_PIXELS</b>的图片不处理, 长边不大于最小缩略图的图片只读取文件头
+ * <p>
+ * 需要以headless模式运行(服务器没有显示设备), 由DatabaseListener在启动时设置java.awt.headless
+ *
+ * @author mura
+ */
+public class Thumbnailer {
+
+	/**
+	 * 缩略图的长边
+	 */
+	private static final int[] SIZES = { 128, 512 };
+
+	/**
+	 * 处理的最大像素数
+	 */
+	private static final long MAX_PIXELS = 50L * 1000 * 1000;
+
+	/**
+	 * JPEG质量
+	 */
+	private static final float QUALITY = 0.8f;
+
+	/**
+	 * 默认的线程数
+	 */
+	private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+	/**
+	 * 默认的队列长度
+	 */
+	private static final int QUEUE_LIMIT = 256;
+
+	/**
+	 * 关闭时等待正在处理的图片的最长时间(毫秒)
+	 */
+	private static final long CLOSE_TIMEOUT = 10000;
+
+	/**
+	 * 统计输出的分位数
+	 */
+	private static final double[] QUANTILES = { 0.5, 0.99 };
+
+	private static final Logger LOG = Logger.get("Thumbnailer");
+
+	private static final AtomicReference<Thumbnailer> DEFAULT = new AtomicReference<Thumbnailer>();
+
+	private final String name;
+
+	private final ImageStore store;
+
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * 统计数据源
+	 */
+	private final Metrics.Source metricsSource;
+
+	/**
+	 * 每张图片的处理时间(纳秒)
+	 */
+	private final LatencyHistogram times = new LatencyHistogram();
+
+	private final LongAdder done = new LongAdder();
+	private final LongAdder skipped = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * 构造方法
+	 *
+	 * @param name
+	 *            名称(用于线程名, 日志和统计)
+	 * @param store
+	 *            图片存储
+	 * @param threads
+	 *            线程数
+	 * @param queueLimit
+	 *            队列长度, 超出时丢弃
+	 */
+	public Thumbnailer(final String name, ImageStore store, int threads, int queueLimit) {
+		this.name = name;
+		this.store = store;
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueLimit), new ThreadFactory() {
+
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "mura-thumbnail-" + name + "-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						// 不与请求线程争抢CPU
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					}
+				}, new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						rejected.increment();
+					}
+				});
+		this.metricsSource = new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				writeThumbnailMetrics(sb);
+			}
+		};
+		Metrics.register(metricsSource);
+	}
+
+	/**
+	 * 获取默认的缩略图生成(使用默认的图片存储), 第一次调用时创建
+	 *
+	 * @return 缩略图生成
+	 * @throws IOException
+	 *             无法创建图片存储
+	 */
+	public static Thumbnailer getDefault() throws IOException {
+		Thumbnailer thumbnailer = DEFAULT.get();
+		if (thumbnailer == null) {
+			Thumbnailer created = new Thumbnailer("ncps", ImageStore.getDefault(), THREADS, QUEUE_LIMIT);
+			if (DEFAULT.compareAndSet(null, created)) {
+				thumbnailer = created;
+			} else {
+				created.close();
+				thumbnailer = DEFAULT.get();
+			}
+		}
+		return thumbnailer;
+	}
+
+	/**
+	 * 关闭默认的缩略图生成
+	 */
+	public static void closeDefault() {
+		Thumbnailer thumbnailer = DEFAULT.getAndSet(null);
+		if (thumbnailer != null) {
+			thumbnailer.close();
+		}
+	}
+
+	/**
+	 * 是否是生成的缩略图大小
+	 */
+	public static boolean isSize(int size) {
+		for (int s : SIZES) {
+			if (s == size) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 提交一张图片(不等待), 队列已满时丢弃
+	 *
+	 * @param hash
+	 *            图片在ImageStore中的哈希值
+	 */
+	public void submit(final String hash) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				generate(hash);
+			}
+		});
+	}
+
+	/**
+	 * 关闭: 丢弃队列中的图片, 等待正在处理的图片完成
+	 */
+	public void close() {
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Metrics.unregister(metricsSource);
+	}
+
+	/**
+	 * 生成一张图片的缩略图
+	 */
+	private void generate(String hash) {
+		long start = System.nanoTime();
+		try {
+			if (Files.exists(store.thumbnailPath(hash, SIZES[0]))) {
+				// 相同的图片已经处理过: 最小的缩略图最后生成, 存在时其他适用的大小都已生成
+				skipped.increment();
+				return;
+			}
+			BufferedImage image = read(store.path(hash));
+			if (image == null) {
+				skipped.increment();
+				return;
+			}
+			int longest = Math.max(image.getWidth(), image.getHeight());
+			// 从大到小生成, 小的缩略图由大的缩小, 不重复处理原图
+			BufferedImage source = image;
+			for (int i = SIZES.length - 1; i >= 0; i--) {
+				if (SIZES[i] >= longest) {
+					continue;
+				}
+				source = scale(source, SIZES[i]);
+				store.write(store.thumbnailPath(hash, SIZES[i]), encode(source));
+			}
+			done.increment();
+			times.record(System.nanoTime() - start);
+		} catch (IOException | RuntimeException e) {
+			failed.increment();
+			LOG.warn("thumbnail failed", "thumbnailer", name, "image", hash, "error", String.valueOf(e));
+		}
+	}
+
+	/**
+	 * 读取原图, 按最大的缩略图设置隔行采样
+	 *
+	 * @return 图片, 不是可以识别的图片, 太大或不大于最小的缩略图(不需要缩略图, 只读取文件头)时返回<b>null</b>
+	 */
+	private BufferedImage read(Path file) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+			if (in == null) {
+				return null;
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				return null;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				if (Math.max(width, height) <= SIZES[0]) {
+					return null;
+				}
+				if ((long) width * height > MAX_PIXELS) {
+					LOG.warn("image too large for thumbnail", "thumbnailer", name, "width", width, "height", height);
+					return null;
+				}
+				ImageReadParam param = reader.getDefaultReadParam();
+				// 采样后长边仍不小于最大缩略图的2倍, 缩小时保持质量
+				int factor = Math.max(1, Math.max(width, height) / (SIZES[SIZES.length - 1] * 2));
+				if (factor > 1) {
+					param.setSourceSubsampling(factor, factor, 0, 0);
+				}
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * 按长边等比缩小, 结果为RGB(透明部分为白色)
+	 */
+	private static BufferedImage scale(BufferedImage image, int size) {
+		double ratio = (double) size / Math.max(image.getWidth(), image.getHeight());
+		int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+		int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+		BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = result.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, width, height);
+			g.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			g.dispose();
+		}
+		return result;
+	}
+
+	/**
+	 * 编码为JPEG
+	 */
+	private static byte[] encode(BufferedImage image) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 * 1024);
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(QUALITY);
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * 以Prometheus文本格式输出统计数据
+	 */
+	private void writeThumbnailMetrics(StringBuilder sb) {
+		String thumbnailer = "thumbnailer=\"" + name + "\"";
+		sb.append("# HELP mura_thumbnail_queue Images waiting for thumbnails.\n");
+		sb.append("# TYPE mura_thumbnail_queue gauge\n");
+		sb.append("mura_thumbnail_queue{").append(thumbnailer).append("} ").append(executor.getQueue().size())
+				.append('\n');
+		sb.append("# HELP mura_thumbnail_jobs_total Thumbnail jobs by result.\n");
+		sb.append("# TYPE mura_thumbnail_jobs_total counter\n");
+		appendJobs(sb, thumbnailer, "done", done.sum());
+		appendJobs(sb, thumbnailer, "skipped", skipped.sum());
+		appendJobs(sb, thumbnailer, "failed", failed.sum());
+		appendJobs(sb, thumbnailer, "rejected", rejected.sum());
+		sb.append("# HELP mura_thumbnail_seconds Time to generate all thumbnails of one image.\n");
+		sb.append("# TYPE mura_thumbnail_seconds summary\n");
+		long[] values = times.quantiles(QUANTILES);
+		for (int i = 0; i < QUANTILES.length; i++) {
+			sb.append("mura_thumbnail_seconds{").append(thumbnailer).append(",quantile=\"").append(QUANTILES[i])
+					.append("\"} ").append(values[i] / 1e9).append('\n');
+		}
+		sb.append("mura_thumbnail_seconds_sum{").append(thumbnailer).append("} ").append(times.sum() / 1e9)
+				.append('\n');
+		sb.append("mura_thumbnail_seconds_count{").append(thumbnailer).append("} ").append(times.count())
+				.append('\n');
+	}
+
+	/**
+	 * 输出一个任务数
+	 */
+	private static void appendJobs(StringBuilder sb, String thumbnailer, String result, long value) {
+		sb.append("mura_thumbnail_jobs_total{").append(thumbnailer).append(",result=\"").append(result)
+				.append("\"} ").append(value).append('\n');
+	}
+}
@@ -1,7 +1,17 @@
 package edu.sysu.ncps.dao;
 
-
+/**
+ * 值对象基类, 对应数据库查询结果中的一行
+ * <p>
+ * 子类以<b>public</b>成员变量声明各列, 需要有无参数的构造方法<br>
+ * 列名与成员变量名比较时忽略大小写和下划线, 如列<b>noise_type</b>对应成员变量<b>noiseType</b><br>
+ * 查询结果中没有对应成员变量的列被忽略
+ * <p>
+ * 支持的成员变量类型: <b>Integer</b>, <b>Long</b>, <b>Float</b>, <b>Double</b>, <b>Boolean</b>(及对应的基本类型),
+ * <b>String</b>, <b>byte[]</b>, <b>java.sql.Timestamp</b>
+ *
+ * @author mura
+ */
 public abstract class ValueObject {
 
-
 }
@@ -0,0 +1,315 @@
+package edu.sysu.ncps.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mura.json.JSONFloat;
+import org.mura.json.JSONInteger;
+import org.mura.json.JSONObject;
+import org.mura.json.JSONParser;
+import org.mura.json.JSONRecordReader;
+import org.mura.json.JSONString;
+import org.mura.json.JSONVariable;
+import org.mura.servlet.BeanFieldException;
+import org.mura.servlet.FlatJSONWriter;
+import org.mura.servlet.Logger;
+import org.mura.servlet.Metrics;
+
+import edu.sysu.ncps.dao.ComplainDAO;
+import edu.sysu.ncps.dao.ComplainVO;
+import edu.sysu.ncps.dao.JournalWriter;
+
+/**
+ * 批量投诉Servlet: <b>POST /complain/bulk</b>, 一次上传多条投诉(设备离线时积累的记录)
+ * <p>
+ * 请求内容为投诉的JSON数组, 或以换行分隔的JSON对象(NDJSON); 每条投诉的键与/complain的参数相同
+ * (comment, date, intensity, address, latitude, longitude, sfaType, noiseType), 不支持图片
+ * <p>
+ * 请求内容边读取边处理(JSONRecordReader), 不整体保存在内存中: 每条投诉解析, 检查后与/complain相同, 先写入本地日志
+ * (ComplainDAO.getJournalWriter()), 由后台写入数据库; 本地日志不可用或写入失败时提交到批量写入(ComplainDAO.getWriter())<br>
+ * 最多<b>WINDOW</b>条等待结果, 超过时等待最早的一条; 写入本地日志的投诉不逐条刷盘, 输出结果前一起刷盘一次
+ * <p>
+ * 响应为NDJSON, 按投诉的顺序每条输出一行结果:<br>
+ * 成功: <b>{"index":序号,"success":true}</b><br>
+ * 失败: <b>{"index":序号,"success":false,"exception":异常类名,"message":异常信息}</b><br>
+ * 最后一行为合计: <b>{"success":是否读取完整,"records":条数,"accepted":成功条数,"rejected":失败条数}</b>,
+ * 请求内容的结构错误(之后的投诉不能读取)时另外带有exception和message
+ * <p>
+ * 不继承BaseServlet(参数和结果都不是一个JSON对象)
+ *
+ * @author mura
+ */
+@WebServlet(urlPatterns = "/complain/bulk")
+public class BulkComplainServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger LOG = Logger.get("BulkComplainServlet");
+
+	/**
+	 * 一条投诉的最大长度(字符)
+	 */
+	private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+	/**
+	 * 一个请求中最多等待提交的投诉数
+	 */
+	private static final int WINDOW = 256;
+
+	/**
+	 * 等待一条投诉写入的最长时间(毫秒), 超时该条返回错误(投诉仍可能稍后写入)
+	 */
+	private static final long COMMIT_TIMEOUT = 10000;
+
+	private static final FlatJSONWriter ACCEPTED_JSON = new FlatJSONWriter("index", "success");
+	private static final FlatJSONWriter REJECTED_JSON = new FlatJSONWriter("index", "success", "exception",
+			"message");
+	private static final FlatJSONWriter SUMMARY_JSON = new FlatJSONWriter("success", "records", "accepted",
+			"rejected");
+	private static final FlatJSONWriter ABORTED_JSON = new FlatJSONWriter("success", "records", "accepted",
+			"rejected", "exception", "message");
+
+	private static final LongAdder REQUESTS = new LongAdder();
+	private static final LongAdder ABORTED = new LongAdder();
+	private static final LongAdder RECORDS_ACCEPTED = new LongAdder();
+	private static final LongAdder RECORDS_REJECTED = new LongAdder();
+
+	static {
+		Metrics.register(new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				sb.append("# HELP mura_bulk_complain_requests_total Bulk complaint uploads by result.\n");
+				sb.append("# TYPE mura_bulk_complain_requests_total counter\n");
+				sb.append("mura_bulk_complain_requests_total{result=\"complete\"} ")
+						.append(REQUESTS.sum() - ABORTED.sum()).append('\n');
+				sb.append("mura_bulk_complain_requests_total{result=\"aborted\"} ").append(ABORTED.sum())
+						.append('\n');
+				sb.append("# HELP mura_bulk_complain_records_total Bulk complaint records by result.\n");
+				sb.append("# TYPE mura_bulk_complain_records_total counter\n");
+				sb.append("mura_bulk_complain_records_total{result=\"accepted\"} ").append(RECORDS_ACCEPTED.sum())
+						.append('\n');
+				sb.append("mura_bulk_complain_records_total{result=\"rejected\"} ").append(RECORDS_REJECTED.sum())
+						.append('\n');
+			}
+		});
+	}
+
+	/**
+	 * 一条等待结果的投诉: 写入本地日志的位置, 提交到批量写入的Future, 或已经失败的异常, 三者之一
+	 */
+	private static class Pending {
+		final int index;
+		final long position;
+		final CompletableFuture<Void> future;
+		final Exception error;
+
+		Pending(int index, long position, CompletableFuture<Void> future, Exception error) {
+			this.index = index;
+			this.position = position;
+			this.future = future;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * 一个请求的状态: 本地日志写入, 已追加和已刷盘的位置, 结果计数
+	 */
+	private static class Upload {
+		final JournalWriter<ComplainVO> journalWriter = ComplainDAO.getJournalWriter();
+		long appended = -1;
+		long durable = -1;
+		int accepted;
+		int rejected;
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		REQUESTS.increment();
+		if (request.getCharacterEncoding() == null) {
+			request.setCharacterEncoding("UTF-8");
+		}
+		response.setContentType("application/x-ndjson;charset=UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		PrintWriter out = response.getWriter();
+
+		Deque<Pending> window = new ArrayDeque<Pending>();
+		Upload upload = new Upload();
+		JSONRecordReader reader = new JSONRecordReader(request.getReader(), MAX_RECORD_LENGTH);
+		int index = 0;
+		try {
+			String record;
+			while ((record = reader.next()) != null) {
+				Pending pending;
+				try {
+					pending = save(upload, index, toComplain(JSONParser.parse(record, null, true)));
+				} catch (Exception e) {
+					pending = new Pending(index, -1, null, e);
+				}
+				index++;
+				window.addLast(pending);
+				drain(window, out, upload, false);
+			}
+		} catch (IOException e) {
+			// 请求内容的结构错误或读取失败, 已提交的投诉仍然输出结果
+			drain(window, out, upload, true);
+			ABORTED.increment();
+			LOG.warn("bulk complain aborted", "records", index, "error", e.getMessage());
+			ABORTED_JSON.write(out, false, false, index, upload.accepted, upload.rejected, e.getClass().getName(),
+					e.getMessage());
+			out.write('\n');
+			out.flush();
+			return;
+		}
+		drain(window, out, upload, true);
+		SUMMARY_JSON.write(out, false, true, index, upload.accepted, upload.rejected);
+		out.write('\n');
+		out.flush();
+	}
+
+	/**
+	 * 保存一条投诉: 写入本地日志(不刷盘); 本地日志不可用或写入失败时提交到批量写入
+	 */
+	private Pending save(Upload upload, int index, ComplainVO vo) {
+		if (upload.journalWriter != null) {
+			try {
+				upload.appended = upload.journalWriter.appendDeferred(vo);
+				return new Pending(index, upload.appended, null, null);
+			} catch (IOException e) {
+				LOG.warn("journal append failed, writing to database", "index", index, "error", e.getMessage());
+			}
+		}
+		return new Pending(index, -1, ComplainDAO.getWriter().submit(vo), null);
+	}
+
+	/**
+	 * 按顺序输出已有结果的投诉; 等待的投诉达到<b>WINDOW</b>条(或<b>all</b>)时先输出已写的部分, 再等待最早的一条<br>
+	 * 写入本地日志的投诉在刷盘后才有结果, 一次刷盘包含之前追加的全部投诉
+	 *
+	 * @param all
+	 *            是否等待全部投诉的结果
+	 */
+	private void drain(Deque<Pending> window, PrintWriter out, Upload upload, boolean all) {
+		while (!window.isEmpty()) {
+			Pending pending = window.peekFirst();
+			Exception error = pending.error;
+			if (error == null) {
+				boolean done = pending.future == null ? upload.durable >= pending.position : pending.future.isDone();
+				if (!done) {
+					if (!all && window.size() < WINDOW) {
+						return;
+					}
+					out.flush();
+				}
+				error = pending.future == null ? awaitDurable(upload) : await(pending.future);
+			}
+			window.pollFirst();
+			if (error == null) {
+				upload.accepted++;
+				RECORDS_ACCEPTED.increment();
+				ACCEPTED_JSON.write(out, false, pending.index, true);
+			} else {
+				upload.rejected++;
+				RECORDS_REJECTED.increment();
+				REJECTED_JSON.write(out, false, pending.index, false, error.getClass().getName(), error.getMessage());
+			}
+			out.write('\n');
+		}
+	}
+
+	/**
+	 * 等待写入本地日志的投诉刷盘, 刷到最后追加的位置
+	 *
+	 * @return 刷盘失败的异常; 成功时返回null
+	 */
+	private static Exception awaitDurable(Upload upload) {
+		if (upload.durable < upload.appended) {
+			try {
+				upload.journalWriter.awaitDurable(upload.appended);
+			} catch (IOException e) {
+				return e;
+			}
+			upload.durable = upload.appended;
+		}
+		return null;
+	}
+
+	/**
+	 * 等待一条投诉写入
+	 *
+	 * @return 写入失败的异常; 成功时返回null
+	 */
+	private static Exception await(CompletableFuture<Void> future) {
+		try {
+			future.get(COMMIT_TIMEOUT, TimeUnit.MILLISECONDS);
+			return null;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			return cause instanceof Exception ? (Exception) cause : e;
+		} catch (TimeoutException e) {
+			return e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return e;
+		}
+	}
+
+	/**
+	 * 将一条记录转换为投诉, 键与/complain的参数相同, 都是可选的, 其他的键忽略
+	 */
+	private static ComplainVO toComplain(JSONObject record) throws BeanFieldException {
+		if (record.contains("image")) {
+			throw new BeanFieldException("Images are not supported in bulk upload, use /complain");
+		}
+		ComplainVO vo = new ComplainVO();
+		vo.comment = getString(record, "comment");
+		vo.date = getString(record, "date");
+		vo.intensity = getFloat(record, "intensity");
+		vo.address = getString(record, "address");
+		vo.latitude = getFloat(record, "latitude");
+		vo.longitude = getFloat(record, "longitude");
+		vo.sfaType = getString(record, "sfaType");
+		vo.noiseType = getString(record, "noiseType");
+		return vo;
+	}
+
+	private static String getString(JSONObject record, String key) throws BeanFieldException {
+		JSONVariable<?> var = record.get(key);
+		if (var == null || var.getValue() == null) {
+			return null;
+		}
+		if (!(var instanceof JSONString)) {
+			throw new BeanFieldException("Cannot parse field: " + key + " ,value: " + var.getValue()
+					+ ", into type: String");
+		}
+		return ((JSONString) var).getValue();
+	}
+
+	private static Float getFloat(JSONObject record, String key) throws BeanFieldException {
+		JSONVariable<?> var = record.get(key);
+		if (var == null || var.getValue() == null) {
+			return null;
+		}
+		if (var instanceof JSONFloat) {
+			return ((JSONFloat) var).getValue();
+		}
+		if (var instanceof JSONInteger) {
+			return ((JSONInteger) var).getValue().floatValue();
+		}
+		throw new BeanFieldException("Cannot parse field: " + key + " ,value: " + var.getValue()
+				+ ", into type: Float");
+	}
+}
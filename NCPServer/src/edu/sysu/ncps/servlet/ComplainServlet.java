@@ -1,12 +1,27 @@
 package edu.sysu.ncps.servlet;
 
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import javax.servlet.annotation.WebServlet;
 
-@WebServlet("/complain")
+import edu.sysu.ncps.dao.ComplainDAO;
+import edu.sysu.ncps.dao.ComplainVO;
+import edu.sysu.ncps.dao.ImageStore;
+import edu.sysu.ncps.dao.JournalWriter;
+import edu.sysu.ncps.dao.Thumbnailer;
+
+@WebServlet(urlPatterns = "/complain", asyncSupported = true)
 public class ComplainServlet extends NCPServlet<ComplainServlet.ComplainPara, ComplainServlet.ComplainJSON> {
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * 直接写入数据库时, 等待投诉写入的最长时间(毫秒), 超时返回错误(投诉仍可能稍后写入)
+	 */
+	private static final long COMMIT_TIMEOUT = 10000;
+
 	public static class ComplainPara extends NCPPara {
 		public String _comment;
 		public String _date;
@@ -26,7 +41,10 @@ public class ComplainServlet extends NCPServlet<ComplainServlet.ComplainPara, Co
 		public String address;
 		public Float latitude;
 		public Float longitude;
-		public byte[] image;
+		/**
+		 * 图片的哈希值, 图片通过/image/{imageHash}下载
+		 */
+		public String imageHash;
 		public String sfaType;
 		public String noiseType;
 	}
@@ -39,8 +57,46 @@ public class ComplainServlet extends NCPServlet<ComplainServlet.ComplainPara, Co
 		json.address = para._address;
 		json.latitude = para._latitude;
 		json.longitude = para._longitude;
-		json.image = para._image;
 		json.sfaType = para._sfaType;
 		json.noiseType = para._noiseType;
+
+		ComplainVO vo = new ComplainVO();
+		vo.comment = para._comment;
+		vo.date = para._date;
+		vo.intensity = para._intensity;
+		vo.address = para._address;
+		vo.latitude = para._latitude;
+		vo.longitude = para._longitude;
+		// 图片保存到ImageStore, 投诉中只记录哈希值
+		vo.imageHash = para._image == null ? null : ImageStore.getDefault().put(para._image);
+		json.imageHash = vo.imageHash;
+		vo.sfaType = para._sfaType;
+		vo.noiseType = para._noiseType;
+		save(vo);
+		// 投诉保存后在后台生成缩略图, 不等待
+		if (vo.imageHash != null) {
+			Thumbnailer.getDefault().submit(vo.imageHash);
+		}
+	}
+
+	/**
+	 * 保存投诉: 先写入本地日志(刷盘后返回), 由后台写入数据库; 本地日志不可用时直接写入数据库(事务提交后返回)
+	 */
+	private void save(ComplainVO vo) throws Exception {
+		JournalWriter<ComplainVO> journalWriter = ComplainDAO.getJournalWriter();
+		if (journalWriter != null) {
+			try {
+				journalWriter.append(vo);
+				return;
+			} catch (IOException e) {
+				log.warn("journal append failed, writing to database", "error", e.getMessage());
+			}
+		}
+		try {
+			ComplainDAO.getWriter().submit(vo).get(COMMIT_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof Exception ? (Exception) cause : e;
+		}
 	}
 }
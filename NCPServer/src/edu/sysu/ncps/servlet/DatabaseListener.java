@@ -0,0 +1,60 @@
+package edu.sysu.ncps.servlet;
+
+import java.sql.SQLException;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import org.mura.jfr.FlightEventType;
+import org.mura.servlet.Logger;
+
+import edu.sysu.ncps.dao.ComplainDAO;
+import edu.sysu.ncps.dao.ComplainRollup;
+import edu.sysu.ncps.dao.DAO;
+import edu.sysu.ncps.dao.ImageStore;
+import edu.sysu.ncps.dao.Thumbnailer;
+
+/**
+ * Web应用启动时读取投诉的经纬度索引和汇总快照, 然后打开投诉的本地日志(写入上次未写入数据库的投诉)<br>
+ * Web应用停止时关闭数据库连接池(先关闭本地日志, 写完批量写入队列中的记录, 写入汇总快照), 缩略图生成和图片存储,
+ * 移除JFR录制状态的监听器, 最后写完并关闭日志
+ *
+ * @author mura
+ */
+@WebListener
+public class DatabaseListener implements ServletContextListener {
+
+	private static final Logger LOG = Logger.get("DatabaseListener");
+
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		// 服务器没有显示设备, 缩略图生成(AWT)使用headless模式; 启动参数中已设置时不覆盖
+		if (System.getProperty("java.awt.headless") == null) {
+			System.setProperty("java.awt.headless", "true");
+		}
+		// 连接池在第一次使用时创建; 索引在写入投诉之前读取, 之后的投诉提交后加入
+		long start = System.nanoTime();
+		try {
+			int count = ComplainDAO.loadIndex();
+			LOG.info("complain index loaded", "complaints", count, "ms", (System.nanoTime() - start) / 1000000);
+		} catch (SQLException e) {
+			LOG.error("cannot load complain index, nearby queries only see new complaints", e);
+		}
+		ComplainRollup.getDefault();
+		ComplainDAO.openJournalWriter();
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		ComplainDAO.closeJournalWriter();
+		ComplainDAO.closeWriter();
+		ComplainRollup.closeDefault();
+		DAO.closeDefault();
+		Thumbnailer.closeDefault();
+		ImageStore.closeDefault();
+		FlightEventType.shutdown();
+		// 最后关闭日志, 写完之前的日志
+		Logger.shutdown();
+	}
+}
@@ -0,0 +1,172 @@
+package edu.sysu.ncps.servlet;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mura.servlet.BaseServlet;
+
+import edu.sysu.ncps.dao.ComplainVO;
+import edu.sysu.ncps.dao.DAO;
+import edu.sysu.ncps.dao.Query;
+
+/**
+ * 阻塞的请求处理在两种线程池中的吞吐量对比: 容器大小的平台线程池与每个请求一个虚拟线程
+ * <p>
+ * 每个请求从连接池借出连接, 执行一次查询后归还; 数据库是一个替身(ConnectionFactory创建的代理连接),
+ * 每次查询固定等待<b>延迟</b>毫秒, 模拟慢的数据库<br>
+ * 平台线程池的大小与Tomcat的默认maxThreads相同, 连接池的最大连接数可以设置
+ * <p>
+ * 虚拟线程需要JDK 21及以上版本, 不支持时只输出平台线程池的结果; JDK 21-23中查询的synchronized块会占住载体线程,
+ * 虚拟线程的结果受载体线程数限制
+ * <p>
+ * 运行: <b>java edu.sysu.ncps.servlet.ExecutorBenchmark [请求数] [延迟(毫秒)] [最大连接数]</b>
+ *
+ * @author mura
+ */
+public class ExecutorBenchmark {
+
+	/**
+	 * 平台线程池的大小(Tomcat默认的maxThreads)
+	 */
+	private static final int CONTAINER_THREADS = 200;
+
+	/**
+	 * 替身数据库上执行的查询
+	 */
+	private static final Query<ComplainVO> QUERY = new Query<ComplainVO>(ComplainVO.class,
+			"SELECT * FROM complain WHERE id = ?");
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		final long latency = args.length > 1 ? Long.parseLong(args[1]) : 20;
+		int connections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+		DAO dao = new DAO("benchmark", new DAO.ConnectionFactory() {
+			@Override
+			public Connection create() throws SQLException {
+				return slowConnection(latency);
+			}
+		}, 0, connections, DAO.Validation.NEVER);
+		System.out.println("requests: " + requests + ", db latency: " + latency + " ms, max connections: "
+				+ connections);
+		try {
+			// 预热: 创建连接, 编译代码
+			run("warmup", Executors.newFixedThreadPool(CONTAINER_THREADS), dao, Math.min(requests, 2000));
+			run("platform(" + CONTAINER_THREADS + ")", Executors.newFixedThreadPool(CONTAINER_THREADS), dao,
+					requests);
+			ExecutorService virtual = BaseServlet.newVirtualThreadExecutor();
+			if (virtual == null) {
+				System.out.println("virtual: not supported on java " + System.getProperty("java.version"));
+			} else {
+				run("virtual", virtual, dao, requests);
+			}
+		} finally {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 在线程池中执行全部请求, 输出吞吐量和平均耗时, 结束后关闭线程池
+	 */
+	private static void run(String name, ExecutorService executor, final DAO dao, int requests)
+			throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(requests);
+		final LongAdder latency = new LongAdder();
+		final AtomicInteger failed = new AtomicInteger();
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			final long id = i;
+			final long submitted = System.nanoTime();
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try (Connection connection = dao.getConnection()) {
+						QUERY.first(connection, id);
+					} catch (SQLException e) {
+						failed.incrementAndGet();
+					} finally {
+						latency.add(System.nanoTime() - submitted);
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+		long nanos = System.nanoTime() - start;
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+		System.out.println(name + ": " + String.format("%.0f", requests * 1e9 / nanos) + " req/s, mean latency "
+				+ String.format("%.1f", latency.sum() / 1e6 / requests) + " ms, failed " + failed.get());
+	}
+
+	/**
+	 * 创建替身数据库连接: 每次查询等待<b>latency</b>毫秒, 结果为空<br>
+	 * 与Connector/J相同, 查询在连接的synchronized块中执行(JDK 21-23中虚拟线程会占住载体线程)
+	 */
+	private static Connection slowConnection(final long latency) {
+		final Object connectionMutex = new Object();
+		final ResultSet empty = (ResultSet) proxy(ResultSet.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getName().equals("next") ? Boolean.FALSE : null;
+			}
+		});
+		final PreparedStatement statement = (PreparedStatement) proxy(PreparedStatement.class,
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("executeQuery")) {
+							synchronized (connectionMutex) {
+								Thread.sleep(latency);
+							}
+							return empty;
+						}
+						return defaultValue(method);
+					}
+				});
+		return (Connection) proxy(Connection.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+				case "prepareStatement":
+					return statement;
+				case "isValid":
+				case "getAutoCommit":
+					return Boolean.TRUE;
+				default:
+					return defaultValue(method);
+				}
+			}
+		});
+	}
+
+	private static Object proxy(Class<?> type, InvocationHandler handler) {
+		return Proxy.newProxyInstance(ExecutorBenchmark.class.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+
+	/**
+	 * 代理方法的默认返回值(基本类型不能返回null)
+	 */
+	private static Object defaultValue(Method method) {
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,238 @@
+package edu.sysu.ncps.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Timestamp;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mura.servlet.BeanFieldException;
+import org.mura.servlet.ErrorJSONWriter;
+import org.mura.servlet.FlatJSONWriter;
+import org.mura.servlet.Logger;
+import org.mura.servlet.Metrics;
+
+import edu.sysu.ncps.dao.ComplainDAO;
+import edu.sysu.ncps.dao.ComplainVO;
+import edu.sysu.ncps.dao.Query;
+
+/**
+ * 投诉导出Servlet: <b>GET /complain/export</b>
+ * <p>
+ * 参数: 写入时间范围<b>from</b>, <b>to</b>(可选, Unix时间, 秒; 默认为全部), 格式<b>format</b>(ndjson, json, 可选, 默认ndjson)
+ * <p>
+ * 从数据库逐行读取(ComplainDAO.export()), 每行直接输出到响应(chunked), 不生成全部结果的JSON, 内存占用与行数无关<br>
+ * 每<b>FLUSH_ROWS</b>行或<b>FLUSH_INTERVAL</b>毫秒刷新一次输出, 客户端断开时停止查询
+ * <p>
+ * 每条投诉输出所有的列(没有值的为null), 写入时间<b>created</b>为Unix时间(秒)<br>
+ * ndjson: 每行一条投诉; 中途出错时最后一行为<b>{"success":false,"exception":异常类名,"message":异常信息}</b><br>
+ * json: 一个数组; 中途出错时数组不结束(不是完整的JSON)
+ * <p>
+ * 导出期间占用一个数据库连接, 同时最多<b>MAX_EXPORTS</b>个导出, 超过时返回503
+ * <p>
+ * 不继承BaseServlet(结果不是一个JSON对象)
+ *
+ * @author mura
+ */
+@WebServlet(urlPatterns = "/complain/export")
+public class ExportServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger LOG = Logger.get("ExportServlet");
+
+	/**
+	 * 同时进行的最多导出数
+	 */
+	private static final int MAX_EXPORTS = 2;
+
+	/**
+	 * 响应缓冲区的大小
+	 */
+	private static final int BUFFER_SIZE = 32 * 1024;
+
+	/**
+	 * 每输出此行数刷新一次
+	 */
+	private static final int FLUSH_ROWS = 1000;
+
+	/**
+	 * 距上次刷新超过此时间(毫秒)时刷新, 查询慢时客户端也能持续收到数据
+	 */
+	private static final long FLUSH_INTERVAL = 1000;
+
+	private static final FlatJSONWriter ROW_JSON = new FlatJSONWriter("id", "comment", "date", "intensity",
+			"address", "latitude", "longitude", "imageHash", "sfaType", "noiseType", "created");
+	private static final ErrorJSONWriter ERROR_JSON = new ErrorJSONWriter("success", "exception", "message");
+
+	private static final Semaphore EXPORTS = new Semaphore(MAX_EXPORTS);
+
+	private static final LongAdder COMPLETE = new LongAdder();
+	private static final LongAdder FAILED = new LongAdder();
+	private static final LongAdder BUSY = new LongAdder();
+	private static final LongAdder ROWS = new LongAdder();
+
+	static {
+		Metrics.register(new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				sb.append("# HELP mura_export_requests_total Complaint exports by result.\n");
+				sb.append("# TYPE mura_export_requests_total counter\n");
+				sb.append("mura_export_requests_total{result=\"complete\"} ").append(COMPLETE.sum()).append('\n');
+				sb.append("mura_export_requests_total{result=\"failed\"} ").append(FAILED.sum()).append('\n');
+				sb.append("mura_export_requests_total{result=\"busy\"} ").append(BUSY.sum()).append('\n');
+				sb.append("# HELP mura_export_rows_total Complaint rows exported.\n");
+				sb.append("# TYPE mura_export_rows_total counter\n");
+				sb.append("mura_export_rows_total ").append(ROWS.sum()).append('\n');
+				sb.append("# HELP mura_export_active Complaint exports in progress.\n");
+				sb.append("# TYPE mura_export_active gauge\n");
+				sb.append("mura_export_active ").append(MAX_EXPORTS - EXPORTS.availablePermits()).append('\n');
+			}
+		});
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		response.setCharacterEncoding("UTF-8");
+		long from;
+		long to;
+		try {
+			from = parseTime(request.getParameter("from"), 0);
+			to = parseTime(request.getParameter("to"), System.currentTimeMillis() / 1000 + 1);
+		} catch (NumberFormatException e) {
+			error(response, HttpServletResponse.SC_BAD_REQUEST, BeanFieldException.class.getName(),
+					"Invalid time: " + e.getMessage() + ", type: Integer");
+			return;
+		}
+		String format = request.getParameter("format");
+		final boolean array;
+		if (format == null || format.equals("ndjson")) {
+			array = false;
+		} else if (format.equals("json")) {
+			array = true;
+		} else {
+			error(response, HttpServletResponse.SC_BAD_REQUEST, BeanFieldException.class.getName(),
+					"Invalid format: " + format + ", use ndjson or json");
+			return;
+		}
+		if (!EXPORTS.tryAcquire()) {
+			BUSY.increment();
+			response.setHeader("Retry-After", "10");
+			error(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, RejectedExecutionException.class.getName(),
+					"Too many exports in progress");
+			return;
+		}
+		try {
+			export(response, from, to, array);
+		} finally {
+			EXPORTS.release();
+		}
+	}
+
+	/**
+	 * 导出
+	 *
+	 * @param from
+	 *            开始时间(秒, 包含)
+	 * @param to
+	 *            结束时间(秒, 不包含)
+	 * @param array
+	 *            是否输出为JSON数组
+	 */
+	private void export(HttpServletResponse response, long from, long to, final boolean array) throws IOException {
+		response.setContentType(array ? "application/json;charset=UTF-8" : "application/x-ndjson;charset=UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.setBufferSize(BUFFER_SIZE);
+		final PrintWriter out = response.getWriter();
+		if (array) {
+			out.write('[');
+		}
+		long start = System.nanoTime();
+		int count;
+		try {
+			count = ComplainDAO.export(new Timestamp(from * 1000), new Timestamp(to * 1000),
+					new Query.RowHandler<ComplainVO>() {
+						private int rows;
+						private long flushed = System.currentTimeMillis();
+
+						@Override
+						public void handle(ComplainVO vo) throws IOException {
+							if (array && rows > 0) {
+								out.write(',');
+							}
+							ROW_JSON.write(out, false, vo.id, vo.comment, vo.date, vo.intensity, vo.address,
+									vo.latitude, vo.longitude, vo.imageHash, vo.sfaType, vo.noiseType,
+									vo.created == null ? null : vo.created.getTime() / 1000);
+							out.write('\n');
+							rows++;
+							long now = System.currentTimeMillis();
+							if (rows % FLUSH_ROWS == 0 || now - flushed >= FLUSH_INTERVAL) {
+								flushed = now;
+								out.flush();
+								// PrintWriter不抛出异常, 客户端断开时停止查询
+								if (out.checkError()) {
+									throw new IOException("Client disconnected after " + rows + " rows");
+								}
+							}
+						}
+					});
+		} catch (IOException e) {
+			// 客户端断开, 不需要输出
+			FAILED.increment();
+			LOG.warn("export aborted", "from", from, "to", to, "error", e.getMessage());
+			return;
+		} catch (Exception e) {
+			FAILED.increment();
+			LOG.error("export failed", e, "from", from, "to", to);
+			if (!response.isCommitted()) {
+				response.resetBuffer();
+				error(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getClass().getName(), e.getMessage());
+			} else if (!array) {
+				ERROR_JSON.write(out, false, false, e.getClass().getName(), e.getMessage());
+				out.write('\n');
+				out.flush();
+			}
+			return;
+		}
+		if (array) {
+			out.write("]\n");
+		}
+		out.flush();
+		COMPLETE.increment();
+		ROWS.add(count);
+		LOG.info("export complete", "from", from, "to", to, "rows", count, "ms",
+				(System.nanoTime() - start) / 1000000);
+	}
+
+	/**
+	 * 解析时间参数(Unix时间, 秒)
+	 *
+	 * @param value
+	 *            参数值, 可以为null
+	 * @param defaultValue
+	 *            参数值为null时的默认值
+	 */
+	private static long parseTime(String value, long defaultValue) {
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+
+	/**
+	 * 输出错误信息(与NCPServlet的错误信息格式相同)
+	 */
+	private static void error(HttpServletResponse response, int status, String exception, String message)
+			throws IOException {
+		response.setStatus(status);
+		response.setContentType("application/json;charset=UTF-8");
+		PrintWriter out = response.getWriter();
+		ERROR_JSON.write(out, false, false, exception, message);
+		out.flush();
+	}
+}
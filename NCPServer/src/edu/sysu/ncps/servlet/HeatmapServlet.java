@@ -0,0 +1,88 @@
+package edu.sysu.ncps.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.annotation.WebServlet;
+
+import org.mura.servlet.BeanFieldException;
+import org.mura.servlet.JSONBean;
+
+import edu.sysu.ncps.dao.ComplainDAO;
+import edu.sysu.ncps.dao.Heatmap;
+
+/**
+ * 查询热力图瓦片, 使用内存中增量累计的热力图, 不查询数据库
+ * <p>
+ * 参数: 瓦片<b>zoom</b>, <b>x</b>, <b>y</b>(Web墨卡托), 细分级数<b>detail</b>(可选),
+ * 时间范围<b>from</b>, <b>to</b>(可选, Unix时间, 秒; 默认为最近24小时)<br>
+ * 返回瓦片中有投诉的各子瓦片(缩放级别为<b>cellZoom</b>)的投诉数, 强度的平均值和最大值
+ *
+ * @author mura
+ */
+@WebServlet("/heatmap")
+public class HeatmapServlet extends NCPServlet<HeatmapServlet.HeatmapPara, HeatmapServlet.HeatmapJSON> {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 默认的细分级数(8x8个子瓦片)
+	 */
+	private static final int DEFAULT_DETAIL = 3;
+
+	/**
+	 * 默认的时间范围(秒)
+	 */
+	private static final int DEFAULT_RANGE = 24 * 60 * 60;
+
+	public static class HeatmapPara extends NCPPara {
+		public Integer zoom;
+		public Integer x;
+		public Integer y;
+		public Integer _detail;
+		public Integer _from;
+		public Integer _to;
+	}
+
+	public static class HeatmapJSON extends NCPJSON {
+		public Integer cellZoom;
+		public List<HeatmapCell> cells;
+	}
+
+	/**
+	 * 一个子瓦片的合计, 没有强度时不返回平均值和最大值
+	 */
+	public static class HeatmapCell extends JSONBean {
+		public Integer x;
+		public Integer y;
+		public Integer count;
+		public Float _mean;
+		public Float _max;
+	}
+
+	@Override
+	protected void ncpService(HeatmapPara para, HeatmapJSON json, Servlet servlet) throws Exception {
+		int detail = para._detail == null ? DEFAULT_DETAIL : para._detail;
+		long to = para._to == null ? System.currentTimeMillis() : para._to * 1000L;
+		long from = para._from == null ? to - DEFAULT_RANGE * 1000L : para._from * 1000L;
+		if (from > to) {
+			throw new BeanFieldException("Invalid time range: " + para._from + " - " + para._to);
+		}
+
+		Heatmap heatmap = ComplainDAO.getHeatmap();
+		List<Heatmap.Cell> cells = heatmap.query(para.zoom, para.x, para.y, detail, from, to);
+		json.cellZoom = Math.min(heatmap.getMaxZoom(), para.zoom + detail);
+		json.cells = new ArrayList<HeatmapCell>(cells.size());
+		for (Heatmap.Cell cell : cells) {
+			HeatmapCell item = new HeatmapCell();
+			item.x = cell.x;
+			item.y = cell.y;
+			item.count = (int) Math.min(Integer.MAX_VALUE, cell.count);
+			if (cell.measured > 0) {
+				item._mean = (float) (cell.sum / cell.measured);
+				item._max = (float) cell.max;
+			}
+			json.cells.add(item);
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package edu.sysu.ncps.servlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mura.servlet.Metrics;
+
+import edu.sysu.ncps.dao.ImageStore;
+import edu.sysu.ncps.dao.Thumbnailer;
+
+/**
+ * 图片下载Servlet: <b>GET /image/{哈希值}</b>, 缩略图为<b>GET /image/{哈希值}?size={长边}</b>
+ * <p>
+ * 图片按内容寻址, 同一个地址的内容不会改变: ETag就是哈希值, 响应可以永久缓存<br>
+ * 缩略图还没有生成(或原图比缩略图小)时返回原图, 只缓存<b>FALLBACK_MAX_AGE</b><br>
+ * 支持<b>If-None-Match</b>(304), <b>Range</b>/<b>If-Range</b>(单个范围, 206/416)和HEAD请求
+ * <p>
+ * 图片内容不经过JSON, 直接从文件输出:<br>
+ * 容器支持sendfile(Tomcat NIO/APR)且图片不小于<b>SENDFILE_THRESHOLD</b>时由容器从文件直接发送到socket,
+ * 否则通过FileChannel.transferTo()输出
+ * <p>
+ * 不继承BaseServlet(不是JSON接口)
+ *
+ * @author mura
+ */
+@WebServlet(urlPatterns = "/image/*")
+public class ImageServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 使用sendfile的最小长度(与Tomcat DefaultServlet的默认值相同), 小图片直接输出更快
+	 */
+	private static final long SENDFILE_THRESHOLD = 48 * 1024;
+
+	/**
+	 * 缓存时间(秒), 一年
+	 */
+	private static final long MAX_AGE = 365L * 24 * 60 * 60;
+
+	/**
+	 * 缩略图不存在, 返回原图时的缓存时间(秒), 之后客户端重新请求时可能得到缩略图
+	 */
+	private static final long FALLBACK_MAX_AGE = 60;
+
+	/**
+	 * Tomcat的sendfile请求属性
+	 */
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+	/**
+	 * 识别图片类型需要读取的字节数
+	 */
+	private static final int MAGIC_LENGTH = 12;
+
+	private static final LongAdder OK = new LongAdder();
+	private static final LongAdder PARTIAL = new LongAdder();
+	private static final LongAdder NOT_MODIFIED = new LongAdder();
+	private static final LongAdder NOT_FOUND = new LongAdder();
+	private static final LongAdder UNSATISFIABLE = new LongAdder();
+	private static final LongAdder SENT_BYTES = new LongAdder();
+	private static final LongAdder SENDFILE = new LongAdder();
+
+	static {
+		Metrics.register(new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				writeImageMetrics(sb);
+			}
+		});
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		serve(request, response, true);
+	}
+
+	@Override
+	protected void doHead(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		serve(request, response, false);
+	}
+
+	/**
+	 * 处理请求
+	 *
+	 * @param body
+	 *            是否输出内容(HEAD请求为false)
+	 */
+	private void serve(HttpServletRequest request, HttpServletResponse response, boolean body) throws IOException {
+		String pathInfo = request.getPathInfo();
+		String hash = pathInfo == null ? null : pathInfo.substring(1);
+		if (!ImageStore.isHash(hash)) {
+			NOT_FOUND.increment();
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		ImageStore store = ImageStore.getDefault();
+		Path file = store.path(hash);
+		String etag = "\"" + hash + "\"";
+		String cacheControl = "public, max-age=" + MAX_AGE + ", immutable";
+		int thumbnail = thumbnailSize(request.getParameter("size"));
+		if (thumbnail > 0) {
+			Path thumbnailFile = store.thumbnailPath(hash, thumbnail);
+			if (Files.exists(thumbnailFile)) {
+				file = thumbnailFile;
+				etag = "\"" + hash + "-" + thumbnail + "\"";
+			} else {
+				cacheControl = "public, max-age=" + FALLBACK_MAX_AGE;
+			}
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			response.setHeader("ETag", etag);
+			response.setHeader("Cache-Control", cacheControl);
+			response.setHeader("Accept-Ranges", "bytes");
+			if (matches(request.getHeader("If-None-Match"), etag)) {
+				NOT_MODIFIED.increment();
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			response.setContentType(contentType(channel));
+
+			long start = 0;
+			long end = size - 1;
+			String range = request.getHeader("Range");
+			String ifRange = request.getHeader("If-Range");
+			if (range != null && (ifRange == null || ifRange.trim().equals(etag))) {
+				long[] bounds = parseRange(range, size);
+				if (bounds == null) {
+					UNSATISFIABLE.increment();
+					response.setHeader("Content-Range", "bytes */" + size);
+					response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+					return;
+				}
+				if (bounds.length == 2) {
+					start = bounds[0];
+					end = bounds[1];
+					PARTIAL.increment();
+					response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+					response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + size);
+				} else {
+					OK.increment();
+				}
+			} else {
+				OK.increment();
+			}
+			long length = end - start + 1;
+			response.setContentLengthLong(length);
+			if (!body || length <= 0) {
+				return;
+			}
+			if (length >= SENDFILE_THRESHOLD && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+				// 容器在Servlet返回后从文件直接发送
+				SENDFILE.increment();
+				request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+				request.setAttribute(SENDFILE_START, start);
+				request.setAttribute(SENDFILE_END, end + 1);
+			} else {
+				transfer(channel, start, length, Channels.newChannel(response.getOutputStream()));
+			}
+			SENT_BYTES.add(length);
+		} catch (NoSuchFileException e) {
+			NOT_FOUND.increment();
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+		}
+	}
+
+	/**
+	 * 解析缩略图大小
+	 *
+	 * @return 缩略图的长边, 没有或不是生成的大小时返回0
+	 */
+	private static int thumbnailSize(String value) {
+		if (value == null) {
+			return 0;
+		}
+		try {
+			int size = Integer.parseInt(value);
+			return Thumbnailer.isSize(size) ? size : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * 从文件输出指定范围
+	 */
+	private static void transfer(FileChannel channel, long start, long length, WritableByteChannel out)
+			throws IOException {
+		long position = start;
+		long remaining = length;
+		while (remaining > 0) {
+			long sent = channel.transferTo(position, remaining, out);
+			if (sent <= 0) {
+				throw new IOException("Image file truncated at " + position);
+			}
+			position += sent;
+			remaining -= sent;
+		}
+	}
+
+	/**
+	 * If-None-Match是否包含ETag
+	 */
+	private static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 解析Range
+	 *
+	 * @param range
+	 *            Range请求头
+	 * @param size
+	 *            文件大小
+	 * @return 范围{开始, 结束(包含)}; 格式不支持(非bytes或多个范围)时返回长度为0的数组(输出全部);
+	 *         无法满足时返回<b>null</b>
+	 */
+	private static long[] parseRange(String range, long size) {
+		range = range.trim();
+		if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+			return new long[0];
+		}
+		String spec = range.substring(6).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return new long[0];
+		}
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			long start;
+			long end;
+			if (first.isEmpty()) {
+				// 最后n个字节
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0) {
+					return null;
+				}
+				start = Math.max(size - suffix, 0);
+				end = size - 1;
+			} else {
+				start = Long.parseLong(first);
+				end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+			}
+			if (start < 0 || start >= size || end < start) {
+				return null;
+			}
+			return new long[] { start, end };
+		} catch (NumberFormatException e) {
+			return new long[0];
+		}
+	}
+
+	/**
+	 * 根据文件开头的字节识别图片类型
+	 */
+	private static String contentType(FileChannel channel) throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(MAGIC_LENGTH);
+		while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+			// 读满或到文件结尾
+		}
+		byte[] b = magic.array();
+		int n = magic.position();
+		if (n >= 3 && (b[0] & 0xff) == 0xff && (b[1] & 0xff) == 0xd8 && (b[2] & 0xff) == 0xff) {
+			return "image/jpeg";
+		} else if (n >= 8 && (b[0] & 0xff) == 0x89 && b[1] == 'P' && b[2] == 'N' && b[3] == 'G') {
+			return "image/png";
+		} else if (n >= 6 && b[0] == 'G' && b[1] == 'I' && b[2] == 'F' && b[3] == '8') {
+			return "image/gif";
+		} else if (n >= 12 && b[0] == 'R' && b[1] == 'I' && b[2] == 'F' && b[3] == 'F' && b[8] == 'W' && b[9] == 'E'
+				&& b[10] == 'B' && b[11] == 'P') {
+			return "image/webp";
+		} else if (n >= 2 && b[0] == 'B' && b[1] == 'M') {
+			return "image/bmp";
+		}
+		return "application/octet-stream";
+	}
+
+	/**
+	 * 以Prometheus文本格式输出统计数据
+	 */
+	private static void writeImageMetrics(StringBuilder sb) {
+		sb.append("# HELP mura_image_requests_total Image download requests by status.\n");
+		sb.append("# TYPE mura_image_requests_total counter\n");
+		appendStatus(sb, 200, OK.sum());
+		appendStatus(sb, 206, PARTIAL.sum());
+		appendStatus(sb, 304, NOT_MODIFIED.sum());
+		appendStatus(sb, 404, NOT_FOUND.sum());
+		appendStatus(sb, 416, UNSATISFIABLE.sum());
+		sb.append("# HELP mura_image_sent_bytes_total Image bytes sent.\n");
+		sb.append("# TYPE mura_image_sent_bytes_total counter\n");
+		sb.append("mura_image_sent_bytes_total ").append(SENT_BYTES.sum()).append('\n');
+		sb.append("# HELP mura_image_sendfile_total Responses handed to the container's sendfile.\n");
+		sb.append("# TYPE mura_image_sendfile_total counter\n");
+		sb.append("mura_image_sendfile_total ").append(SENDFILE.sum()).append('\n');
+	}
+
+	private static void appendStatus(StringBuilder sb, int status, long value) {
+		sb.append("mura_image_requests_total{status=\"").append(status).append("\"} ").append(value).append('\n');
+	}
+}
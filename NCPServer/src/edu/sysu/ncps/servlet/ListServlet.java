@@ -0,0 +1,146 @@
+package edu.sysu.ncps.servlet;
+
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import javax.servlet.annotation.WebServlet;
+
+import org.mura.servlet.BeanFieldException;
+import org.mura.servlet.JSONBean;
+
+import edu.sysu.ncps.dao.ComplainDAO;
+import edu.sysu.ncps.dao.ComplainVO;
+
+/**
+ * 分页查询投诉, 按写入时间从新到旧
+ * <p>
+ * 参数: 每页条数<b>limit</b>(可选), 上一页返回的<b>cursor</b>(可选, 没有时为第一页)<br>
+ * 返回本页的投诉, 还有下一页时返回下一页的<b>cursor</b>
+ * <p>
+ * cursor编码了本页最后一条的(写入时间, id), 下一页从其后开始读取(不使用OFFSET), 每一页的代价与页数无关<br>
+ * 翻页期间新写入的投诉不影响后面的页(不会重复或遗漏), 只出现在新的第一页中
+ *
+ * @author mura
+ */
+@WebServlet(urlPatterns = "/complain/list", asyncSupported = true)
+public class ListServlet extends NCPServlet<ListServlet.ListPara, ListServlet.ListJSON> {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 默认每页的条数
+	 */
+	private static final int DEFAULT_LIMIT = 20;
+
+	/**
+	 * 每页最多的条数
+	 */
+	private static final int MAX_LIMIT = 100;
+
+	/**
+	 * cursor的长度(字节): 写入时间(毫秒), id
+	 */
+	private static final int CURSOR_LENGTH = 16;
+
+	public static class ListPara extends NCPPara {
+		public String _cursor;
+		public Integer _limit;
+	}
+
+	public static class ListJSON extends NCPJSON {
+		public List<ListComplain> complains;
+		/**
+		 * 下一页的cursor, 没有下一页时不返回
+		 */
+		public String _next;
+	}
+
+	/**
+	 * 一条投诉: id, 与ComplainJSON相同的内容(没有值的键不返回), 写入时间(Unix时间, 秒)
+	 */
+	public static class ListComplain extends JSONBean {
+		public Long id;
+		public String _comment;
+		public String _date;
+		public Float _intensity;
+		public String _address;
+		public Float _latitude;
+		public Float _longitude;
+		public String _imageHash;
+		public String _sfaType;
+		public String _noiseType;
+		public Integer created;
+	}
+
+	@Override
+	protected void ncpService(ListPara para, ListJSON json, Servlet servlet) throws Exception {
+		int limit = para._limit == null ? DEFAULT_LIMIT : para._limit;
+		if (limit <= 0 || limit > MAX_LIMIT) {
+			throw new BeanFieldException("Invalid limit: " + limit + ", range: 1 - " + MAX_LIMIT);
+		}
+		Timestamp created = null;
+		Long id = null;
+		if (para._cursor != null) {
+			ByteBuffer cursor = decodeCursor(para._cursor);
+			created = new Timestamp(cursor.getLong());
+			id = cursor.getLong();
+		}
+
+		// 多读一条, 判断是否还有下一页
+		List<ComplainVO> list = ComplainDAO.list(created, id, limit + 1);
+		int size = Math.min(list.size(), limit);
+		json.complains = new ArrayList<ListComplain>(size);
+		for (int i = 0; i < size; i++) {
+			ComplainVO vo = list.get(i);
+			ListComplain complain = new ListComplain();
+			complain.id = vo.id;
+			complain._comment = vo.comment;
+			complain._date = vo.date;
+			complain._intensity = vo.intensity;
+			complain._address = vo.address;
+			complain._latitude = vo.latitude;
+			complain._longitude = vo.longitude;
+			complain._imageHash = vo.imageHash;
+			complain._sfaType = vo.sfaType;
+			complain._noiseType = vo.noiseType;
+			complain.created = (int) (vo.created.getTime() / 1000);
+			json.complains.add(complain);
+		}
+		if (list.size() > limit) {
+			ComplainVO last = list.get(limit - 1);
+			json._next = encodeCursor(last.created.getTime(), last.id);
+		}
+	}
+
+	/**
+	 * 生成cursor: 写入时间和id, URL安全的Base64编码
+	 */
+	private static String encodeCursor(long created, long id) {
+		ByteBuffer buffer = ByteBuffer.allocate(CURSOR_LENGTH);
+		buffer.putLong(created).putLong(id);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+	}
+
+	/**
+	 * 解析cursor
+	 *
+	 * @return 依次为写入时间和id的缓冲区
+	 * @throws BeanFieldException
+	 *             cursor不是encodeCursor()生成的
+	 */
+	private static ByteBuffer decodeCursor(String cursor) throws BeanFieldException {
+		byte[] bytes;
+		try {
+			bytes = Base64.getUrlDecoder().decode(cursor);
+		} catch (IllegalArgumentException e) {
+			bytes = null;
+		}
+		if (bytes == null || bytes.length != CURSOR_LENGTH) {
+			throw new BeanFieldException("Invalid cursor: " + cursor);
+		}
+		return ByteBuffer.wrap(bytes);
+	}
+}
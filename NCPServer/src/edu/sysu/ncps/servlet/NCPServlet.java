@@ -1,12 +1,27 @@
 package edu.sysu.ncps.servlet;
 
+import java.util.concurrent.ExecutorService;
+
 import org.mura.servlet.BaseServlet;
+import org.mura.servlet.ErrorJSONWriter;
 import org.mura.servlet.JSONBean;
 
 public abstract class NCPServlet<P, J> extends BaseServlet<NCPPara, NCPJSON> {
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * 是否使用虚拟线程处理请求, 只在JDK 24及以上版本使用<br>
+	 * MySQL驱动(Connector/J 5.1)在synchronized块中执行语句, JDK 21-23中虚拟线程在synchronized块中阻塞时
+	 * 会占住载体线程(pinning), 并发的数据库操作会耗尽载体线程; JDK 24起(JEP 491)不再占住
+	 */
+	private static final boolean VIRTUAL_THREADS = javaVersion() >= 24;
+
+	/**
+	 * 错误信息的输出器, 与NCPErrorJSON的格式相同
+	 */
+	private static final ErrorJSONWriter ERROR_JSON = new ErrorJSONWriter("success", "exception", "message");
+
 	public static class NCPErrorJSON extends JSONBean {
 		public Boolean success;
 		public String exception;
@@ -22,13 +37,38 @@ public abstract class NCPServlet<P, J> extends BaseServlet<NCPPara, NCPJSON> {
 
 	protected abstract void ncpService(P para, J json, Servlet servlet) throws Exception;
 
+	@Override
+	protected ExecutorService createExecutor() {
+		// ncpService中会进行阻塞的数据库操作, 每个请求使用一个虚拟线程(JDK 24以下使用容器线程)
+		if (VIRTUAL_THREADS) {
+			ExecutorService executor = newVirtualThreadExecutor();
+			if (executor == null) {
+				log.warn("virtual threads not supported, using container threads", "java",
+						System.getProperty("java.version"));
+			}
+			return executor;
+		}
+		return null;
+	}
+
+	/**
+	 * 当前JDK的主版本号(1.8返回8)
+	 */
+	private static int javaVersion() {
+		String version = System.getProperty("java.specification.version", "");
+		if (version.startsWith("1.")) {
+			version = version.substring(2);
+		}
+		try {
+			return Integer.parseInt(version);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
 	@Override
 	protected void handleException(Servlet servlet, Exception e) throws Exception {
-		e.printStackTrace();
-		NCPErrorJSON error = new NCPErrorJSON();
-		error.success = false;
-		error.exception = e.getClass().getName();
-		error.message = e.getMessage();
-		servlet.forcePrintJSON(error);
+		logException(e);
+		servlet.forcePrintError(ERROR_JSON, false, e.getClass().getName(), e.getMessage());
 	}
 }
@@ -0,0 +1,135 @@
+package edu.sysu.ncps.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.annotation.WebServlet;
+
+import org.mura.servlet.BeanFieldException;
+import org.mura.servlet.JSONBean;
+
+import edu.sysu.ncps.dao.ComplainDAO;
+import edu.sysu.ncps.dao.LocatedComplain;
+import edu.sysu.ncps.dao.SpatialIndex;
+
+/**
+ * 查询附近的投诉, 使用内存中的经纬度索引, 不查询数据库
+ * <p>
+ * 两种查询方式:<br>
+ * 1、半径: <b>latitude</b>, <b>longitude</b>, <b>radius</b>(米, 可选)<br>
+ * 2、矩形: <b>minLatitude</b>, <b>minLongitude</b>, <b>maxLatitude</b>, <b>maxLongitude</b>,
+ * 距离从<b>latitude</b>, <b>longitude</b>(可选, 默认为矩形的中心)计算
+ * <p>
+ * 结果按距离从近到远排列, 最多<b>limit</b>个; 索引在主方法中只读, 不需要异步模式<br>
+ * 索引只保存投诉的id, 强度, 类型和图片, 描述, 日期和地址不返回(按id另外读取)
+ *
+ * @author mura
+ */
+@WebServlet("/nearby")
+public class NearbyServlet extends NCPServlet<NearbyServlet.NearbyPara, NearbyServlet.NearbyJSON> {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 默认的半径(米)
+	 */
+	private static final float DEFAULT_RADIUS = 1000;
+
+	/**
+	 * 最大的半径(米)
+	 */
+	private static final float MAX_RADIUS = 50000;
+
+	/**
+	 * 默认返回的个数
+	 */
+	private static final int DEFAULT_LIMIT = 50;
+
+	/**
+	 * 最多返回的个数
+	 */
+	private static final int MAX_LIMIT = 500;
+
+	public static class NearbyPara extends NCPPara {
+		public Float _latitude;
+		public Float _longitude;
+		public Float _radius;
+		public Float _minLatitude;
+		public Float _minLongitude;
+		public Float _maxLatitude;
+		public Float _maxLongitude;
+		public Integer _limit;
+	}
+
+	public static class NearbyJSON extends NCPJSON {
+		public List<NearbyComplain> complains;
+	}
+
+	/**
+	 * 一条投诉: id, 与中心的距离(米), 经纬度和索引中的内容(没有值的键不返回)
+	 */
+	public static class NearbyComplain extends JSONBean {
+		public Long id;
+		public Float distance;
+		public Float _intensity;
+		public Float latitude;
+		public Float longitude;
+		public String _imageHash;
+		public String _sfaType;
+		public String _noiseType;
+	}
+
+	@Override
+	protected void ncpService(NearbyPara para, NearbyJSON json, Servlet servlet) throws Exception {
+		int limit = para._limit == null ? DEFAULT_LIMIT : para._limit;
+		if (limit <= 0) {
+			throw new BeanFieldException("Invalid limit: " + limit);
+		}
+		limit = Math.min(limit, MAX_LIMIT);
+
+		SpatialIndex<LocatedComplain> index = ComplainDAO.getIndex();
+		List<SpatialIndex.Hit<LocatedComplain>> hits;
+		if (para._minLatitude != null || para._minLongitude != null || para._maxLatitude != null
+				|| para._maxLongitude != null) {
+			// 矩形
+			if (para._minLatitude == null || para._minLongitude == null || para._maxLatitude == null
+					|| para._maxLongitude == null) {
+				throw new BeanFieldException(
+						"Bounding box needs minLatitude, minLongitude, maxLatitude and maxLongitude, type: Float");
+			}
+			if (para._radius != null) {
+				throw new BeanFieldException("Use either radius or a bounding box, not both");
+			}
+			double latitude = para._latitude != null ? para._latitude : (para._minLatitude + para._maxLatitude) / 2.0;
+			double longitude = para._longitude != null ? para._longitude
+					: (para._minLongitude + para._maxLongitude) / 2.0;
+			hits = index.within(para._minLatitude, para._minLongitude, para._maxLatitude, para._maxLongitude, latitude,
+					longitude, limit);
+		} else {
+			// 半径
+			if (para._latitude == null || para._longitude == null) {
+				throw new BeanFieldException("Missing required parameter: latitude and longitude, type: Float");
+			}
+			float radius = para._radius == null ? DEFAULT_RADIUS : para._radius;
+			if (!(radius > 0 && radius <= MAX_RADIUS)) {
+				throw new BeanFieldException("Invalid radius: " + para._radius + ", range: 0 - " + MAX_RADIUS);
+			}
+			hits = index.nearby(para._latitude, para._longitude, radius, limit);
+		}
+
+		json.complains = new ArrayList<NearbyComplain>(hits.size());
+		for (SpatialIndex.Hit<LocatedComplain> hit : hits) {
+			LocatedComplain vo = hit.value;
+			NearbyComplain complain = new NearbyComplain();
+			complain.id = vo.id;
+			complain.distance = (float) hit.distance;
+			complain._intensity = vo.intensity;
+			complain.latitude = hit.latitude;
+			complain.longitude = hit.longitude;
+			complain._imageHash = vo.imageHash;
+			complain._sfaType = vo.sfaType;
+			complain._noiseType = vo.noiseType;
+			json.complains.add(complain);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package edu.sysu.ncps.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.annotation.WebServlet;
+
+import org.mura.servlet.BeanFieldException;
+import org.mura.servlet.JSONBean;
+
+import edu.sysu.ncps.dao.ComplainRollup;
+
+/**
+ * 查询投诉数和强度的时间序列, 使用内存中的汇总(ComplainRollup), 不查询数据库
+ * <p>
+ * 参数: 时间段长度<b>resolution</b>(minute, hour, day, 可选, 默认hour),
+ * 分组<b>group</b>(noiseType, sfaType, both, none, 可选, 默认noiseType),
+ * 时间范围<b>from</b>, <b>to</b>(可选, Unix时间, 秒; 默认为最近<b>DEFAULT_BUCKETS</b>个时间段),
+ * 是否返回各时间段<b>points</b>(可选, 默认true)
+ * <p>
+ * 返回各分组在时间范围内的合计, 及有投诉的各时间段; 没有强度时不返回平均值, 最小值和最大值
+ *
+ * @author mura
+ */
+@WebServlet("/stats")
+public class StatsServlet extends NCPServlet<StatsServlet.StatsPara, StatsServlet.StatsJSON> {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 默认的时间范围(时间段个数)
+	 */
+	private static final int DEFAULT_BUCKETS = 60;
+
+	public static class StatsPara extends NCPPara {
+		public String _resolution;
+		public String _group;
+		public Integer _from;
+		public Integer _to;
+		public Boolean _points;
+	}
+
+	public static class StatsJSON extends NCPJSON {
+		public String resolution;
+		public Integer from;
+		public Integer to;
+		public List<StatsGroup> groups;
+	}
+
+	/**
+	 * 一个分组, 不按某个类型分组或没有类型时不返回这个类型
+	 */
+	public static class StatsGroup extends JSONBean {
+		public String _noiseType;
+		public String _sfaType;
+		public Integer count;
+		public Float _mean;
+		public Float _min;
+		public Float _max;
+		public List<StatsPoint> points;
+	}
+
+	/**
+	 * 一个时间段, <b>time</b>为开始时间(Unix时间, 秒)
+	 */
+	public static class StatsPoint extends JSONBean {
+		public Integer time;
+		public Integer count;
+		public Float _mean;
+		public Float _min;
+		public Float _max;
+	}
+
+	@Override
+	protected void ncpService(StatsPara para, StatsJSON json, Servlet servlet) throws Exception {
+		ComplainRollup.Resolution resolution;
+		try {
+			resolution = ComplainRollup.Resolution
+					.valueOf((para._resolution == null ? "hour" : para._resolution).toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			throw new BeanFieldException("Invalid resolution: " + para._resolution + ", use minute, hour or day");
+		}
+		String group = para._group == null ? "noiseType" : para._group;
+		boolean byNoiseType = group.equals("noiseType") || group.equals("both");
+		boolean bySfaType = group.equals("sfaType") || group.equals("both");
+		if (!byNoiseType && !bySfaType && !group.equals("none")) {
+			throw new BeanFieldException("Invalid group: " + group + ", use noiseType, sfaType, both or none");
+		}
+		long to = para._to == null ? System.currentTimeMillis() : para._to * 1000L;
+		long from = para._from == null ? to - (DEFAULT_BUCKETS - 1) * resolution.millis : para._from * 1000L;
+		if (from > to) {
+			throw new BeanFieldException("Invalid time range: " + para._from + " - " + para._to);
+		}
+		boolean withPoints = para._points == null || para._points;
+
+		List<ComplainRollup.Group> groups = ComplainRollup.getDefault().query(resolution, from, to, byNoiseType,
+				bySfaType, withPoints);
+		json.resolution = resolution.name().toLowerCase(Locale.ROOT);
+		json.from = (int) (from / 1000);
+		json.to = (int) (to / 1000);
+		json.groups = new ArrayList<StatsGroup>(groups.size());
+		for (ComplainRollup.Group g : groups) {
+			StatsGroup item = new StatsGroup();
+			item._noiseType = g.noiseType;
+			item._sfaType = g.sfaType;
+			item.count = (int) Math.min(Integer.MAX_VALUE, g.total.count);
+			if (g.total.measured > 0) {
+				item._mean = (float) (g.total.sum / g.total.measured);
+				item._min = g.total.min;
+				item._max = g.total.max;
+			}
+			item.points = new ArrayList<StatsPoint>(withPoints ? g.points.size() : 0);
+			if (withPoints) {
+				for (ComplainRollup.Point p : g.points) {
+					StatsPoint point = new StatsPoint();
+					point.time = (int) (p.time / 1000);
+					point.count = (int) Math.min(Integer.MAX_VALUE, p.count);
+					if (p.measured > 0) {
+						point._mean = (float) (p.sum / p.measured);
+						point._min = p.min;
+						point._max = p.max;
+					}
+					item.points.add(point);
+				}
+			}
+			json.groups.add(item);
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package org.mura.jfr;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * JFR(JDK Flight Recorder)自定义事件类型
+ * <p>
+ * 项目以Java 8编译, 不能直接继承jdk.jfr.Event, 因此通过反射使用jdk.jfr.EventFactory在运行时定义事件<br>
+ * 运行在没有JFR的JDK上时, 所有方法都不做任何操作
+ * <p>
+ * 事件默认关闭(@Enabled(false)), 需要在录制的配置中开启, 例如:<br>
+ * <b>jcmd &lt;pid&gt; JFR.start settings=mura.jfc</b>, 其中将<b>mura.*</b>事件的enabled设置为true
+ * <p>
+ * 使用方式:
+ *
+ * <pre>
+ * Object event = TYPE.begin();
+ * ...
+ * if (event != null) {
+ * 	TYPE.commit(event, value1, value2);
+ * }
+ * </pre>
+ *
+ * 关闭时<b>begin()</b>只读取一个volatile变量并返回<b>null</b>, 不分配任何对象
+ *
+ * @author mura
+ */
+public final class FlightEventType {
+
+	/**
+	 * 所有定义的事件类型, 录制状态变化时刷新开启状态
+	 */
+	private static final List<FlightEventType> TYPES = new CopyOnWriteArrayList<FlightEventType>();
+
+	/**
+	 * JFR的反射入口, JDK不支持时为<b>null</b>
+	 */
+	private static final Reflection JFR = Reflection.load();
+
+	/**
+	 * jdk.jfr.EventFactory对象
+	 */
+	private final Object factory;
+
+	/**
+	 * jdk.jfr.EventType对象
+	 */
+	private final Object eventType;
+
+	/**
+	 * 当前是否有录制开启了此事件
+	 */
+	private volatile boolean enabled;
+
+	private FlightEventType(Object factory, Object eventType) {
+		this.factory = factory;
+		this.eventType = eventType;
+	}
+
+	/**
+	 * 定义一个事件类型
+	 *
+	 * @param name
+	 *            事件名, 如"mura.Request"
+	 * @param label
+	 *            显示名称
+	 * @param category
+	 *            分类
+	 * @param fieldNames
+	 *            字段名
+	 * @param fieldTypes
+	 *            字段类型, 只能为基本类型或String
+	 * @return 事件类型, JDK不支持JFR时返回一个不做任何操作的对象
+	 */
+	public static FlightEventType define(String name, String label, String category, String[] fieldNames,
+			Class<?>[] fieldTypes) {
+		FlightEventType type = null;
+		if (JFR != null) {
+			try {
+				type = JFR.define(name, label, category, fieldNames, fieldTypes);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				// 定义失败, 按不支持处理
+				type = null;
+			}
+		}
+		if (type == null) {
+			return new FlightEventType(null, null);
+		}
+		TYPES.add(type);
+		type.refresh();
+		return type;
+	}
+
+	/**
+	 * 移除录制状态的监听器, 关闭所有事件; Web应用停止时调用<br>
+	 * 监听器注册在JDK的FlightRecorder中, 不移除时会持有此类(及Web应用的类加载器)
+	 */
+	public static void shutdown() {
+		if (JFR == null) {
+			return;
+		}
+		JFR.removeListener();
+		for (FlightEventType type : TYPES) {
+			type.enabled = false;
+		}
+	}
+
+	/**
+	 * 开始一个事件
+	 *
+	 * @return 事件对象, 事件未开启时返回<b>null</b>
+	 */
+	public Object begin() {
+		if (!enabled) {
+			return null;
+		}
+		try {
+			Object event = JFR.newEvent.invoke(factory);
+			JFR.begin.invoke(event);
+			return event;
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 结束并提交一个事件
+	 *
+	 * @param event
+	 *            <b>begin()</b>返回的事件对象, 为<b>null</b>时不做任何操作
+	 * @param values
+	 *            各字段的值, 与定义时的顺序相同
+	 */
+	public void commit(Object event, Object... values) {
+		if (event == null) {
+			return;
+		}
+		try {
+			for (int i = 0; i < values.length; i++) {
+				JFR.set.invoke(event, i, values[i]);
+			}
+			JFR.end.invoke(event);
+			JFR.commit.invoke(event);
+		} catch (ReflectiveOperationException e) {
+			// 提交失败时丢弃事件
+		}
+	}
+
+	/**
+	 * 刷新开启状态
+	 */
+	private void refresh() {
+		try {
+			enabled = (Boolean) JFR.isEnabled.invoke(eventType);
+		} catch (ReflectiveOperationException e) {
+			enabled = false;
+		}
+	}
+
+	/**
+	 * JFR的反射入口
+	 *
+	 * @author mura
+	 */
+	private static class Reflection {
+
+		private Class<?> annotationElement;
+		private Class<?> valueDescriptor;
+		private Method create;
+		private Method getEventType;
+		private Method newEvent;
+		private Method isEnabled;
+		private Method begin;
+		private Method end;
+		private Method commit;
+		private Method set;
+		private Method removeListener;
+
+		/**
+		 * 注册在FlightRecorder中的监听器(代理对象)
+		 */
+		private Object listener;
+
+		/**
+		 * 加载JFR的类和方法, 并注册录制状态的监听器
+		 *
+		 * @return 反射入口, JDK不支持时返回<b>null</b>
+		 */
+		private static Reflection load() {
+			try {
+				Reflection r = new Reflection();
+				Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+				Class<?> eventClass = Class.forName("jdk.jfr.Event");
+				Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+				r.annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+				r.valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+				r.create = factoryClass.getMethod("create", List.class, List.class);
+				r.getEventType = factoryClass.getMethod("getEventType");
+				r.newEvent = factoryClass.getMethod("newEvent");
+				r.isEnabled = eventTypeClass.getMethod("isEnabled");
+				r.begin = eventClass.getMethod("begin");
+				r.end = eventClass.getMethod("end");
+				r.commit = eventClass.getMethod("commit");
+				r.set = eventClass.getMethod("set", int.class, Object.class);
+
+				// 录制开始, 结束或改变时, 刷新各事件的开启状态
+				Class<?> recorderClass = Class.forName("jdk.jfr.FlightRecorder");
+				Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+				Object listener = Proxy.newProxyInstance(listenerClass.getClassLoader(), new Class<?>[] { listenerClass },
+						new InvocationHandler() {
+							@Override
+							public Object invoke(Object proxy, Method method, Object[] args) {
+								if (method.getName().equals("recordingStateChanged")) {
+									for (FlightEventType type : TYPES) {
+										type.refresh();
+									}
+									return null;
+								} else if (method.getName().equals("hashCode")) {
+									return System.identityHashCode(proxy);
+								} else if (method.getName().equals("equals")) {
+									return proxy == args[0];
+								} else if (method.getName().equals("toString")) {
+									return "FlightEventType.Listener";
+								}
+								return null;
+							}
+						});
+				recorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+				r.removeListener = recorderClass.getMethod("removeListener", listenerClass);
+				r.listener = listener;
+				return r;
+			} catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+				return null;
+			}
+		}
+
+		/**
+		 * 移除录制状态的监听器
+		 */
+		private void removeListener() {
+			try {
+				removeListener.invoke(null, listener);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				// 监听器已移除
+			}
+		}
+
+		/**
+		 * 创建事件类型
+		 */
+		private FlightEventType define(String name, String label, String category, String[] fieldNames,
+				Class<?>[] fieldTypes) throws ReflectiveOperationException {
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotation("jdk.jfr.Name", name));
+			annotations.add(annotation("jdk.jfr.Label", label));
+			Object categories = Array.newInstance(String.class, 1);
+			Array.set(categories, 0, category);
+			annotations.add(annotation("jdk.jfr.Category", categories));
+			annotations.add(annotation("jdk.jfr.Enabled", false));
+			annotations.add(annotation("jdk.jfr.StackTrace", false));
+
+			List<Object> fields = new ArrayList<Object>();
+			for (int i = 0; i < fieldNames.length; i++) {
+				fields.add(valueDescriptor.getConstructor(Class.class, String.class, List.class)
+						.newInstance(fieldTypes[i], fieldNames[i], Collections.emptyList()));
+			}
+			Object factory = create.invoke(null, annotations, fields);
+			return new FlightEventType(factory, getEventType.invoke(factory));
+		}
+
+		/**
+		 * 创建一个注解元素
+		 */
+		private Object annotation(String annotationClass, Object value) throws ReflectiveOperationException {
+			return annotationElement.getConstructor(Class.class, Object.class).newInstance(Class.forName(annotationClass),
+					value);
+		}
+	}
+}
@@ -2,6 +2,10 @@ package org.mura.json;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * JSONArray: JSON数组类
@@ -10,16 +14,46 @@ import java.util.List;
  * 也可以保存多个JSON对象或是其他JSON数组
  * <p>
  * 当输出数组时, 数组中元素的键名将被忽略
+ * <p>
+ * 元素很多的数组可以通过<b>setParallel</b>开启并行输出, 在ForkJoinPool中分段输出后按顺序追加
  * 
  * @author mura
  */
 @SuppressWarnings("rawtypes")
 public class JSONArray extends JSONVariable<List<JSONVariable>> implements JSONCollection {
 
+	/**
+	 * 开启并行输出时, 元素个数达到此值才真正并行
+	 */
+	private static final int PARALLEL_THRESHOLD = 1024;
+
+	/**
+	 * 并行输出时每一段最少包含的元素个数
+	 */
+	private static final int PARALLEL_MIN_CHUNK = 256;
+
+	/**
+	 * 并行输出用的线程池, 为<b>null</b>时不并行
+	 */
+	private ForkJoinPool parallelPool;
+
 	public JSONArray(String key) {
 		super(key, new ArrayList<JSONVariable>());
 	}
 
+	/**
+	 * 设置并行输出
+	 * <p>
+	 * 只影响此数组本身, 其中的元素仍在各段的线程中顺序输出<br>
+	 * 输出的结果与顺序输出完全相同
+	 * 
+	 * @param pool
+	 *            并行输出用的线程池, 传入<b>null</b>时关闭并行输出
+	 */
+	public void setParallel(ForkJoinPool pool) {
+		this.parallelPool = pool;
+	}
+
 	/**
 	 * 添加一个JSON变量
 	 * <p>
@@ -145,17 +179,91 @@ public class JSONArray extends JSONVariable<List<JSONVariable>> implements JSONC
 	@Override
 	protected String valueString() {
 		StringBuilder sb = new StringBuilder();
-		sb.append("[");
+		appendValue(sb);
+		return sb.toString();
+	}
+
+	@Override
+	protected void appendValue(StringBuilder sb) {
+		ForkJoinPool pool = parallelPool;
+		if (pool != null && value.size() >= PARALLEL_THRESHOLD) {
+			appendParallel(sb, pool);
+			return;
+		}
+		sb.append('[');
 		boolean first = true;
 		for (JSONVariable item : value) {
 			if (first) {
 				first = false;
 			} else {
-				sb.append(",");
+				sb.append(',');
 			}
-			sb.append(item.valueString());
+			item.appendValue(sb);
+		}
+		sb.append(']');
+	}
+
+	/**
+	 * 并行输出数组内容
+	 * <p>
+	 * 将元素分为若干段, 每段在线程池中写入各自的StringBuilder(不含方括号), 最后按顺序追加至<b>sb</b>, 不生成中间的字符串
+	 * 
+	 * @param sb
+	 *            写入此StringBuilder
+	 * @param pool
+	 *            线程池
+	 */
+	private void appendParallel(StringBuilder sb, ForkJoinPool pool) {
+		int size = value.size();
+		int perChunk = Math.max(PARALLEL_MIN_CHUNK, size / (pool.getParallelism() * 4) + 1);
+		List<Callable<StringBuilder>> tasks = new ArrayList<>();
+		for (int from = 0; from < size; from += perChunk) {
+			final List<JSONVariable> chunk = value.subList(from, Math.min(size, from + perChunk));
+			tasks.add(new Callable<StringBuilder>() {
+				@Override
+				public StringBuilder call() {
+					StringBuilder part = new StringBuilder();
+					boolean first = true;
+					for (JSONVariable item : chunk) {
+						if (first) {
+							first = false;
+						} else {
+							part.append(',');
+						}
+						item.appendValue(part);
+					}
+					return part;
+				}
+			});
+		}
+
+		try {
+			List<Future<StringBuilder>> parts = pool.invokeAll(tasks);
+			int length = sb.length() + 2 + parts.size();
+			for (Future<StringBuilder> part : parts) {
+				length += part.get().length();
+			}
+			sb.ensureCapacity(length);
+			sb.append('[');
+			boolean first = true;
+			for (Future<StringBuilder> part : parts) {
+				if (first) {
+					first = false;
+				} else {
+					sb.append(',');
+				}
+				sb.append(part.get());
+			}
+			sb.append(']');
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
 		}
-		sb.append("]");
-		return sb.toString();
 	}
 }
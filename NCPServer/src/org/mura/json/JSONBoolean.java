@@ -21,4 +21,13 @@ public class JSONBoolean extends JSONVariable<Boolean> {
 	protected String valueString() {
 		return value + "";
 	}
+
+	@Override
+	protected void appendValue(StringBuilder sb) {
+		if (value == null) {
+			sb.append("null");
+		} else {
+			sb.append(value.booleanValue());
+		}
+	}
 }
@@ -11,6 +11,11 @@ import java.util.Base64;
  */
 public class JSONData extends JSONVariable<byte[]> {
 
+	/**
+	 * Base64编码表
+	 */
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
 	public JSONData(String key) {
 		super(key);
 	}
@@ -32,4 +37,31 @@ public class JSONData extends JSONVariable<byte[]> {
 		// 编码后再输出
 		return "\"" + Base64.getEncoder().encodeToString(value) + "\"";
 	}
+
+	@Override
+	protected void appendValue(StringBuilder sb) {
+		if (value == null) {
+			// null, 不进行编码直接输出null
+			sb.append("null");
+			return;
+		}
+		// 直接编码写入, 不生成中间的编码字符串(与Base64.getEncoder()的结果相同)
+		sb.ensureCapacity(sb.length() + (value.length + 2) / 3 * 4 + 2);
+		sb.append('\"');
+		int full = value.length - value.length % 3;
+		for (int i = 0; i < full; i += 3) {
+			int bits = (value[i] & 0xff) << 16 | (value[i + 1] & 0xff) << 8 | (value[i + 2] & 0xff);
+			sb.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3f]).append(BASE64[(bits >>> 6) & 0x3f])
+					.append(BASE64[bits & 0x3f]);
+		}
+		if (value.length - full == 1) {
+			int bits = (value[full] & 0xff) << 16;
+			sb.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3f]).append("==");
+		} else if (value.length - full == 2) {
+			int bits = (value[full] & 0xff) << 16 | (value[full + 1] & 0xff) << 8;
+			sb.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3f]).append(BASE64[(bits >>> 6) & 0x3f])
+					.append('=');
+		}
+		sb.append('\"');
+	}
 }
@@ -21,4 +21,13 @@ public class JSONFloat extends JSONVariable<Float> {
 	protected String valueString() {
 		return value + "";
 	}
+
+	@Override
+	protected void appendValue(StringBuilder sb) {
+		if (value == null) {
+			sb.append("null");
+		} else {
+			sb.append(value.floatValue());
+		}
+	}
 }
@@ -21,4 +21,13 @@ public class JSONInteger extends JSONVariable<Integer> {
 	protected String valueString() {
 		return value + "";
 	}
+
+	@Override
+	protected void appendValue(StringBuilder sb) {
+		if (value == null) {
+			sb.append("null");
+		} else {
+			sb.append(value.intValue());
+		}
+	}
 }
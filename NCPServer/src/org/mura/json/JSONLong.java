@@ -0,0 +1,34 @@
+package org.mura.json;
+
+/**
+ * JSONLong: JSON长整型类
+ * <p>
+ * 对应JSON中的整数类型, 可以存储一个超出int范围的整数值(如数据库的自增主键)<br>
+ * 只用于输出, 解析时整数总是生成JSONInteger
+ *
+ * @author mura
+ */
+public class JSONLong extends JSONVariable<Long> {
+
+	public JSONLong(String key) {
+		super(key);
+	}
+
+	public JSONLong(String key, Long value) {
+		super(key, value);
+	}
+
+	@Override
+	protected String valueString() {
+		return value + "";
+	}
+
+	@Override
+	protected void appendValue(StringBuilder sb) {
+		if (value == null) {
+			sb.append("null");
+		} else {
+			sb.append(value.longValue());
+		}
+	}
+}
@@ -23,4 +23,9 @@ public class JSONNull extends JSONVariable<Object> {
 	protected String valueString() {
 		return "null";
 	}
+
+	@Override
+	protected void appendValue(StringBuilder sb) {
+		sb.append("null");
+	}
 }
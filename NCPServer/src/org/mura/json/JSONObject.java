@@ -181,17 +181,22 @@ public class JSONObject extends JSONVariable<Map<String, JSONVariable>> implemen
 	@Override
 	protected String valueString() {
 		StringBuilder sb = new StringBuilder();
-		sb.append("{");
+		appendValue(sb);
+		return sb.toString();
+	}
+
+	@Override
+	protected void appendValue(StringBuilder sb) {
+		sb.append('{');
 		boolean first = true;
-		for (String key : value.keySet()) {
+		for (Map.Entry<String, JSONVariable> entry : value.entrySet()) {
 			if (first) {
 				first = false;
 			} else {
-				sb.append(",");
+				sb.append(',');
 			}
-			sb.append(value.get(key).toString());
+			entry.getValue().appendTo(sb);
 		}
-		sb.append("}");
-		return sb.toString();
+		sb.append('}');
 	}
 }
@@ -1,8 +1,11 @@
 package org.mura.json;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
-import java.util.Stack;
+
+import org.mura.jfr.FlightEventType;
 
 /**
  * JSON对象解析类
@@ -14,6 +17,12 @@ import java.util.Stack;
 @SuppressWarnings("rawtypes")
 public class JSONParser {
 
+	/**
+	 * JFR事件: 一次解析(默认关闭), 记录代码长度, 生成的节点个数和解析方式
+	 */
+	private static final FlightEventType PARSE_EVENT = FlightEventType.define("mura.JSONParse", "JSON Parse", "Mura",
+			new String[] { "chars", "nodes", "mode" }, new Class<?>[] { int.class, int.class, String.class });
+
 	/**
 	 * 解析JSON代码
 	 * 
@@ -26,14 +35,56 @@ public class JSONParser {
 	 *             当JSON代码字符串解析错误时, 抛出此异常
 	 */
 	public static JSONObject parse(String src, String key) throws JSONParseException {
+		return parse(src, key, false);
+	}
+
+	/**
+	 * 解析JSON代码, 可以选择词法分析的扫描方式
+	 * <p>
+	 * 快速扫描模式一次检查多个字符(参见JSONScanner), 适用于较大的JSON代码<br>
+	 * 两种模式的解析结果和错误信息完全相同
+	 * 
+	 * @param src
+	 *            JSON代码
+	 * @param key
+	 *            生成JSON对象的键名
+	 * @param fastScan
+	 *            是否使用快速扫描模式
+	 * @return 生成的JSON对象
+	 * @throws JSONParseException
+	 *             当JSON代码字符串解析错误时, 抛出此异常
+	 */
+	public static JSONObject parse(String src, String key, boolean fastScan) throws JSONParseException {
+		Object event = PARSE_EVENT.begin();
 		JSONObject obj = new JSONObject(key);
-		JSONLexicalAnalyzer lexical = new JSONLexicalAnalyzer(src);
+		JSONLexicalAnalyzer lexical = new JSONLexicalAnalyzer(src, fastScan);
 		List<JSONWord> wList = lexical.lexicalAnalyse();
 		JSONSyntaxAnalyzer syntax = new JSONSyntaxAnalyzer(wList);
 		syntax.syntaxAnalyse(obj);
+		if (event != null) {
+			PARSE_EVENT.commit(event, src.length(), countNodes(obj), fastScan ? "fast" : "scalar");
+		}
 		return obj;
 	}
 
+	/**
+	 * 计算JSON变量中的节点个数(包括自身), 只在记录JFR事件时使用
+	 */
+	private static int countNodes(JSONVariable var) {
+		int nodes = 1;
+		if (var instanceof JSONObject) {
+			JSONObject obj = (JSONObject) var;
+			for (String key : obj.keySet()) {
+				nodes += countNodes(obj.get(key));
+			}
+		} else if (var instanceof JSONArray) {
+			for (JSONVariable item : ((JSONArray) var).list()) {
+				nodes += countNodes(item);
+			}
+		}
+		return nodes;
+	}
+
 	/**
 	 * 报告一个JSON分析异常, 会终止分析进程
 	 * 
@@ -141,6 +192,14 @@ public class JSONParser {
 		 * 指示当前分析进度的迭代器(索引下标)
 		 */
 		private int iterator;
+		/**
+		 * 快速扫描模式下的JSON代码字符数组, 逐字符模式下为<b>null</b>
+		 */
+		private final char[] chars;
+		/**
+		 * 快速扫描模式下的分析终点, 与逐字符模式相同, 读到'\0'即视为结尾
+		 */
+		private final int limit;
 
 		/**
 		 * 构造方法
@@ -149,10 +208,20 @@ public class JSONParser {
 		 * 
 		 * @param src
 		 *            JSON代码
+		 * @param fastScan
+		 *            是否使用快速扫描模式
 		 */
-		public JSONLexicalAnalyzer(String source) {
+		public JSONLexicalAnalyzer(String source, boolean fastScan) {
 			this.source = source;
 			iterator = 0;
+			if (fastScan) {
+				chars = source.toCharArray();
+				int end = source.indexOf('\0');
+				limit = end != -1 ? end : chars.length;
+			} else {
+				chars = null;
+				limit = 0;
+			}
 		}
 
 		/**
@@ -167,7 +236,7 @@ public class JSONParser {
 		public List<JSONWord> lexicalAnalyse() throws JSONParseException {
 			List<JSONWord> list = new ArrayList<>();
 			String wordStr = null;
-			while ((wordStr = nextWord()) != null) {
+			while ((wordStr = chars != null ? nextWordFast() : nextWord()) != null) {
 				JSONWordTypeEnum type = JSONWordTypeEnum.UNDEFINED;
 
 				if (wordStr.equals(",")) {
@@ -364,6 +433,127 @@ public class JSONParser {
 			}
 		}
 
+		/**
+		 * 获取下一个单词(快速扫描模式)
+		 * <p>
+		 * 与nextWord()的结果完全相同, 但不逐字符处理:<br>
+		 * 空白符, 标识符和字符串内容都通过JSONScanner整段查找, 再一次性复制
+		 * 
+		 * @return 下一个单词或<b>null</b>
+		 * @throws JSONParseException
+		 *             当分析出词法错误时, 抛出此异常
+		 */
+		private String nextWordFast() throws JSONParseException {
+			int start = JSONScanner.skipWhitespace(chars, iterator, limit);
+			if (start >= limit) {
+				// 已经读取到结尾, 返回null表示结束
+				iterator = start;
+				return null;
+			}
+			char ch = chars[start];
+			if (ch == '\"') {
+				// 字符串开头, 进入字符串模式
+				return nextStringFast(start);
+			} else if (JSONScanner.isSeparator(ch)) {
+				// 单独的分隔符, 直接输出
+				iterator = start + 1;
+				return String.valueOf(ch);
+			}
+			// 标识符, 一直读取到分隔符或双引号为止
+			int end = JSONScanner.indexOfDelimiter(chars, start, limit);
+			String word = new String(chars, start, end - start);
+			if (end >= limit) {
+				parseError("Unexpected ending of JSON source: \"" + word + "\", should be \"}\".");
+			} else if (chars[end] == '\"') {
+				parseError("String define error: Illegal quotation. Error appears near: (" + word + ").");
+			}
+			// 分隔符留给下一次输出
+			iterator = end;
+			return word;
+		}
+
+		/**
+		 * 读取一个字符串单词(快速扫描模式)
+		 * <p>
+		 * 两个转义字符之间的普通内容整段写入缓冲区
+		 * 
+		 * @param start
+		 *            开头双引号的索引
+		 * @return 包含两端双引号的字符串单词
+		 * @throws JSONParseException
+		 *             当分析出词法错误时, 抛出此异常
+		 */
+		private String nextStringFast(int start) throws JSONParseException {
+			int i = start + 1;
+			int special = JSONScanner.indexOfStringSpecial(chars, i, limit);
+			if (special < limit && chars[special] == '\"') {
+				// 没有转义字符, 不需要缓冲区
+				iterator = special + 1;
+				return new String(chars, start, special - start + 1);
+			}
+			StringBuilder buff = new StringBuilder(special - start + 16);
+			buff.append('\"');
+			while (true) {
+				buff.append(chars, i, special - i);
+				if (special >= limit) {
+					parseError("Unexpected ending of JSON source: \"" + buff.toString() + "\", should be \"}\".");
+				}
+				char ch = chars[special];
+				if (ch == '\"') {
+					// 读取到了结束的双引号, 结束字符串的读取
+					buff.append(ch);
+					iterator = special + 1;
+					return buff.toString();
+				} else if (ch == '\\') {
+					// 读取到了反斜杠, 分析下一个转义字符
+					if (special + 1 >= limit) {
+						parseError(
+								"Unexpected ending of JSON source: \"" + buff.toString() + "\", should be \"}\".");
+					}
+					buff.append(unescape(chars[special + 1]));
+					i = special + 2;
+				} else {
+					// 出现了控制字符, 出错
+					int hex = ch;
+					parseError(String.format("iLLegal control character in  string, char code: (%x).", hex));
+				}
+				special = JSONScanner.indexOfStringSpecial(chars, i, limit);
+			}
+		}
+
+		/**
+		 * 将转义字符还原为对应的字符
+		 * 
+		 * @param ch
+		 *            反斜杠之后的字符
+		 * @return 还原后的字符
+		 * @throws JSONParseException
+		 *             非法的转义字符
+		 */
+		private static char unescape(char ch) throws JSONParseException {
+			switch (ch) {
+			case '\"':
+				return '\"';
+			case '\\':
+				return '\\';
+			case '/':
+				return '/';
+			case 'b':
+				return '\b';
+			case 'f':
+				return '\f';
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 't':
+				return '\t';
+			default:
+				parseError("Illegal escape character in string: (\\" + ch + ").");
+				return ch;
+			}
+		}
+
 		/**
 		 * 获取下一个字符
 		 * <p>
@@ -452,10 +642,10 @@ public class JSONParser {
 		 *             当分析出句法错误时, 抛出此异常
 		 */
 		public void syntaxAnalyse(JSONObject root) throws JSONParseException {
-			// 括号匹配用栈, 检查括号的匹配
-			Stack<JSONWord> bracketStack = new Stack<JSONWord>();
+			// 括号匹配用栈, 检查括号的匹配(不使用同步的Stack类)
+			Deque<JSONWord> bracketStack = new ArrayDeque<JSONWord>();
 			// JSON集合(对象, 数组)用栈
-			Stack<JSONCollection> collectionStack = new Stack<JSONCollection>();
+			Deque<JSONCollection> collectionStack = new ArrayDeque<JSONCollection>();
 
 			// 检查该单词列表的完整性, 是否是大括号开头和结尾
 			if (wordList.size() < 2 || wordList.get(0).type != JSONWordTypeEnum.LBRACE
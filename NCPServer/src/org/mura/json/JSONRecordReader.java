@@ -0,0 +1,240 @@
+package org.mura.json;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * JSONRecordReader: JSON记录流读取器
+ * <p>
+ * 从字符流中逐条读取JSON对象(记录)的源代码, 每条记录再交给<b>JSONParser.parse()</b>解析<br>
+ * 支持两种格式, 根据第一个非空白字符判断:<br>
+ * 1、JSON数组: <b>[{...}, {...}, ...]</b><br>
+ * 2、以换行(或空白)分隔的JSON对象(NDJSON): <b>{...}\n{...}\n...</b>
+ * <p>
+ * 只按括号深度和字符串(转义)状态切分记录, 不分析记录的内容; 内存中只保存一条记录, 记录的长度不能超过<b>maxLength</b><br>
+ * 流的结构错误(如记录不是对象, 缺少逗号或右方括号, 记录过长)抛出IOException, 之后不能继续读取
+ *
+ * @author mura
+ */
+public class JSONRecordReader implements Closeable {
+
+	/**
+	 * 读取缓冲区的长度
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Reader reader;
+
+	/**
+	 * 一条记录的最大长度(字符)
+	 */
+	private final int maxLength;
+
+	private final char[] buffer = new char[BUFFER_SIZE];
+
+	private int position;
+
+	private int limit;
+
+	/**
+	 * 当前记录, 读取下一条时复用
+	 */
+	private final StringBuilder record = new StringBuilder();
+
+	/**
+	 * 是否已读取第一个非空白字符(确定格式)
+	 */
+	private boolean started;
+
+	/**
+	 * 是否为JSON数组格式
+	 */
+	private boolean array;
+
+	/**
+	 * 已读取的记录数
+	 */
+	private int count;
+
+	/**
+	 * 是否已读取到结尾
+	 */
+	private boolean ended;
+
+	/**
+	 * 构造方法
+	 *
+	 * @param reader
+	 *            字符流
+	 * @param maxLength
+	 *            一条记录的最大长度(字符)
+	 */
+	public JSONRecordReader(Reader reader, int maxLength) {
+		this.reader = reader;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * 读取下一条记录
+	 *
+	 * @return 记录(JSON对象)的源代码; 没有更多记录时返回null
+	 * @throws IOException
+	 *             读取失败或流的结构错误
+	 */
+	public String next() throws IOException {
+		if (ended) {
+			return null;
+		}
+		int ch = skipWhitespace();
+		if (!started) {
+			started = true;
+			if (ch == '[') {
+				array = true;
+				position++;
+				ch = skipWhitespace();
+				if (ch == ']') {
+					position++;
+					return end();
+				}
+			}
+		} else if (array) {
+			// 数组中的两条记录之间是逗号或右方括号
+			if (ch == ']') {
+				position++;
+				return end();
+			}
+			if (ch != ',') {
+				throw structureError(ch < 0 ? "Unexpected end of input, missing \"]\"" : "Missing \",\" or \"]\"");
+			}
+			position++;
+			ch = skipWhitespace();
+		}
+		if (ch < 0) {
+			if (array) {
+				throw structureError("Unexpected end of input, missing \"]\"");
+			}
+			ended = true;
+			return null;
+		}
+		if (ch != '{') {
+			throw structureError("Record should start with \"{\"");
+		}
+		return readObject();
+	}
+
+	/**
+	 * 是否为JSON数组格式(读取第一条记录后才能确定)
+	 */
+	public boolean isArray() {
+		return array;
+	}
+
+	/**
+	 * 已读取的记录数
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * 读取一个对象, 直到括号平衡
+	 */
+	private String readObject() throws IOException {
+		record.setLength(0);
+		int depth = 0;
+		boolean inString = false;
+		boolean escape = false;
+		while (true) {
+			if (position == limit && !fill()) {
+				throw structureError("Unexpected end of input in record");
+			}
+			// 整段追加到结束字符为止, 不逐字符追加
+			int start = position;
+			boolean complete = false;
+			while (position < limit) {
+				char ch = buffer[position++];
+				if (inString) {
+					if (escape) {
+						escape = false;
+					} else if (ch == '\\') {
+						escape = true;
+					} else if (ch == '\"') {
+						inString = false;
+					}
+				} else if (ch == '\"') {
+					inString = true;
+				} else if (ch == '{' || ch == '[') {
+					depth++;
+				} else if (ch == '}' || ch == ']') {
+					if (--depth == 0) {
+						complete = true;
+						break;
+					}
+				}
+			}
+			if (record.length() + position - start > maxLength) {
+				throw structureError("Record longer than " + maxLength + " characters");
+			}
+			record.append(buffer, start, position - start);
+			if (complete) {
+				count++;
+				return record.toString();
+			}
+		}
+	}
+
+	/**
+	 * 跳过空白符
+	 *
+	 * @return 下一个非空白字符(不读取); 已到结尾时返回-1
+	 */
+	private int skipWhitespace() throws IOException {
+		while (true) {
+			if (position == limit && !fill()) {
+				return -1;
+			}
+			char ch = buffer[position];
+			if (!Character.isWhitespace(ch)) {
+				return ch;
+			}
+			position++;
+		}
+	}
+
+	/**
+	 * 数组结束后只能有空白符
+	 */
+	private String end() throws IOException {
+		if (skipWhitespace() >= 0) {
+			throw structureError("Unexpected content after \"]\"");
+		}
+		ended = true;
+		return null;
+	}
+
+	/**
+	 * 读取更多字符到缓冲区
+	 *
+	 * @return 是否读取到字符
+	 */
+	private boolean fill() throws IOException {
+		int n = reader.read(buffer, 0, buffer.length);
+		while (n == 0) {
+			n = reader.read(buffer, 0, buffer.length);
+		}
+		position = 0;
+		limit = Math.max(n, 0);
+		return n > 0;
+	}
+
+	private IOException structureError(String message) {
+		ended = true;
+		return new IOException(message + " (after record " + count + ")");
+	}
+}
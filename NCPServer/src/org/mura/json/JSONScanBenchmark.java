@@ -0,0 +1,85 @@
+package org.mura.json;
+
+/**
+ * 词法分析两种扫描方式的性能对比: 逐字符(scalar)与快速扫描(JSONScanner, SWAR)
+ * <p>
+ * 生成与投诉相似的JSON代码(字符串中含有转义字符和中文), 分别解析多次, 输出每秒解析的字符数<br>
+ * 同时检查两种方式的解析结果完全相同
+ * <p>
+ * 运行: <b>java org.mura.json.JSONScanBenchmark [元素个数] [轮数]</b>
+ *
+ * @author mura
+ */
+public class JSONScanBenchmark {
+
+	/**
+	 * 每轮解析的次数
+	 */
+	private static final int ITERATIONS = 20;
+
+	public static void main(String[] args) throws Exception {
+		int elements = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		String src = generate(elements);
+		System.out.println("source: " + src.length() + " chars, " + elements + " elements");
+
+		String scalar = JSONParser.parse(src, null, false).toString();
+		String fast = JSONParser.parse(src, null, true).toString();
+		if (!scalar.equals(fast)) {
+			throw new IllegalStateException("fast scan result differs from scalar result");
+		}
+
+		for (int round = 1; round <= rounds; round++) {
+			long scalarNanos = run(src, false);
+			long fastNanos = run(src, true);
+			System.out.println("round " + round + ": scalar " + rate(src, scalarNanos) + " Mchars/s, fast "
+					+ rate(src, fastNanos) + " Mchars/s, speedup "
+					+ String.format("%.2f", (double) scalarNanos / fastNanos));
+		}
+	}
+
+	/**
+	 * 解析<b>ITERATIONS</b>次
+	 *
+	 * @return 耗时(纳秒)
+	 */
+	private static long run(String src, boolean fastScan) throws Exception {
+		long start = System.nanoTime();
+		int nodes = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			nodes += JSONParser.parse(src, null, fastScan).size();
+		}
+		long nanos = System.nanoTime() - start;
+		if (nodes == 0) {
+			throw new IllegalStateException("nothing parsed");
+		}
+		return nanos;
+	}
+
+	private static String rate(String src, long nanos) {
+		return String.format("%.1f", (double) src.length() * ITERATIONS * 1000 / nanos);
+	}
+
+	/**
+	 * 生成测试用的JSON代码: 一个投诉数组
+	 */
+	private static String generate(int elements) {
+		StringBuilder sb = new StringBuilder(elements * 200);
+		sb.append("{\"complains\": [");
+		for (int i = 0; i < elements; i++) {
+			if (i > 0) {
+				sb.append(",\n  ");
+			}
+			sb.append("{\"comment\": \"施工噪声 \\\"夜间\\\" 第").append(i).append("条, 持续到凌晨\\n请处理\", ");
+			sb.append("\"date\": \"2016-05-").append(10 + i % 20).append(" 23:").append(10 + i % 50).append("\", ");
+			sb.append("\"intensity\": ").append(40 + i % 60).append('.').append(i % 10).append(", ");
+			sb.append("\"address\": \"广州市海珠区新港西路135号\", ");
+			sb.append("\"latitude\": 23.0").append(i % 1000).append(", \"longitude\": 113.2").append(i % 1000)
+					.append(", ");
+			sb.append("\"sfaType\": \"residential\", \"noiseType\": \"construction\", \"valid\": ")
+					.append(i % 2 == 0).append('}');
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,197 @@
+package org.mura.json;
+
+/**
+ * JSONScanner: JSON结构字符快速扫描器
+ * <p>
+ * 供词法分析器的快速模式使用, 一次检查多个字符, 查找引号, 反斜杠, 控制字符以及分隔符<br>
+ * 字符串内容使用SWAR(SIMD Within A Register)方式扫描: 每4个UTF-16字符打包为一个long, 并行比较<br>
+ * 其他情况使用查表方式代替逐字符的<b>indexOf</b>
+ * <p>
+ * 判定规则与逐字符的分析完全一致, 只是改变了扫描的方式
+ *
+ * @author mura
+ */
+final class JSONScanner {
+
+	/**
+	 * 每个16位通道的最低位
+	 */
+	private static final long ONES = 0x0001000100010001L;
+
+	/**
+	 * 每个16位通道的最高位
+	 */
+	private static final long HIGHS = 0x8000800080008000L;
+
+	/**
+	 * 每个16位通道的低15位
+	 */
+	private static final long LOWS = 0x7FFF7FFF7FFF7FFFL;
+
+	/**
+	 * 字符分类表: 空白符(Character.isWhitespace)
+	 */
+	private static final byte WHITESPACE = 1;
+
+	/**
+	 * 字符分类表: 分隔符(",:[]{} \t\r\n")
+	 */
+	private static final byte SEPARATOR = 2;
+
+	/**
+	 * 字符分类表: 双引号
+	 */
+	private static final byte QUOTATION = 4;
+
+	/**
+	 * ASCII字符分类表
+	 */
+	private static final byte[] CHAR_CLASS = new byte[128];
+
+	static {
+		for (char ch = 0; ch < 128; ch++) {
+			if (Character.isWhitespace(ch)) {
+				CHAR_CLASS[ch] |= WHITESPACE;
+			}
+		}
+		for (char ch : ",:[]{} \t\r\n".toCharArray()) {
+			CHAR_CLASS[ch] |= SEPARATOR;
+		}
+		CHAR_CLASS['\"'] |= QUOTATION;
+	}
+
+	private JSONScanner() {
+	}
+
+	/**
+	 * 跳过空白符
+	 *
+	 * @param src
+	 *            字符数组
+	 * @param from
+	 *            起始索引
+	 * @param to
+	 *            结束索引(不包含)
+	 * @return 第一个非空白符的索引, 没有时返回<b>to</b>
+	 */
+	static int skipWhitespace(char[] src, int from, int to) {
+		int i = from;
+		while (i < to) {
+			char ch = src[i];
+			if (ch < 128 ? (CHAR_CLASS[ch] & WHITESPACE) == 0 : !Character.isWhitespace(ch)) {
+				break;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * 检查特定字符是否为分隔符
+	 *
+	 * @param ch
+	 *            要检查的字符
+	 * @return <b>true/false</b>
+	 */
+	static boolean isSeparator(char ch) {
+		return ch < 128 && (CHAR_CLASS[ch] & SEPARATOR) != 0;
+	}
+
+	/**
+	 * 查找标识符(数字, true, false, null等)的结束位置
+	 *
+	 * @param src
+	 *            字符数组
+	 * @param from
+	 *            起始索引
+	 * @param to
+	 *            结束索引(不包含)
+	 * @return 第一个分隔符或双引号的索引, 没有时返回<b>to</b>
+	 */
+	static int indexOfDelimiter(char[] src, int from, int to) {
+		int i = from;
+		while (i < to) {
+			char ch = src[i];
+			if (ch < 128 && (CHAR_CLASS[ch] & (SEPARATOR | QUOTATION)) != 0) {
+				break;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * 查找字符串内容中第一个需要特殊处理的字符
+	 * <p>
+	 * 需要特殊处理的字符包括: 双引号, 反斜杠, 以及控制字符(Character.isISOControl)<br>
+	 * 每次读取4个字符组成一个long, 只有发现了可疑的字符才逐个确认
+	 *
+	 * @param src
+	 *            字符数组
+	 * @param from
+	 *            起始索引
+	 * @param to
+	 *            结束索引(不包含)
+	 * @return 第一个特殊字符的索引, 没有时返回<b>to</b>
+	 */
+	static int indexOfStringSpecial(char[] src, int from, int to) {
+		int i = from;
+		while (i + 4 <= to) {
+			long word = (long) src[i] | (long) src[i + 1] << 16 | (long) src[i + 2] << 32 | (long) src[i + 3] << 48;
+			long special = specialLanes(word);
+			if (special == 0) {
+				i += 4;
+				continue;
+			}
+			// 有通道可能为特殊字符, 从第一个可疑通道开始逐个确认(非ASCII字符大部分不是控制字符)
+			int end = i + 4;
+			for (i += Long.numberOfTrailingZeros(special) >>> 4; i < end; i++) {
+				char ch = src[i];
+				if (ch == '\"' || ch == '\\' || Character.isISOControl(ch)) {
+					return i;
+				}
+			}
+		}
+		while (i < to) {
+			char ch = src[i];
+			if (ch == '\"' || ch == '\\' || Character.isISOControl(ch)) {
+				break;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * 并行检查4个16位通道, 返回需要特殊处理的通道的最高位掩码
+	 * <p>
+	 * 每个通道先屏蔽最高位再做加法, 进位不会越过通道边界, 因此每个通道的结果都是精确的
+	 *
+	 * @param word
+	 *            打包了4个字符的long
+	 * @return 可疑通道的掩码, 为0时说明4个字符都是普通字符
+	 */
+	private static long specialLanes(long word) {
+		long low = word & LOWS;
+		// 最高位为1: 字符 >= 0x20
+		long notControl = (low + 0x7FE0 * ONES) | word;
+		// 最高位为1: 字符 >= 0x7F(包含0x7F~0x9F的控制字符, 交由逐字符检查)
+		long notAscii = (low + 0x7F81 * ONES) | word;
+		// 最高位为1: 字符不等于双引号或反斜杠
+		long notQuotation = nonZeroLanes(word ^ ('\"' * ONES));
+		long notBackslash = nonZeroLanes(word ^ ('\\' * ONES));
+		long plain = notControl & ~notAscii & notQuotation & notBackslash & HIGHS;
+		return ~plain & HIGHS;
+	}
+
+	/**
+	 * 并行检查4个16位通道是否非0
+	 *
+	 * @param word
+	 *            打包了4个字符的long
+	 * @return 非0通道的最高位为1
+	 */
+	private static long nonZeroLanes(long word) {
+		return ((word & LOWS) + LOWS) | word;
+	}
+}
@@ -21,4 +21,9 @@ public class JSONString extends JSONVariable<String> {
 	protected String valueString() {
 		return "\"" + value + "\"";
 	}
+
+	@Override
+	protected void appendValue(StringBuilder sb) {
+		sb.append('\"').append(value).append('\"');
+	}
 }
@@ -57,11 +57,23 @@ public abstract class JSONVariable<T> {
 	 */
 	public final String toString() {
 		StringBuilder sb = new StringBuilder();
+		appendTo(sb);
+		return sb.toString();
+	}
+
+	/**
+	 * 将JSON变量转换后的字符串追加至StringBuilder
+	 * <p>
+	 * 格式与toString()相同, 但不生成中间的字符串, 可以复用同一个StringBuilder
+	 * 
+	 * @param sb
+	 *            写入此StringBuilder
+	 */
+	public final void appendTo(StringBuilder sb) {
 		if (key != null) {
-			sb.append("\"" + key + "\":");
+			sb.append('\"').append(key).append("\":");
 		}
-		sb.append(valueString());
-		return sb.toString();
+		appendValue(sb);
 	}
 
 	/**
@@ -74,6 +86,18 @@ public abstract class JSONVariable<T> {
 	 */
 	protected abstract String valueString();
 
+	/**
+	 * 将值部分的字符串追加至StringBuilder
+	 * <p>
+	 * 默认使用valueString()的结果, 子类可以重写此方法直接写入, 避免生成中间的字符串
+	 * 
+	 * @param sb
+	 *            写入此StringBuilder
+	 */
+	protected void appendValue(StringBuilder sb) {
+		sb.append(valueString());
+	}
+
 	/**
 	 * 获取值的类型
 	 * 
@@ -108,8 +132,37 @@ public abstract class JSONVariable<T> {
 	 * @return 格式化后的String
 	 */
 	public String toFormatString() {
-		String str = toString();
 		StringBuilder buff = new StringBuilder();
+		format(toString(), buff);
+		return buff.toString();
+	}
+
+	/**
+	 * 将格式化后的字符串追加至StringBuilder
+	 * <p>
+	 * 格式与toFormatString()相同, 但不生成中间的字符串<br>
+	 * 未格式化的字符串先写入<b>scratch</b>(会被清空), 两个StringBuilder都可以复用
+	 * 
+	 * @param buff
+	 *            写入此StringBuilder
+	 * @param scratch
+	 *            临时使用的StringBuilder
+	 */
+	public void appendFormatTo(StringBuilder buff, StringBuilder scratch) {
+		scratch.setLength(0);
+		appendTo(scratch);
+		format(scratch, buff);
+	}
+
+	/**
+	 * 格式化JSON字符串
+	 * 
+	 * @param str
+	 *            未格式化的JSON字符串
+	 * @param buff
+	 *            格式化的结果追加至此StringBuilder
+	 */
+	private static void format(CharSequence str, StringBuilder buff) {
 		int indent = 0;
 		int quotation = 0;
 		int newLineStart = 2;
@@ -126,12 +179,12 @@ public abstract class JSONVariable<T> {
 				case '{':
 				case '[':
 					if (newLineStart <= 0) {
-						buff.append(newLine(indent));
+						newLine(buff, indent);
 						newLineStart = 2;
 					}
 					indent++;
 					buff.append(ch);
-					buff.append(newLine(indent));
+					newLine(buff, indent);
 					newLineStart = 2;
 					bracketStart = 2;
 					break;
@@ -144,14 +197,14 @@ public abstract class JSONVariable<T> {
 						}
 						buff.append(ch);
 					} else {
-						buff.append(newLine(indent));
+						newLine(buff, indent);
 						newLineStart = 2;
 						buff.append(ch);
 					}
 					break;
 				case ',':
 					buff.append(ch);
-					buff.append(newLine(indent));
+					newLine(buff, indent);
 					newLineStart = 2;
 					break;
 				case ':':
@@ -171,23 +224,21 @@ public abstract class JSONVariable<T> {
 				}
 			}
 		}
-		return buff.toString();
 	}
 
 	/**
 	 * 根据指定的缩进值, 插入新行
 	 * 
+	 * @param buff
+	 *            写入此StringBuilder
 	 * @param indent
 	 *            缩进值
-	 * @return 可以附加至StringBuilder的字符串
 	 */
-	private String newLine(int indent) {
-		StringBuilder buff = new StringBuilder();
+	private static void newLine(StringBuilder buff, int indent) {
 		buff.append('\n');
 		for (int i = 0; i < indent; i++) {
 			buff.append("    ");
 		}
-		return buff.toString();
 	}
 
 }
@@ -0,0 +1,59 @@
+package org.mura.servlet;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * 线程内存分配量的读取
+ * <p>
+ * 使用HotSpot的<b>com.sun.management.ThreadMXBean</b>, 读取当前线程累计分配的堆内存字节数<br>
+ * 在某段代码前后各读取一次, 差值即为这段代码的分配量(只统计当前线程)
+ * <p>
+ * JVM不支持时(或虚拟线程等无法统计的线程)返回-1, 调用方应忽略此次统计
+ *
+ * @author mura
+ */
+final class AllocationTracker {
+
+	/**
+	 * 支持统计分配量的ThreadMXBean, 不支持时为<b>null</b>
+	 */
+	private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+	private AllocationTracker() {
+	}
+
+	/**
+	 * 当前线程累计分配的字节数
+	 *
+	 * @return 字节数, 不支持时返回-1
+	 */
+	static long currentThreadAllocatedBytes() {
+		if (THREADS == null) {
+			return -1;
+		}
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * 获取并开启支持统计分配量的ThreadMXBean
+	 */
+	private static com.sun.management.ThreadMXBean threadBean() {
+		try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+				return null;
+			}
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+			if (!threads.isThreadAllocatedMemorySupported()) {
+				return null;
+			}
+			if (!threads.isThreadAllocatedMemoryEnabled()) {
+				threads.setThreadAllocatedMemoryEnabled(true);
+			}
+			return threads;
+		} catch (UnsupportedOperationException | SecurityException | LinkageError e) {
+			return null;
+		}
+	}
+}
@@ -1,8 +1,10 @@
 package org.mura.servlet;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
@@ -10,7 +12,17 @@ import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -21,9 +33,12 @@ import org.mura.json.JSONBoolean;
 import org.mura.json.JSONData;
 import org.mura.json.JSONFloat;
 import org.mura.json.JSONInteger;
+import org.mura.json.JSONLong;
+import org.mura.json.JSONNull;
 import org.mura.json.JSONObject;
 import org.mura.json.JSONString;
 import org.mura.json.JSONVariable;
+import org.mura.servlet.ServletMetrics.Phase;
 
 /**
  * Servlet基类, 继承此类后开发实现具体功能的Servlet
@@ -39,6 +54,13 @@ import org.mura.json.JSONVariable;
  * 在<b>main</b>方法中处理请求<br>
  * 请求参数可以在传入的<b>para</b>对象中获得, 然后将返回内容写在<b>json</b>对象中<br>
  * 如果出现异常可以直接<b>throw</b>, 将会显示错误信息, 方便调试
+ * <p>
+ * 3、(可选)异步模式:<br>
+ * 重写<b>createExecutor</b>返回一个线程池, <b>main</b>将在此线程池中执行, 不占用容器线程<br>
+ * 请求超时后<b>main</b>不被中断(中断虚拟线程中的socket读写会关闭JDBC连接), 只标记为结束(Servlet.isCancelled()),
+ * 之后<b>main</b>的输出被丢弃, 不能再使用请求和应答对象; 阻塞的数据库查询由查询超时结束
+ * <p>
+ * 应答内容通过<b>response.getOutputStream()</b>写出, 子类不能调用<b>response.getWriter()</b>, 输出应写入<b>servlet.out</b>
  * 
  * @author mura
  *
@@ -57,6 +79,67 @@ public abstract class BaseServlet<P extends ParaBean, J extends JSONBean> extend
 	 */
 	private static final boolean BROWSER_DEBUG = true;
 
+	/**
+	 * 是否压缩应答内容
+	 */
+	private static final boolean COMPRESSION = true;
+
+	/**
+	 * 应答内容(UTF-8编码后)达到此字节数时才进行压缩, 过小的内容压缩后收益不大
+	 */
+	private static final int COMPRESSION_THRESHOLD = 1024;
+
+	/**
+	 * 异步模式下请求的默认超时时间(毫秒)
+	 */
+	private static final long ASYNC_TIMEOUT = 30000;
+
+	/**
+	 * 默认每多少个请求抽样一个, 统计各阶段的内存分配量
+	 */
+	private static final int ALLOCATION_SAMPLE_INTERVAL = 16;
+
+	/**
+	 * 请求体(Content-Length)达到此字节数时, 赋值参数Bean前先取得内存预算(MemoryBudget)
+	 */
+	private static final long MEMORY_BUDGET_THRESHOLD = 64 * 1024;
+
+	/**
+	 * 估计请求占用的内存为Content-Length的倍数: 容器缓冲的请求体(1), 参数字符串(UTF-16最多2),
+	 * 解码后的Data(Base64的3/4)同时存在, 约3.75倍
+	 */
+	private static final int MEMORY_COST_FACTOR = 4;
+
+	/**
+	 * 未知长度(分块传输)的表单请求体的估计大小(Tomcat默认的maxPostSize), 解析参数后按实际大小调整
+	 */
+	private static final long UNKNOWN_LENGTH_ESTIMATE = 2 * 1024 * 1024;
+
+	/**
+	 * 容器解析为参数的请求体类型
+	 */
+	private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+	/**
+	 * 内存预算不足时的默认等待时间(毫秒)
+	 */
+	private static final long MEMORY_WAIT_TIMEOUT = 5000;
+
+	/**
+	 * 异步模式使用的线程池, 为<b>null</b>时使用同步模式
+	 */
+	private transient ExecutorService executor;
+
+	/**
+	 * 此Servlet的请求处理统计
+	 */
+	private final transient ServletMetrics metrics = Metrics.forServlet(getClass());
+
+	/**
+	 * 此Servlet的日志
+	 */
+	protected final transient Logger log = Logger.get(getClass().getSimpleName());
+
 	/**
 	 * 用于更清晰地在错误信息中类型名, 设置一组类型名和Java类型的映射
 	 */
@@ -83,7 +166,11 @@ public abstract class BaseServlet<P extends ParaBean, J extends JSONBean> extend
 	 * @param json
 	 *            JSON格式Bean, 需继承自BaseJSONBean
 	 * @param servlet
-	 *            提供未包装的对象访问, 除非必要, 不要用
+	 *            提供未包装的对象访问, 除非必要, 不要用<br>
+	 *            异步模式下请求超时后, 错误信息已经由另一个线程用新的缓冲区输出, 请求和应答对象可能已被容器回收:<br>
+	 *            此时<b>servlet.isCancelled()</b>为<b>true</b>, <b>servlet.out</b>的输出被丢弃,
+	 *            <b>servlet.request</b>和<b>servlet.response</b>为<b>null</b>,
+	 *            <b>main</b>不能再使用请求和应答对象, 应尽快结束
 	 * @throws Exception
 	 *             如果处理过程出现异常, 抛出异常中断请求处理
 	 */
@@ -105,6 +192,100 @@ public abstract class BaseServlet<P extends ParaBean, J extends JSONBean> extend
 		handleRequest(request, response);
 	}
 
+	/**
+	 * 初始化Servlet, 创建异步模式使用的线程池
+	 */
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		executor = createExecutor();
+	}
+
+	/**
+	 * 销毁Servlet, 关闭异步模式使用的线程池
+	 */
+	@Override
+	public void destroy() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+		super.destroy();
+	}
+
+	/**
+	 * 创建异步模式使用的线程池, 在Servlet初始化时调用一次
+	 * <p>
+	 * 默认返回<b>null</b>, 即同步模式: <b>main</b>在容器线程中执行<br>
+	 * 子类返回一个线程池即开启异步模式(同时需要在<b>@WebServlet</b>中设置<b>asyncSupported = true</b>):<br>
+	 * 参数Bean的创建和赋值仍在容器线程中进行, <b>main</b>及之后的输出在此线程池中执行, 不占用容器线程<br>
+	 * 线程池会在Servlet销毁时关闭
+	 * 
+	 * @return 线程池或<b>null</b>
+	 */
+	protected ExecutorService createExecutor() {
+		return null;
+	}
+
+	/**
+	 * 创建每个请求一个虚拟线程的线程池, 可以在<b>createExecutor</b>中使用
+	 * <p>
+	 * 适合在<b>main</b>中进行阻塞操作(如JDBC)的Servlet, 不需要估计线程池的大小<br>
+	 * 虚拟线程在JDK 21及以上版本可用, 通过反射创建, 不支持时返回<b>null</b>(即同步模式)
+	 * <p>
+	 * 虚拟线程在<b>synchronized</b>块中阻塞时会占住载体线程, 请求处理的路径上应使用<b>java.util.concurrent</b>中的锁
+	 * 
+	 * @return 线程池或<b>null</b>
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 异步模式下请求的超时时间, 超时后按异常处理(TimeoutException)
+	 * 
+	 * @return 超时时间(毫秒)
+	 */
+	protected long getAsyncTimeout() {
+		return ASYNC_TIMEOUT;
+	}
+
+	/**
+	 * 统计内存分配量的抽样间隔, 平均每这么多个请求中抽取一个, 统计其各阶段分配的堆内存
+	 * <p>
+	 * 每个抽样的阶段需要读取两次线程的分配量, 间隔越大开销越小; 返回0时不统计
+	 * 
+	 * @return 抽样间隔
+	 */
+	protected int getAllocationSampleInterval() {
+		return ALLOCATION_SAMPLE_INTERVAL;
+	}
+
+	/**
+	 * 内存预算不足时的等待时间, 超时后按异常处理(MemoryBudgetException, 状态码503)
+	 * 
+	 * @return 等待时间(毫秒), 0表示不等待
+	 */
+	protected long getMemoryWaitTimeout() {
+		return MEMORY_WAIT_TIMEOUT;
+	}
+
+	/**
+	 * 输出JSON时, 元素很多的数组(JSONBean中的List)并行转换使用的线程池, 参见<b>JSONArray.setParallel</b>
+	 * <p>
+	 * 默认返回<b>null</b>(总是顺序转换); 需要并行转换的Servlet重写此方法, 返回专用的线程池或公共的ForkJoinPool<br>
+	 * 元素较少的数组即使返回了线程池也顺序转换
+	 * 
+	 * @return 线程池或<b>null</b>
+	 */
+	protected ForkJoinPool getRenderPool() {
+		return null;
+	}
+
 	/**
 	 * 处理GET请求和POST请求
 	 * 
@@ -128,49 +309,395 @@ public abstract class BaseServlet<P extends ParaBean, J extends JSONBean> extend
 			response.setContentType("application/json");
 		}
 
-		// 获取PrintWriter对象
-		PrintWriter out = response.getWriter();
-
-		// 创建输出JSON对象
-		JSONObject jsonObj = new JSONObject(null);
-
-		// 创建Servlet包装对象
-		Servlet servlet = new Servlet(request, response, out);
+		// 创建Servlet包装对象, 输出先写入缓冲区
+		Servlet servlet = new Servlet(request, response, new ResponseBuffer(BROWSER_DEBUG));
+		servlet.event = ServletEvents.REQUEST.begin();
+		int interval = getAllocationSampleInterval();
+		servlet.sampled = interval > 0 && ThreadLocalRandom.current().nextInt(interval) == 0;
 
+		final P para;
+		final J json;
 		try {
+			// 大的请求体先取得内存预算, 处理结束后归还
+			reserveMemory(servlet);
 			// 创建参数打包的对象
-			P para = (P) createParaBean();
-			J json = (J) createJSONBean();
+			Object event = ServletEvents.BIND.begin();
+			long allocated = allocationMark(servlet);
+			long start = System.nanoTime();
+			para = (P) createParaBean();
+			json = (J) createJSONBean();
+			long created = System.nanoTime();
+			metrics.record(Phase.CREATE_BEAN, created - start);
+			allocated = recordAllocation(Phase.CREATE_BEAN, allocated);
 			assignParaBean(request, para);
+			trimMemory(servlet);
+			metrics.record(Phase.ASSIGN_PARA, System.nanoTime() - created);
+			recordAllocation(Phase.ASSIGN_PARA, allocated);
+			if (event != null) {
+				ServletEvents.BIND.commit(event, metrics.name(), request.getContentLengthLong());
+			}
+		} catch (Exception e) {
+			releaseMemory(servlet);
+			if (e instanceof MemoryBudgetException) {
+				response.setStatus(((MemoryBudgetException) e).status);
+				if (((MemoryBudgetException) e).status == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+					response.setHeader("Retry-After", "1");
+				}
+			}
+			processException(servlet, e);
+			writeResponse(servlet);
+			return;
+		}
 
+		if (executor == null || !request.isAsyncSupported()) {
+			// 同步模式, 直接在容器线程中处理
+			Exception e = service(para, json, servlet);
+			releaseMemory(servlet);
+			if (e == null) {
+				servlet.printJSON();
+			} else {
+				processException(servlet, e);
+			}
+			writeResponse(servlet);
+		} else {
+			serviceAsync(para, json, servlet);
+		}
+	}
+
+	/**
+	 * 请求体达到<b>MEMORY_BUDGET_THRESHOLD</b>时, 按Content-Length从内存预算中取得字节数
+	 * <p>
+	 * 未知长度(分块传输)的表单请求按<b>UNKNOWN_LENGTH_ESTIMATE</b>取得(参数由容器一次读取, 不能边读边取得),
+	 * 解析参数后由<b>trimMemory</b>按实际大小归还多取得的部分
+	 * 
+	 * @param servlet
+	 *            Servlet包装对象
+	 * @throws MemoryBudgetException
+	 *             超过整个预算或等待超时
+	 */
+	private void reserveMemory(Servlet servlet) throws MemoryBudgetException {
+		long length = servlet.request.getContentLengthLong();
+		if (length < 0 && isForm(servlet.request)) {
+			long bytes = UNKNOWN_LENGTH_ESTIMATE * MEMORY_COST_FACTOR;
+			MemoryBudget.acquire(bytes, getMemoryWaitTimeout());
+			servlet.reserved = bytes;
+			servlet.estimated = true;
+		} else if (length >= MEMORY_BUDGET_THRESHOLD) {
+			long bytes = length * MEMORY_COST_FACTOR;
+			MemoryBudget.acquire(bytes, getMemoryWaitTimeout());
+			servlet.reserved = bytes;
+		}
+	}
+
+	/**
+	 * 未知长度的请求解析参数后, 按参数的实际大小调整取得的内存预算(归还多取得的部分)
+	 * 
+	 * @param servlet
+	 *            Servlet包装对象
+	 */
+	private void trimMemory(Servlet servlet) {
+		if (!servlet.estimated) {
+			return;
+		}
+		servlet.estimated = false;
+		long chars = 0;
+		for (Map.Entry<String, String[]> entry : servlet.request.getParameterMap().entrySet()) {
+			chars += entry.getKey().length();
+			for (String value : entry.getValue()) {
+				chars += value.length();
+			}
+		}
+		long bytes = chars >= MEMORY_BUDGET_THRESHOLD ? chars * MEMORY_COST_FACTOR : 0;
+		if (bytes < servlet.reserved) {
+			MemoryBudget.release(servlet.reserved - bytes);
+			servlet.reserved = bytes;
+		}
+	}
+
+	/**
+	 * 请求体是否是表单(容器解析为参数)
+	 */
+	private static boolean isForm(HttpServletRequest request) {
+		String contentType = request.getContentType();
+		return contentType != null
+				&& contentType.regionMatches(true, 0, FORM_CONTENT_TYPE, 0, FORM_CONTENT_TYPE.length());
+	}
+
+	/**
+	 * 归还此请求取得的内存预算(参数Bean不再使用后), 没有取得时不做任何事
+	 * 
+	 * @param servlet
+	 *            Servlet包装对象
+	 */
+	private void releaseMemory(Servlet servlet) {
+		if (servlet.reserved > 0) {
+			MemoryBudget.release(servlet.reserved);
+			servlet.reserved = 0;
+		}
+	}
+
+	/**
+	 * 调用主方法处理请求, 并生成输出JSON对象
+	 * 
+	 * @param para
+	 *            请求参数Bean
+	 * @param json
+	 *            JSON格式Bean
+	 * @param servlet
+	 *            Servlet包装对象
+	 * @return 成功时返回<b>null</b>, 否则返回出现的异常(尚未处理)
+	 */
+	private Exception service(P para, J json, Servlet servlet) {
+		Object event = ServletEvents.SERVICE.begin();
+		Exception failure = null;
+		try {
 			// 调用主方法处理请求
+			long allocated = allocationMark(servlet);
+			long start = System.nanoTime();
 			main(para, json, servlet);
-			assignJSONObject(json, jsonObj);
+			long served = System.nanoTime();
+			metrics.record(Phase.MAIN, served - start);
+			allocated = recordAllocation(Phase.MAIN, allocated);
+			assignJSONObject(json, servlet.jsonObj);
+			metrics.record(Phase.ASSIGN_JSON, System.nanoTime() - served);
+			recordAllocation(Phase.ASSIGN_JSON, allocated);
+		} catch (Exception e) {
+			failure = e;
+		}
+		if (event != null) {
+			ServletEvents.SERVICE.commit(event, metrics.name(), failure != null);
+		}
+		return failure;
+	}
 
-			if (servlet.print) {
-				// 打印返回输出JSON对象
-				if (BROWSER_DEBUG) {
-					out.print(jsonObj.toFormatString());
-				} else {
-					out.print(jsonObj.toString());
+	/**
+	 * 异步模式处理请求
+	 * <p>
+	 * <b>main</b>在线程池中执行, 结束后输出并结束异步请求<br>
+	 * 超时或容器报告错误时, 调用<b>handleException</b>输出错误信息<br>
+	 * 正常输出和错误输出只会发生一个(先到者有效)
+	 * 
+	 * @param para
+	 *            请求参数Bean
+	 * @param json
+	 *            JSON格式Bean
+	 * @param servlet
+	 *            Servlet包装对象
+	 */
+	private void serviceAsync(final P para, final J json, final Servlet servlet) {
+		final AsyncContext async = servlet.request.startAsync();
+		async.setTimeout(getAsyncTimeout());
+		async.addListener(new AsyncListener() {
+
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (servlet.claimResponse()) {
+					// 主方法仍在执行: 错误信息写入新的缓冲区, 主方法之后的输出被丢弃
+					Servlet timeout = servlet.cancel();
+					processException(timeout,
+							new TimeoutException("Request timed out after " + getAsyncTimeout() + " ms"));
+					completeAsync(timeout, async);
+					servlet.releaseRequest();
 				}
 			}
 
-		} catch (Exception e) {
-			// 捕获并处理异常, 返回相应信息
-			servlet.catching = true;
-			try {
-				handleException(servlet, e);
-			} catch (Exception e2) {
-				// 如果仍然抛出错误, 改用默认方式处理异常
-				defaultHandleException(servlet, e2);
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				if (servlet.claimResponse()) {
+					Servlet error = servlet.cancel();
+					Throwable t = event.getThrowable();
+					processException(error, t instanceof Exception ? (Exception) t : new Exception(t));
+					completeAsync(error, async);
+					servlet.releaseRequest();
+				}
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+			}
+		});
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					Exception e = service(para, json, servlet);
+					// 即使已经超时, 也要等主方法结束才归还内存预算
+					releaseMemory(servlet);
+					// 已经超时的请求由监听器输出并结束
+					if (servlet.claimResponse()) {
+						if (e == null) {
+							servlet.printJSON();
+						} else {
+							processException(servlet, e);
+						}
+						completeAsync(servlet, async);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// 线程池已满或已关闭
+			releaseMemory(servlet);
+			if (servlet.claimResponse()) {
+				processException(servlet, e);
+				completeAsync(servlet, async);
 			}
 		}
 	}
 
+	/**
+	 * 写出应答并结束异步请求
+	 * 
+	 * @param servlet
+	 *            Servlet包装对象
+	 * @param async
+	 *            异步请求对象
+	 */
+	private void completeAsync(Servlet servlet, AsyncContext async) {
+		try {
+			writeResponse(servlet);
+		} catch (IOException e) {
+			// 客户端已断开等情况, 无法再返回错误信息
+			log.warn("async response write failed", "error", e);
+		} finally {
+			async.complete();
+			// 请求和应答对象交还容器, 之后可能被回收复用
+			servlet.releaseRequest();
+		}
+	}
+
+	/**
+	 * 将缓冲区中的输出写入应答
+	 * <p>
+	 * 内容达到一定长度, 且客户端接受压缩编码(Accept-Encoding)时, 使用gzip或deflate压缩后输出<br>
+	 * 缓冲区为空时不输出任何内容; 这是请求处理的最后一步, 同时结束请求的JFR事件
+	 * 
+	 * @param servlet
+	 *            Servlet包装对象
+	 * @throws IOException
+	 */
+	private void writeResponse(Servlet servlet) throws IOException {
+		servlet.out.flush();
+		if (servlet.buffer.isEmpty()) {
+			commitRequestEvent(servlet, 0, null);
+			return;
+		}
+		long allocated = allocationMark(servlet);
+		long start = System.nanoTime();
+		HttpServletResponse response = servlet.response;
+		// 生成和编码都在当前线程可复用的缓冲区中进行
+		RenderBuffer render = RenderBuffer.acquire();
+		int length = 0;
+		String encoding = null;
+		try {
+			Object event = ServletEvents.SERIALIZE.begin();
+			servlet.buffer.renderTo(render.text(), render.scratch());
+			render.encode();
+			length = render.length();
+			if (event != null) {
+				ServletEvents.SERIALIZE.commit(event, metrics.name(), render.text().length(), length);
+			}
+			if (COMPRESSION) {
+				response.setHeader("Vary", "Accept-Encoding");
+				if (render.length() >= COMPRESSION_THRESHOLD) {
+					encoding = ResponseCompressor.negotiate(servlet.request.getHeader("Accept-Encoding"));
+				}
+			}
+			OutputStream os = response.getOutputStream();
+			if (encoding == null) {
+				response.setContentLength(render.length());
+				os.write(render.bytes(), 0, render.length());
+			} else {
+				response.setHeader("Content-Encoding", encoding);
+				ResponseCompressor.compress(render, encoding, os);
+			}
+		} finally {
+			render.release();
+			commitRequestEvent(servlet, length, encoding);
+		}
+		metrics.record(Phase.WRITE, System.nanoTime() - start);
+		recordAllocation(Phase.WRITE, allocated);
+	}
+
+	/**
+	 * 读取当前线程已分配的字节数, 作为统计一个阶段内存分配量的起点
+	 * 
+	 * @param servlet
+	 *            Servlet包装对象
+	 * @return 字节数, 此请求未被抽样或不支持统计时返回-1
+	 */
+	private long allocationMark(Servlet servlet) {
+		return servlet.sampled ? AllocationTracker.currentThreadAllocatedBytes() : -1;
+	}
+
+	/**
+	 * 记录一个阶段的内存分配量
+	 * <p>
+	 * 阶段的开始和结束必须在同一个线程中(异步模式下各阶段分别在各自的线程中统计)
+	 * 
+	 * @param phase
+	 *            阶段
+	 * @param mark
+	 *            阶段开始时的<b>allocationMark</b>, 为-1时不记录
+	 * @return 当前线程已分配的字节数, 可作为下一个阶段的起点; 不记录时返回-1
+	 */
+	private long recordAllocation(Phase phase, long mark) {
+		if (mark < 0) {
+			return -1;
+		}
+		long now = AllocationTracker.currentThreadAllocatedBytes();
+		if (now >= mark) {
+			metrics.recordAllocation(phase, now - mark);
+		}
+		return now;
+	}
+
+	/**
+	 * 结束请求的JFR事件(事件关闭时不做任何操作)
+	 * 
+	 * @param servlet
+	 *            Servlet包装对象
+	 * @param responseBytes
+	 *            应答内容的字节数(压缩前)
+	 * @param encoding
+	 *            压缩编码, 没有压缩时为<b>null</b>
+	 */
+	private void commitRequestEvent(Servlet servlet, int responseBytes, String encoding) {
+		if (servlet.event != null) {
+			ServletEvents.REQUEST.commit(servlet.event, metrics.name(), servlet.request.getMethod(),
+					servlet.request.getContentLengthLong(), (long) responseBytes, encoding,
+					servlet.failure == null ? null : servlet.failure.getClass().getName());
+			servlet.event = null;
+		}
+	}
+
+	/**
+	 * 捕获并处理异常, 返回相应信息
+	 * 
+	 * @param servlet
+	 *            Servlet包装对象
+	 * @param e
+	 *            异常
+	 */
+	private void processException(Servlet servlet, Exception e) {
+		metrics.error(e);
+		servlet.catching = true;
+		servlet.failure = e;
+		try {
+			handleException(servlet, e);
+		} catch (Exception e2) {
+			// 如果仍然抛出错误, 改用默认方式处理异常
+			defaultHandleException(servlet, e2);
+		}
+	}
+
 	/**
 	 * 处理异常, 并返回错误信息<br>
-	 * 默认的处理方法是打印至控制台和返回页面
+	 * 默认的处理方法是记录至异常日志(ErrorLog)和返回页面
 	 * 
 	 * @param servlet
 	 * @param e
@@ -188,10 +715,20 @@ public abstract class BaseServlet<P extends ParaBean, J extends JSONBean> extend
 	 * @param e
 	 */
 	private final void defaultHandleException(Servlet servlet, Exception e) {
-		e.printStackTrace();
+		logException(e);
 		servlet.out.print(e.getMessage());
 	}
 
+	/**
+	 * 将异常记录至异常日志, 不会阻塞(超过频率限制的异常只计数)
+	 * 
+	 * @param e
+	 *            异常
+	 */
+	protected void logException(Exception e) {
+		ErrorLog.log(metrics.name(), e);
+	}
+
 	/**
 	 * 生成一个请求参数Bean
 	 * 
@@ -319,6 +856,7 @@ public abstract class BaseServlet<P extends ParaBean, J extends JSONBean> extend
 				@SuppressWarnings("unchecked")
 				List<Object> fieldValue = (List<Object>) field.get(bean);
 				JSONArray array = new JSONArray(fieldName);
+				array.setParallel(getRenderPool());
 				for (Object item : fieldValue) {
 					Class<?> itemType = item.getClass();
 					array.add(createJSONVariable(null, item, itemType));
@@ -351,13 +889,15 @@ public abstract class BaseServlet<P extends ParaBean, J extends JSONBean> extend
 	 * @param type
 	 *            值类型
 	 * @return 生成的JSONVariable对象
-	 * @throws BeanFieldException
-	 *             由于Bean的类型不正确导致的异常
+	 * @throws Exception
+	 *             由于Bean的类型不正确导致的异常(BeanFieldException)
 	 */
 	@SuppressWarnings("rawtypes")
-	private JSONVariable createJSONVariable(String key, Object value, Class<?> type) throws BeanFieldException {
+	private JSONVariable createJSONVariable(String key, Object value, Class<?> type) throws Exception {
 		if (type.equals(Integer.class)) {
 			return new JSONInteger(key, (Integer) value);
+		} else if (type.equals(Long.class)) {
+			return new JSONLong(key, (Long) value);
 		} else if (type.equals(Float.class)) {
 			return new JSONFloat(key, (Float) value);
 		} else if (type.equals(Boolean.class)) {
@@ -366,6 +906,14 @@ public abstract class BaseServlet<P extends ParaBean, J extends JSONBean> extend
 			return new JSONString(key, (String) value);
 		} else if (type.equals(byte[].class)) {
 			return new JSONData(key, (byte[]) value);
+		} else if (JSONBean.class.isAssignableFrom(type)) {
+			// 嵌套的JSON格式Bean, 生成JSON对象
+			if (value == null) {
+				return new JSONNull(key);
+			}
+			JSONObject object = new JSONObject(key);
+			assignJSONObject((JSONBean) value, object);
+			return object;
 		} else {
 			throw new BeanFieldException("Invalid JSONBean field: " + key + ", type: " + type.getName());
 		}
@@ -398,39 +946,145 @@ public abstract class BaseServlet<P extends ParaBean, J extends JSONBean> extend
 	public class Servlet {
 
 		/**
-		 * 请求对象
+		 * 请求对象, 异步模式下请求结束后为<b>null</b>
 		 */
-		public final HttpServletRequest request;
+		public volatile HttpServletRequest request;
 
 		/**
-		 * 应答对象
+		 * 应答对象, 异步模式下请求结束后为<b>null</b>
+		 * <p>
+		 * 应答内容由BaseServlet通过<b>getOutputStream()</b>写出, 不能调用<b>getWriter()</b>(会抛出IllegalStateException)
 		 */
-		public final HttpServletResponse response;
+		public volatile HttpServletResponse response;
 
 		/**
 		 * 输出流对象
+		 * <p>
+		 * 写入的内容先保存在缓冲区中, 请求处理结束后统一输出(可能被压缩)<br>
+		 * 异步模式下请求超时(或出错)结束后, 写入的内容被丢弃
 		 */
 		public final PrintWriter out;
 
+		/**
+		 * 输出缓冲区
+		 */
+		private final ResponseBuffer buffer;
+
 		/**
 		 * 是否正在处理异常标识位
 		 */
-		private boolean catching;
+		private volatile boolean catching;
 
 		/**
 		 * 是否打印输出JSON标识位
 		 */
-		private boolean print;
+		private volatile boolean print;
+
+		/**
+		 * 输出JSON对象
+		 */
+		private final JSONObject jsonObj;
+
+		/**
+		 * 是否已经开始输出应答标识位(异步模式下, 正常输出与超时处理只能有一个)
+		 */
+		private final AtomicBoolean responded;
+
+		/**
+		 * 请求的JFR事件, 事件关闭时为<b>null</b>
+		 */
+		private Object event;
+
+		/**
+		 * 处理过程中出现的异常(记录在JFR事件中)
+		 */
+		private volatile Exception failure;
+
+		/**
+		 * 此请求是否被抽样统计内存分配量
+		 */
+		private boolean sampled;
+
+		/**
+		 * 此请求取得的内存预算(字节), 归还后为0
+		 */
+		private long reserved;
+
+		/**
+		 * 取得的内存预算是否是未知长度的估计值, 解析参数后调整
+		 */
+		private boolean estimated;
+
+		/**
+		 * 异步模式下请求是否已超时(或出错)结束
+		 */
+		private volatile boolean cancelled;
 
 		/**
 		 * 构造方法
 		 */
-		public Servlet(HttpServletRequest request, HttpServletResponse response, PrintWriter out) {
+		private Servlet(HttpServletRequest request, HttpServletResponse response, ResponseBuffer buffer) {
 			this.request = request;
 			this.response = response;
-			this.out = out;
+			this.buffer = buffer;
+			this.out = new PrintWriter(buffer);
 			this.catching = false;
 			this.print = true;
+			this.jsonObj = new JSONObject(null);
+			this.responded = new AtomicBoolean(false);
+		}
+
+		/**
+		 * 取得输出应答的权利, 只有第一次调用返回<b>true</b>
+		 * 
+		 * @return 是否取得
+		 */
+		private boolean claimResponse() {
+			return responded.compareAndSet(false, true);
+		}
+
+		/**
+		 * 异步模式下请求是否已超时(或出错)结束, 为<b>true</b>时<b>main</b>不能再使用请求和应答对象, 应尽快结束
+		 * 
+		 * @return 是否已结束
+		 */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * 请求超时(或出错)结束, 在取得输出应答的权利后调用
+		 * <p>
+		 * 标记为结束, 丢弃此对象缓冲区之后的写入(主方法可能仍在执行, 不中断它), 返回一个使用新缓冲区的包装对象,
+		 * 由调用的线程输出错误信息: 每个缓冲区只有一个线程写入
+		 * 
+		 * @return 输出错误信息用的包装对象(JFR事件转移到此对象)
+		 */
+		private Servlet cancel() {
+			cancelled = true;
+			buffer.discard();
+			Servlet servlet = new Servlet(request, response, new ResponseBuffer(BROWSER_DEBUG));
+			servlet.responded.set(true);
+			servlet.event = event;
+			event = null;
+			return servlet;
+		}
+
+		/**
+		 * 异步请求结束后释放请求和应答对象的引用
+		 */
+		private void releaseRequest() {
+			request = null;
+			response = null;
+		}
+
+		/**
+		 * 打印返回输出JSON对象(跳过打印时不输出)
+		 */
+		private void printJSON() {
+			if (print) {
+				buffer.printJSON(jsonObj);
+			}
 		}
 
 		/**
@@ -447,11 +1101,22 @@ public abstract class BaseServlet<P extends ParaBean, J extends JSONBean> extend
 				JSONObject jsonObj = new JSONObject(null);
 				assignJSONObject(json, jsonObj);
 				// 打印返回输出JSON对象
-				if (BROWSER_DEBUG) {
-					out.print(jsonObj.toFormatString());
-				} else {
-					out.print(jsonObj.toString());
-				}
+				buffer.printJSON(jsonObj);
+			}
+		}
+
+		/**
+		 * (!只可在异常处理中调用)<br>
+		 * 使用预先生成的输出器打印错误信息JSON, 效果与<b>forcePrintJSON</b>相同, 但不需要反射
+		 * 
+		 * @param writer
+		 *            错误信息JSON输出器
+		 * @param values
+		 *            各值, 个数和顺序与输出器的键名相同
+		 */
+		public void forcePrintError(ErrorJSONWriter writer, Object... values) {
+			if (this.catching) {
+				writer.write(out, BROWSER_DEBUG, values);
 			}
 		}
 
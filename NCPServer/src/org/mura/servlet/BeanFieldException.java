@@ -2,6 +2,8 @@ package org.mura.servlet;
 
 /**
  * 请求参数Bean或JSON格式Bean成员变量错误而引发的异常
+ * <p>
+ * 参数错误的请求很常见, 错误信息已经足够定位问题, 因此不记录调用栈(创建异常的主要开销)
  * 
  * @author mura
  */
@@ -10,6 +12,6 @@ public class BeanFieldException extends Exception {
 	private static final long serialVersionUID = 1L;
 
 	public BeanFieldException(String msg) {
-		super(msg);
+		super(msg, null, false, false);
 	}
 }
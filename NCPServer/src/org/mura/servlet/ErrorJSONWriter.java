@@ -0,0 +1,24 @@
+package org.mura.servlet;
+
+/**
+ * 预先生成的错误信息JSON输出器
+ * <p>
+ * 错误信息的键名是固定的, 输出时只需拼接值(参见FlatJSONWriter)<br>
+ * 不需要像<b>forcePrintJSON</b>那样通过反射读取JSON格式Bean再生成JSON对象, 适合参数错误等频繁出现的错误
+ * <p>
+ * 值可以是<b>Boolean</b>, <b>Number</b>, <b>String</b>或<b>null</b>, 字符串会进行转义
+ *
+ * @author mura
+ */
+public final class ErrorJSONWriter extends FlatJSONWriter {
+
+	/**
+	 * 构造方法
+	 *
+	 * @param keys
+	 *            各值的键名, 按输出的顺序
+	 */
+	public ErrorJSONWriter(String... keys) {
+		super(keys);
+	}
+}
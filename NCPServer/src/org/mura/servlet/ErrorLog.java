@@ -0,0 +1,94 @@
+package org.mura.servlet;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 请求处理异常的日志
+ * <p>
+ * 异常通过结构化日志(Logger)以ERROR级别输出, 请求线程不会因为输出而阻塞<br>
+ * 每秒最多记录<b>MAX_PER_SECOND</b>个异常, 超过的异常只计数, 在下一条日志中报告被省略的个数(<b>suppressed</b>)<br>
+ * 这样大量的错误请求不会使日志输出成为瓶颈
+ * <p>
+ * 没有调用栈的异常(如BeanFieldException)只输出一行
+ *
+ * @author mura
+ */
+public final class ErrorLog {
+
+	/**
+	 * 每秒最多记录的异常个数
+	 */
+	private static final int MAX_PER_SECOND = 20;
+
+	/**
+	 * 当前计数的秒
+	 */
+	private static final AtomicLong WINDOW = new AtomicLong();
+
+	/**
+	 * 当前秒已记录的个数
+	 */
+	private static final AtomicInteger WINDOW_COUNT = new AtomicInteger();
+
+	/**
+	 * 尚未报告的省略个数
+	 */
+	private static final AtomicLong PENDING_SUPPRESSED = new AtomicLong();
+
+	/**
+	 * 省略的总个数
+	 */
+	private static final LongAdder SUPPRESSED = new LongAdder();
+
+	static {
+		Metrics.register(new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				sb.append("# HELP mura_error_log_suppressed_total Exceptions not logged because of rate limiting.\n");
+				sb.append("# TYPE mura_error_log_suppressed_total counter\n");
+				sb.append("mura_error_log_suppressed_total ").append(SUPPRESSED.sum()).append('\n');
+			}
+		});
+	}
+
+	private ErrorLog() {
+	}
+
+	/**
+	 * 记录一个异常, 不会阻塞
+	 *
+	 * @param source
+	 *            来源(如Servlet名称), 作为日志名称
+	 * @param e
+	 *            异常
+	 */
+	public static void log(String source, Throwable e) {
+		if (!acquire()) {
+			SUPPRESSED.increment();
+			PENDING_SUPPRESSED.incrementAndGet();
+			return;
+		}
+		long pending = PENDING_SUPPRESSED.getAndSet(0);
+		if (pending > 0) {
+			Logger.get(source).error("request failed", e, "suppressed", pending);
+		} else {
+			Logger.get(source).error("request failed", e);
+		}
+	}
+
+	/**
+	 * 获取当前秒的记录许可
+	 *
+	 * @return 是否未超过限制
+	 */
+	private static boolean acquire() {
+		long second = System.nanoTime() / 1000000000L;
+		long window = WINDOW.get();
+		if (window != second && WINDOW.compareAndSet(window, second)) {
+			WINDOW_COUNT.set(0);
+		}
+		return WINDOW_COUNT.incrementAndGet() <= MAX_PER_SECOND;
+	}
+}
@@ -0,0 +1,110 @@
+package org.mura.servlet;
+
+import java.io.PrintWriter;
+
+/**
+ * 预先生成键名的扁平JSON对象输出器
+ * <p>
+ * 对象的键名是固定的, 创建时即生成键名部分的文本(压缩和格式化两种形式), 输出时只需拼接值<br>
+ * 不需要通过反射读取JSON格式Bean再生成JSON对象, 适合逐条输出到流式响应中的数据行和处理结果
+ * <p>
+ * 值可以是<b>Boolean</b>, <b>Number</b>, <b>String</b>或<b>null</b>, 字符串会进行转义; 不支持嵌套的对象和数组
+ *
+ * @author mura
+ */
+public class FlatJSONWriter {
+
+	/**
+	 * 十六进制字符, 用于转义控制字符
+	 */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * 压缩形式各值之前的文本
+	 */
+	private final String[] compact;
+
+	/**
+	 * 格式化形式各值之前的文本
+	 */
+	private final String[] formatted;
+
+	/**
+	 * 构造方法
+	 *
+	 * @param keys
+	 *            各值的键名, 按输出的顺序
+	 */
+	public FlatJSONWriter(String... keys) {
+		compact = new String[keys.length];
+		formatted = new String[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			String start = i == 0 ? "{" : ",";
+			compact[i] = start + "\"" + keys[i] + "\":";
+			formatted[i] = start + "\n    \"" + keys[i] + "\": ";
+		}
+	}
+
+	/**
+	 * 输出一个JSON对象
+	 *
+	 * @param out
+	 *            输出至此
+	 * @param format
+	 *            是否格式化
+	 * @param values
+	 *            各值, 个数和顺序与键名相同
+	 */
+	public void write(PrintWriter out, boolean format, Object... values) {
+		String[] prefixes = format ? formatted : compact;
+		for (int i = 0; i < prefixes.length; i++) {
+			out.write(prefixes[i]);
+			Object value = values[i];
+			if (value instanceof String) {
+				writeString(out, (String) value);
+			} else {
+				out.write(String.valueOf(value));
+			}
+		}
+		out.write(format ? "\n}" : "}");
+	}
+
+	/**
+	 * 输出转义后的字符串, 不需要转义的部分整段输出
+	 */
+	private static void writeString(PrintWriter out, String str) {
+		out.write('\"');
+		int start = 0;
+		for (int i = 0; i < str.length(); i++) {
+			char ch = str.charAt(i);
+			if (ch == '\"' || ch == '\\' || ch < 0x20) {
+				out.write(str, start, i - start);
+				out.write('\\');
+				switch (ch) {
+				case '\"':
+				case '\\':
+					out.write(ch);
+					break;
+				case '\n':
+					out.write('n');
+					break;
+				case '\r':
+					out.write('r');
+					break;
+				case '\t':
+					out.write('t');
+					break;
+				default:
+					out.write('u');
+					out.write("00");
+					out.write(HEX[ch >> 4]);
+					out.write(HEX[ch & 0xf]);
+					break;
+				}
+				start = i + 1;
+			}
+		}
+		out.write(str, start, str.length() - start);
+		out.write('\"');
+	}
+}
@@ -13,11 +13,12 @@ package org.mura.servlet;
  * 必要键值对将一定被返回, 如果没有赋值时将会返回<b>null</b>, 可选键值对只在有值时返回
  * <p>
  * 类型关系表: (JSON -> Java)<br>
- * Integer -> <b>Integer</b><br>
+ * Integer -> <b>Integer</b>, <b>Long</b>(超出int范围的整数, 如数据库的主键)<br>
  * Float -> <b>Float</b><br>
  * Bool -> <b>Boolean</b><br>
  * String -> <b>String</b><br>
  * Data -> <b>byte[]</b><br>
+ * Object -> <b>JSONBean的子类</b>(嵌套的JSON格式Bean, 同样按成员变量生成)<br>
  * &lt;Any&gt;Array -> <b>List&lt;(上述类型)&gt;</b><br>
  * 定义其它类型的成员变量可能导致问题!
  * <p>
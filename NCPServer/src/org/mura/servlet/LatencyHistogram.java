@@ -0,0 +1,132 @@
+package org.mura.servlet;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟直方图
+ * <p>
+ * 与HdrHistogram相同的对数-线性分桶: 每个2的幂区间再等分为8个子桶, 相对误差不超过12.5%<br>
+ * 覆盖全部long范围, 只需要约500个计数器; 记录时只做原子自增, 不加锁
+ *
+ * @author mura
+ */
+public final class LatencyHistogram {
+
+	/**
+	 * 每个2的幂区间的子桶数(2^SUB_BITS)
+	 */
+	private static final int SUB_BITS = 3;
+
+	/**
+	 * 子桶数
+	 */
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	/**
+	 * 桶的个数
+	 */
+	private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+	/**
+	 * 各个桶的计数
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * 总次数
+	 */
+	private final LongAdder count = new LongAdder();
+
+	/**
+	 * 所有记录值的总和
+	 */
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * 记录一个值
+	 *
+	 * @param value
+	 *            值(如纳秒数), 负数按0记录
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+	}
+
+	/**
+	 * 获取总次数
+	 */
+	public long count() {
+		return count.sum();
+	}
+
+	/**
+	 * 获取所有记录值的总和
+	 */
+	public long sum() {
+		return sum.sum();
+	}
+
+	/**
+	 * 获取多个分位数的值
+	 * <p>
+	 * 先复制一份计数再计算, 与记录并发进行时结果是近似的
+	 *
+	 * @param quantiles
+	 *            分位数(0~1), 需从小到大排列
+	 * @return 对应的值(所在桶的上界), 没有记录时为0
+	 */
+	public long[] quantiles(double[] quantiles) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		long[] values = new long[quantiles.length];
+		if (total == 0) {
+			return values;
+		}
+		int q = 0;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS && q < quantiles.length; i++) {
+			seen += snapshot[i];
+			while (q < quantiles.length && seen >= Math.ceil(quantiles[q] * total) && seen > 0) {
+				values[q++] = upperBound(i);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * 计算值所在的桶
+	 */
+	private static int index(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+	}
+
+	/**
+	 * 计算桶的上界(包含)
+	 */
+	private static long upperBound(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int group = index >> SUB_BITS;
+		if (group + SUB_BITS > 62) {
+			return Long.MAX_VALUE;
+		}
+		long lower = (long) (SUB_COUNT + (index & (SUB_COUNT - 1))) << (group - 1);
+		return lower + (1L << (group - 1)) - 1;
+	}
+}
@@ -0,0 +1,56 @@
+package org.mura.servlet;
+
+/**
+ * 一条日志事件
+ * <p>
+ * 在请求线程中创建, 只保存引用, 格式化在日志输出线程中进行
+ *
+ * @author mura
+ */
+final class LogEvent {
+
+	/**
+	 * 时间(毫秒)
+	 */
+	final long time;
+
+	/**
+	 * 级别
+	 */
+	final Logger.Level level;
+
+	/**
+	 * 日志名称
+	 */
+	final String logger;
+
+	/**
+	 * 线程名称
+	 */
+	final String thread;
+
+	/**
+	 * 信息
+	 */
+	final String message;
+
+	/**
+	 * 异常, 没有时为<b>null</b>
+	 */
+	final Throwable error;
+
+	/**
+	 * 键值对, 依次为键名和值
+	 */
+	final Object[] keyValues;
+
+	LogEvent(Logger.Level level, String logger, String message, Throwable error, Object[] keyValues) {
+		this.time = System.currentTimeMillis();
+		this.level = level;
+		this.logger = logger;
+		this.thread = Thread.currentThread().getName();
+		this.message = message;
+		this.error = error;
+		this.keyValues = keyValues;
+	}
+}
@@ -0,0 +1,112 @@
+package org.mura.servlet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 日志事件的无锁环形缓冲区
+ * <p>
+ * 多个写入者, 一个读取者(日志输出线程); 写入和读取都不加锁, 也不会阻塞<br>
+ * 每个槽位带有一个序号: 写入者通过CAS取得位置, 写入事件后发布序号; 读取者看到序号后才读取该槽位<br>
+ * 缓冲区已满时写入直接失败, 由调用方丢弃并计数
+ *
+ * @author mura
+ */
+final class LogRing {
+
+	/**
+	 * 下标掩码(容量为2的幂)
+	 */
+	private final int mask;
+
+	/**
+	 * 容量
+	 */
+	private final int capacity;
+
+	/**
+	 * 各槽位的事件
+	 */
+	private final AtomicReferenceArray<LogEvent> slots;
+
+	/**
+	 * 各槽位的序号: 等于写入位置时可写, 等于写入位置+1时可读
+	 */
+	private final AtomicLongArray sequences;
+
+	/**
+	 * 下一个写入位置
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * 下一个读取位置(只在读取线程中使用)
+	 */
+	private long head;
+
+	/**
+	 * 构造方法
+	 *
+	 * @param capacity
+	 *            容量, 必须是2的幂
+	 */
+	LogRing(int capacity) {
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+		}
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.slots = new AtomicReferenceArray<LogEvent>(capacity);
+		this.sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * 写入一个事件(可在任意线程中调用)
+	 *
+	 * @param event
+	 *            事件
+	 * @return 是否写入, 缓冲区已满时返回<b>false</b>
+	 */
+	boolean offer(LogEvent event) {
+		long pos = tail.get();
+		while (true) {
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					slots.lazySet(index, event);
+					sequences.lazySet(index, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				// 此槽位还没有被读取, 缓冲区已满
+				return false;
+			} else {
+				// 其他写入者已经取得此位置
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * 读取一个事件(只能在读取线程中调用)
+	 *
+	 * @return 事件, 缓冲区为空(或下一个事件尚未发布)时返回<b>null</b>
+	 */
+	LogEvent poll() {
+		int index = (int) head & mask;
+		if (sequences.get(index) != head + 1) {
+			return null;
+		}
+		LogEvent event = slots.get(index);
+		slots.lazySet(index, null);
+		sequences.lazySet(index, head + capacity);
+		head++;
+		return event;
+	}
+}
@@ -0,0 +1,213 @@
+package org.mura.servlet;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 日志输出线程
+ * <p>
+ * 从环形缓冲区中读取日志事件, 格式化为logfmt格式的一行, 成批输出到标准错误流<br>
+ * 缓冲区为空时休眠, 休眠时间逐渐增加到<b>MAX_IDLE_MILLIS</b>; 记录日志的线程不需要唤醒此线程(避免系统调用)<br>
+ * Web应用停止时(Logger.shutdown())写完缓冲区中的事件后结束
+ * <p>
+ * 输出格式:
+ *
+ * <pre>
+ * time=2016-05-01T08:00:00.123Z level=info logger=ComplainServlet thread=main msg="request failed" key=value
+ * </pre>
+ *
+ * 带有调用栈的异常, 调用栈在此行之后输出
+ *
+ * @author mura
+ */
+final class LogWriter implements Runnable {
+
+	/**
+	 * 每批最多输出的事件个数
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	/**
+	 * 缓冲区为空时的最长休眠时间(毫秒)
+	 */
+	private static final long MAX_IDLE_MILLIS = 50;
+
+	/**
+	 * 停止时等待输出线程写完缓冲区的最长时间(毫秒)
+	 */
+	private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * 最多输出的异常原因(cause)层数
+	 */
+	private static final int MAX_CAUSES = 16;
+
+	/**
+	 * 读取的环形缓冲区
+	 */
+	private final LogRing ring;
+
+	/**
+	 * 一批日志的文本
+	 */
+	private final StringBuilder batch = new StringBuilder(BATCH_SIZE * 128);
+
+	/**
+	 * 输出线程
+	 */
+	private final Thread thread;
+
+	/**
+	 * 是否已停止: 写完缓冲区中的事件后结束
+	 */
+	private volatile boolean stopping;
+
+	private LogWriter(LogRing ring) {
+		this.ring = ring;
+		this.thread = new Thread(this, "mura-log-writer");
+	}
+
+	/**
+	 * 启动输出线程(守护线程)
+	 *
+	 * @param ring
+	 *            读取的环形缓冲区
+	 * @return 输出线程
+	 */
+	static LogWriter start(LogRing ring) {
+		LogWriter writer = new LogWriter(ring);
+		writer.thread.setDaemon(true);
+		writer.thread.start();
+		return writer;
+	}
+
+	/**
+	 * 停止输出线程: 写完缓冲区中的事件后结束, 最多等待<b>STOP_TIMEOUT_MILLIS</b>毫秒
+	 */
+	void stop() {
+		stopping = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(STOP_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		long idle = 1;
+		while (!Thread.currentThread().isInterrupted()) {
+			// 停止后再读一遍缓冲区, 为空时结束
+			boolean last = stopping;
+			int count = 0;
+			LogEvent event;
+			while (count < BATCH_SIZE && (event = ring.poll()) != null) {
+				int mark = batch.length();
+				try {
+					format(event, batch);
+					Logger.written(event.level);
+				} catch (RuntimeException e) {
+					// 值的toString()出错等情况, 跳过此事件
+					batch.setLength(mark);
+				}
+				count++;
+			}
+			if (batch.length() > 0) {
+				System.err.append(batch);
+				System.err.flush();
+				batch.setLength(0);
+			}
+			if (count == 0) {
+				if (last) {
+					return;
+				}
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(idle));
+				idle = Math.min(idle * 2, MAX_IDLE_MILLIS);
+			} else {
+				idle = 1;
+			}
+		}
+	}
+
+	/**
+	 * 将一个事件格式化为一行(及异常的调用栈)
+	 */
+	private static void format(LogEvent event, StringBuilder sb) {
+		sb.append("time=").append(Instant.ofEpochMilli(event.time));
+		sb.append(" level=").append(event.level.label());
+		sb.append(" logger=");
+		appendValue(sb, event.logger);
+		sb.append(" thread=");
+		appendValue(sb, event.thread);
+		sb.append(" msg=");
+		appendValue(sb, event.message);
+		Object[] keyValues = event.keyValues;
+		for (int i = 0; i + 1 < keyValues.length; i += 2) {
+			sb.append(' ').append(keyValues[i]).append('=');
+			appendValue(sb, keyValues[i + 1]);
+		}
+		Throwable error = event.error;
+		if (error != null) {
+			sb.append(" error=");
+			appendValue(sb, error.getClass().getName());
+			sb.append(" error_msg=");
+			appendValue(sb, error.getMessage());
+		}
+		sb.append('\n');
+		if (error != null && error.getStackTrace().length > 0) {
+			for (StackTraceElement element : error.getStackTrace()) {
+				sb.append("\tat ").append(element).append('\n');
+			}
+			int depth = 0;
+			for (Throwable cause = error.getCause(); cause != null && depth++ < MAX_CAUSES; cause = cause.getCause()) {
+				sb.append("Caused by: ").append(cause).append('\n');
+				for (StackTraceElement element : cause.getStackTrace()) {
+					sb.append("\tat ").append(element).append('\n');
+				}
+			}
+		}
+	}
+
+	/**
+	 * 输出一个值, 包含空格, 引号, 等号或控制字符时加引号并转义
+	 */
+	private static void appendValue(StringBuilder sb, Object value) {
+		String str = String.valueOf(value);
+		boolean quote = str.isEmpty();
+		for (int i = 0; i < str.length() && !quote; i++) {
+			char ch = str.charAt(i);
+			quote = ch <= ' ' || ch == '\"' || ch == '=' || ch == '\\';
+		}
+		if (!quote) {
+			sb.append(str);
+			return;
+		}
+		sb.append('\"');
+		for (int i = 0; i < str.length(); i++) {
+			char ch = str.charAt(i);
+			switch (ch) {
+			case '\"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				sb.append(ch);
+				break;
+			}
+		}
+		sb.append('\"');
+	}
+}
@@ -0,0 +1,250 @@
+package org.mura.servlet;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 结构化日志
+ * <p>
+ * 每条日志包含信息和一组键值对, 以logfmt格式(<b>key=value</b>)输出, 便于检索和分析<br>
+ * 日志事件写入一个无锁的环形缓冲区(LogRing), 由后台线程(LogWriter)格式化并输出到标准错误流<br>
+ * 记录日志的线程从不阻塞: 缓冲区已满时丢弃该事件, 并按级别计数
+ * <p>
+ * 使用方式:
+ *
+ * <pre>
+ * private static final Logger LOG = Logger.get("ComplainServlet");
+ * LOG.info("request handled", "servlet", name, "bytes", length);
+ * </pre>
+ *
+ * @author mura
+ */
+public final class Logger {
+
+	/**
+	 * Level: 日志级别
+	 *
+	 * @author mura
+	 */
+	public static enum Level {
+		DEBUG, INFO, WARN, ERROR;
+
+		/**
+		 * 输出和统计时使用的名称
+		 */
+		private final String label = name().toLowerCase(Locale.ROOT);
+
+		public String label() {
+			return label;
+		}
+	}
+
+	/**
+	 * 环形缓冲区的容量
+	 */
+	private static final int CAPACITY = 8192;
+
+	/**
+	 * 默认的最低输出级别
+	 */
+	private static final Level DEFAULT_LEVEL = Level.INFO;
+
+	/**
+	 * 各名称的日志对象
+	 */
+	private static final Map<String, Logger> LOGGERS = new ConcurrentHashMap<String, Logger>();
+
+	/**
+	 * 等待输出的日志事件
+	 */
+	private static final LogRing RING = new LogRing(CAPACITY);
+
+	/**
+	 * 输出线程
+	 */
+	private static final LogWriter WRITER = LogWriter.start(RING);
+
+	/**
+	 * 是否已关闭, 关闭后的日志直接忽略
+	 */
+	private static volatile boolean closed;
+
+	/**
+	 * 各级别已输出的个数
+	 */
+	private static final LongAdder[] WRITTEN = counters();
+
+	/**
+	 * 各级别因缓冲区已满而丢弃的个数
+	 */
+	private static final LongAdder[] DROPPED = counters();
+
+	/**
+	 * 最低输出级别
+	 */
+	private static volatile Level threshold = DEFAULT_LEVEL;
+
+	static {
+		Metrics.register(new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				sb.append("# HELP mura_log_events_total Log events by level and result (written or dropped).\n");
+				sb.append("# TYPE mura_log_events_total counter\n");
+				for (Level level : Level.values()) {
+					sb.append("mura_log_events_total{level=\"").append(level.label()).append("\",result=\"written\"} ")
+							.append(WRITTEN[level.ordinal()].sum()).append('\n');
+					sb.append("mura_log_events_total{level=\"").append(level.label()).append("\",result=\"dropped\"} ")
+							.append(DROPPED[level.ordinal()].sum()).append('\n');
+				}
+			}
+		});
+	}
+
+	/**
+	 * 日志名称
+	 */
+	private final String name;
+
+	private Logger(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * 获取(不存在时创建)一个日志对象
+	 *
+	 * @param name
+	 *            日志名称
+	 * @return 日志对象
+	 */
+	public static Logger get(String name) {
+		Logger logger = LOGGERS.get(name);
+		if (logger == null) {
+			Logger created = new Logger(name);
+			logger = LOGGERS.putIfAbsent(name, created);
+			if (logger == null) {
+				logger = created;
+			}
+		}
+		return logger;
+	}
+
+	/**
+	 * 设置最低输出级别, 低于此级别的日志直接忽略
+	 *
+	 * @param level
+	 *            级别
+	 */
+	public static void setLevel(Level level) {
+		threshold = level;
+	}
+
+	/**
+	 * 关闭日志: 不再接受新的日志, 输出线程写完缓冲区中的事件后结束, 等待其结束<br>
+	 * Web应用停止时最后调用, 之后的日志被忽略
+	 */
+	public static void shutdown() {
+		closed = true;
+		WRITER.stop();
+	}
+
+	/**
+	 * 此级别的日志是否会被记录, 键值对的计算代价较大时可以先检查
+	 *
+	 * @param level
+	 *            级别
+	 */
+	public boolean isEnabled(Level level) {
+		return level.compareTo(threshold) >= 0;
+	}
+
+	/**
+	 * 记录一条DEBUG日志
+	 *
+	 * @param message
+	 *            信息
+	 * @param keyValues
+	 *            键值对, 依次为键名和值
+	 */
+	public void debug(String message, Object... keyValues) {
+		log(Level.DEBUG, message, null, keyValues);
+	}
+
+	/**
+	 * 记录一条INFO日志
+	 *
+	 * @param message
+	 *            信息
+	 * @param keyValues
+	 *            键值对, 依次为键名和值
+	 */
+	public void info(String message, Object... keyValues) {
+		log(Level.INFO, message, null, keyValues);
+	}
+
+	/**
+	 * 记录一条WARN日志
+	 *
+	 * @param message
+	 *            信息
+	 * @param keyValues
+	 *            键值对, 依次为键名和值
+	 */
+	public void warn(String message, Object... keyValues) {
+		log(Level.WARN, message, null, keyValues);
+	}
+
+	/**
+	 * 记录一条ERROR日志
+	 *
+	 * @param message
+	 *            信息
+	 * @param error
+	 *            异常, 可以为<b>null</b>
+	 * @param keyValues
+	 *            键值对, 依次为键名和值
+	 */
+	public void error(String message, Throwable error, Object... keyValues) {
+		log(Level.ERROR, message, error, keyValues);
+	}
+
+	/**
+	 * 记录一条日志, 不会阻塞
+	 *
+	 * @param level
+	 *            级别
+	 * @param message
+	 *            信息
+	 * @param error
+	 *            异常, 可以为<b>null</b>
+	 * @param keyValues
+	 *            键值对, 依次为键名和值
+	 */
+	public void log(Level level, String message, Throwable error, Object... keyValues) {
+		if (!isEnabled(level) || closed) {
+			return;
+		}
+		if (!RING.offer(new LogEvent(level, name, message, error, keyValues))) {
+			DROPPED[level.ordinal()].increment();
+		}
+	}
+
+	/**
+	 * 记录一条日志已经输出(由LogWriter调用)
+	 */
+	static void written(Level level) {
+		WRITTEN[level.ordinal()].increment();
+	}
+
+	/**
+	 * 创建各级别的计数器
+	 */
+	private static LongAdder[] counters() {
+		LongAdder[] counters = new LongAdder[Level.values().length];
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new LongAdder();
+		}
+		return counters;
+	}
+}
@@ -0,0 +1,159 @@
+package org.mura.servlet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 全局的请求内存预算(字节)
+ * <p>
+ * 大的请求体(如Base64编码的图片)在赋值参数Bean时会完整地解码到内存中, 同时处理多个时可能耗尽堆内存<br>
+ * BaseServlet在赋值前按Content-Length估计请求占用的内存(未知长度的表单先按估计值取得, 解析参数后归还多余的部分),
+ * 从预算中取得后才继续处理, 处理结束后归还<br>
+ * 预算不足时等待其他请求归还, 超过等待时间或超过整个预算的请求直接拒绝(MemoryBudgetException)
+ * <p>
+ * 已有请求在等待时, 新的请求也排队等待, 避免大的请求一直被小的请求抢先<br>
+ * 预算默认为最大堆内存的1/4, 可以用系统属性<b>mura.memory.budget</b>(字节)设置
+ *
+ * @author mura
+ */
+final class MemoryBudget {
+
+	/**
+	 * 默认预算占最大堆内存的比例
+	 */
+	private static final double DEFAULT_FRACTION = 0.25;
+
+	/**
+	 * 预算(字节)
+	 */
+	static final long LIMIT = Long.getLong("mura.memory.budget",
+			(long) (Runtime.getRuntime().maxMemory() * DEFAULT_FRACTION));
+
+	private static final ReentrantLock LOCK = new ReentrantLock();
+
+	/**
+	 * 有请求归还预算时通知等待的请求
+	 */
+	private static final Condition RELEASED = LOCK.newCondition();
+
+	/**
+	 * 正在处理的请求占用的字节数(修改时持有锁, 统计时直接读取)
+	 */
+	private static volatile long inFlight;
+
+	/**
+	 * 正在等待的请求数(修改时持有锁)
+	 */
+	private static volatile int waiting;
+
+	private static final LongAdder ADMITTED = new LongAdder();
+	private static final LongAdder WAITED = new LongAdder();
+	private static final LongAdder TIMEOUT = new LongAdder();
+	private static final LongAdder OVERSIZE = new LongAdder();
+
+	static {
+		Metrics.register(new Metrics.Source() {
+			@Override
+			public void writeMetrics(StringBuilder sb) {
+				writeBudgetMetrics(sb);
+			}
+		});
+	}
+
+	private MemoryBudget() {
+	}
+
+	/**
+	 * 从预算中取得字节数, 不足时等待
+	 *
+	 * @param bytes
+	 *            字节数
+	 * @param timeout
+	 *            最长等待时间(毫秒)
+	 * @throws MemoryBudgetException
+	 *             超过整个预算(413), 等待超时或被中断(503)
+	 */
+	static void acquire(long bytes, long timeout) throws MemoryBudgetException {
+		if (bytes > LIMIT) {
+			OVERSIZE.increment();
+			throw new MemoryBudgetException("Request too large: " + bytes + " bytes, budget: " + LIMIT + " bytes",
+					HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+		}
+		LOCK.lock();
+		try {
+			if (waiting == 0 && inFlight + bytes <= LIMIT) {
+				inFlight += bytes;
+				ADMITTED.increment();
+				return;
+			}
+			waiting++;
+			try {
+				long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+				while (inFlight + bytes > LIMIT) {
+					if (nanos <= 0) {
+						TIMEOUT.increment();
+						throw new MemoryBudgetException("Server busy: waited " + timeout + " ms for " + bytes
+								+ " bytes of memory budget", HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+					}
+					nanos = RELEASED.awaitNanos(nanos);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				TIMEOUT.increment();
+				throw new MemoryBudgetException("Interrupted while waiting for memory budget",
+						HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			} finally {
+				waiting--;
+			}
+			inFlight += bytes;
+			ADMITTED.increment();
+			WAITED.increment();
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	/**
+	 * 归还取得的字节数, 通知等待的请求
+	 *
+	 * @param bytes
+	 *            字节数, 与<b>acquire</b>相同
+	 */
+	static void release(long bytes) {
+		LOCK.lock();
+		try {
+			inFlight -= bytes;
+			if (waiting > 0) {
+				RELEASED.signalAll();
+			}
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	/**
+	 * 以Prometheus文本格式输出统计数据
+	 */
+	private static void writeBudgetMetrics(StringBuilder sb) {
+		sb.append("# HELP mura_memory_budget_bytes Memory budget for request bodies.\n");
+		sb.append("# TYPE mura_memory_budget_bytes gauge\n");
+		sb.append("mura_memory_budget_bytes ").append(LIMIT).append('\n');
+		sb.append("# HELP mura_memory_in_flight_bytes Memory budget held by requests being processed.\n");
+		sb.append("# TYPE mura_memory_in_flight_bytes gauge\n");
+		sb.append("mura_memory_in_flight_bytes ").append(inFlight).append('\n');
+		sb.append("# HELP mura_memory_waiting Requests waiting for memory budget.\n");
+		sb.append("# TYPE mura_memory_waiting gauge\n");
+		sb.append("mura_memory_waiting ").append(waiting).append('\n');
+		sb.append("# HELP mura_memory_admissions_total Requests checked against the memory budget by result.\n");
+		sb.append("# TYPE mura_memory_admissions_total counter\n");
+		sb.append("mura_memory_admissions_total{result=\"immediate\"} ").append(ADMITTED.sum() - WAITED.sum())
+				.append('\n');
+		sb.append("mura_memory_admissions_total{result=\"waited\"} ").append(WAITED.sum()).append('\n');
+		sb.append("mura_memory_admissions_total{result=\"timeout\"} ").append(TIMEOUT.sum()).append('\n');
+		sb.append("mura_memory_admissions_total{result=\"oversize\"} ").append(OVERSIZE.sum()).append('\n');
+	}
+}
@@ -0,0 +1,23 @@
+package org.mura.servlet;
+
+/**
+ * 请求体过大或内存预算不足, 请求未被处理而引发的异常
+ * <p>
+ * 与BeanFieldException相同, 不记录调用栈; <b>status</b>为应答的HTTP状态码
+ *
+ * @author mura
+ */
+public class MemoryBudgetException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 应答的HTTP状态码: 413(超过整个预算)或503(等待超时)
+	 */
+	public final int status;
+
+	public MemoryBudgetException(String msg, int status) {
+		super(msg, null, false, false);
+		this.status = status;
+	}
+}
@@ -0,0 +1,151 @@
+package org.mura.servlet;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 统计数据注册表
+ * <p>
+ * 保存所有Servlet的请求统计, 并以Prometheus文本格式输出<br>
+ * 其他模块(如数据库连接池)可以通过<b>register</b>注册自己的统计数据源, 一同输出
+ *
+ * @author mura
+ */
+public final class Metrics {
+
+	/**
+	 * 输出的分位数
+	 */
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	/**
+	 * 各Servlet的统计, 键名为Servlet名称
+	 */
+	private static final Map<String, ServletMetrics> SERVLETS = new ConcurrentHashMap<String, ServletMetrics>();
+
+	/**
+	 * 注册的其他统计数据源
+	 */
+	private static final CopyOnWriteArrayList<Source> SOURCES = new CopyOnWriteArrayList<Source>();
+
+	private Metrics() {
+	}
+
+	/**
+	 * Source: 统计数据源
+	 *
+	 * @author mura
+	 */
+	public static interface Source {
+
+		/**
+		 * 以Prometheus文本格式输出统计数据
+		 *
+		 * @param sb
+		 *            写入此StringBuilder
+		 */
+		public void writeMetrics(StringBuilder sb);
+	}
+
+	/**
+	 * 获取(不存在时创建)一个Servlet的统计
+	 *
+	 * @param servletClass
+	 *            Servlet类
+	 * @return 统计对象
+	 */
+	public static ServletMetrics forServlet(Class<?> servletClass) {
+		String name = servletClass.getSimpleName();
+		ServletMetrics metrics = SERVLETS.get(name);
+		if (metrics == null) {
+			ServletMetrics created = new ServletMetrics(name);
+			metrics = SERVLETS.putIfAbsent(name, created);
+			if (metrics == null) {
+				metrics = created;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * 注册一个统计数据源, 同一个对象只注册一次
+	 *
+	 * @param source
+	 *            数据源
+	 */
+	public static void register(Source source) {
+		SOURCES.addIfAbsent(source);
+	}
+
+	/**
+	 * 注销一个统计数据源
+	 *
+	 * @param source
+	 *            数据源
+	 */
+	public static void unregister(Source source) {
+		SOURCES.remove(source);
+	}
+
+	/**
+	 * 以Prometheus文本格式输出全部统计数据
+	 *
+	 * @param sb
+	 *            写入此StringBuilder
+	 */
+	public static void writeMetrics(StringBuilder sb) {
+		sb.append("# HELP mura_request_phase_seconds Request handling latency by servlet and phase.\n");
+		sb.append("# TYPE mura_request_phase_seconds summary\n");
+		for (ServletMetrics metrics : SERVLETS.values()) {
+			for (ServletMetrics.Phase phase : ServletMetrics.Phase.values()) {
+				LatencyHistogram histogram = metrics.latency(phase);
+				String labels = "servlet=\"" + metrics.name() + "\",phase=\"" + phase.label() + "\"";
+				long[] values = histogram.quantiles(QUANTILES);
+				for (int i = 0; i < QUANTILES.length; i++) {
+					sb.append("mura_request_phase_seconds{").append(labels).append(",quantile=\"").append(QUANTILES[i])
+							.append("\"} ").append(seconds(values[i])).append('\n');
+				}
+				sb.append("mura_request_phase_seconds_sum{").append(labels).append("} ")
+						.append(seconds(histogram.sum())).append('\n');
+				sb.append("mura_request_phase_seconds_count{").append(labels).append("} ").append(histogram.count())
+						.append('\n');
+			}
+		}
+		sb.append("# HELP mura_request_allocated_bytes_total Heap bytes allocated by sampled requests, by servlet and phase.\n");
+		sb.append("# TYPE mura_request_allocated_bytes_total counter\n");
+		for (ServletMetrics metrics : SERVLETS.values()) {
+			for (ServletMetrics.Phase phase : ServletMetrics.Phase.values()) {
+				sb.append("mura_request_allocated_bytes_total{servlet=\"").append(metrics.name()).append("\",phase=\"")
+						.append(phase.label()).append("\"} ").append(metrics.allocatedBytes(phase)).append('\n');
+			}
+		}
+		sb.append("# HELP mura_request_allocation_samples_total Requests sampled for allocation, by servlet and phase.\n");
+		sb.append("# TYPE mura_request_allocation_samples_total counter\n");
+		for (ServletMetrics metrics : SERVLETS.values()) {
+			for (ServletMetrics.Phase phase : ServletMetrics.Phase.values()) {
+				sb.append("mura_request_allocation_samples_total{servlet=\"").append(metrics.name())
+						.append("\",phase=\"").append(phase.label()).append("\"} ")
+						.append(metrics.allocationSamples(phase)).append('\n');
+			}
+		}
+		sb.append("# HELP mura_request_errors_total Request errors by servlet and exception kind.\n");
+		sb.append("# TYPE mura_request_errors_total counter\n");
+		for (ServletMetrics metrics : SERVLETS.values()) {
+			sb.append("mura_request_errors_total{servlet=\"").append(metrics.name()).append("\",type=\"bean_field\"} ")
+					.append(metrics.beanFieldErrors()).append('\n');
+			sb.append("mura_request_errors_total{servlet=\"").append(metrics.name()).append("\",type=\"other\"} ")
+					.append(metrics.otherErrors()).append('\n');
+		}
+		for (Source source : SOURCES) {
+			source.writeMetrics(sb);
+		}
+	}
+
+	/**
+	 * 纳秒转换为秒
+	 */
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+}
@@ -0,0 +1,31 @@
+package org.mura.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 统计数据输出Servlet
+ * <p>
+ * 以Prometheus文本格式(version 0.0.4)输出Metrics中的全部统计数据<br>
+ * 不继承BaseServlet, 自身的请求不计入统计; 需要在web.xml中配置访问路径
+ *
+ * @author mura
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		StringBuilder sb = new StringBuilder(8192);
+		Metrics.writeMetrics(sb);
+		response.setCharacterEncoding("UTF-8");
+		response.setContentType("text/plain; version=0.0.4");
+		response.getWriter().print(sb);
+	}
+}
@@ -0,0 +1,271 @@
+package org.mura.servlet;
+
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * 应答输出时使用的可复用缓冲区
+ * <p>
+ * 包含生成JSON字符串, UTF-8编码以及压缩时需要的全部缓冲区, 在同一个线程中反复使用<br>
+ * 平台线程通过ThreadLocal复用; 虚拟线程的生命周期只有一个请求, 改为从一个无锁的共享池中借用<br>
+ * 缓冲区只在写出应答时借出, 写出后立即归还, 不会跨线程使用
+ * <p>
+ * 超过保留上限的缓冲区在归还时丢弃, 避免偶尔出现的大应答长期占用内存
+ *
+ * @author mura
+ */
+final class RenderBuffer {
+
+	/**
+	 * 字符缓冲区的初始大小
+	 */
+	private static final int INITIAL_CHARS = 4096;
+
+	/**
+	 * 归还时保留的最大字符数, 超过时重新分配<br>
+	 * 接近常见应答的大小(一页100条投诉约30K字符), 每个线程保留的缓冲区合计不超过约220KB
+	 */
+	private static final int MAX_RETAINED_CHARS = 32 * 1024;
+
+	/**
+	 * 压缩输出时每次写出的字节数
+	 */
+	private static final int CHUNK_SIZE = 8192;
+
+	/**
+	 * 共享池最多保留的缓冲区个数
+	 */
+	private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+	/**
+	 * 平台线程的缓冲区
+	 */
+	private static final ThreadLocal<RenderBuffer> LOCAL = new ThreadLocal<RenderBuffer>();
+
+	/**
+	 * 虚拟线程使用的共享池
+	 */
+	private static final Queue<RenderBuffer> POOL = new ConcurrentLinkedQueue<RenderBuffer>();
+
+	/**
+	 * 共享池中的缓冲区个数(ConcurrentLinkedQueue.size()需要遍历)
+	 */
+	private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+	/**
+	 * 虚拟线程的基类(JDK 21及以上), 通过类型判断, 不需要每次反射调用Thread.isVirtual(); 不支持时为<b>null</b>
+	 */
+	private static final Class<?> VIRTUAL_THREAD = virtualThreadClass();
+
+	/**
+	 * Thread.isVirtual()方法, 只在找不到虚拟线程的基类时使用; 不支持时为<b>null</b>
+	 */
+	private static final Method IS_VIRTUAL = VIRTUAL_THREAD == null ? isVirtualMethod() : null;
+
+	/**
+	 * 输出的文本
+	 */
+	private StringBuilder text = new StringBuilder(INITIAL_CHARS);
+
+	/**
+	 * 格式化输出时的临时文本
+	 */
+	private StringBuilder scratch = new StringBuilder(INITIAL_CHARS);
+
+	/**
+	 * UTF-8编码后的字节
+	 */
+	private byte[] bytes = new byte[INITIAL_CHARS];
+
+	/**
+	 * 编码后的字节数
+	 */
+	private int length;
+
+	/**
+	 * 压缩输出用的缓冲区
+	 */
+	final byte[] chunk = new byte[CHUNK_SIZE];
+
+	/**
+	 * gzip校验和
+	 */
+	final CRC32 crc = new CRC32();
+
+	/**
+	 * 是否已经借出(ThreadLocal中的缓冲区被重入时另外创建)
+	 */
+	private boolean inUse;
+
+	/**
+	 * 是否来自共享池
+	 */
+	private boolean pooled;
+
+	private RenderBuffer() {
+	}
+
+	/**
+	 * 借出当前线程的缓冲区, 使用后必须调用<b>release()</b>
+	 *
+	 * @return 缓冲区
+	 */
+	static RenderBuffer acquire() {
+		RenderBuffer buffer;
+		if (isVirtualThread()) {
+			buffer = POOL.poll();
+			if (buffer == null) {
+				buffer = new RenderBuffer();
+			} else {
+				POOL_COUNT.decrementAndGet();
+			}
+			buffer.pooled = true;
+		} else {
+			buffer = LOCAL.get();
+			if (buffer == null) {
+				buffer = new RenderBuffer();
+				LOCAL.set(buffer);
+			} else if (buffer.inUse) {
+				// 重入, 使用一个临时的缓冲区
+				return new RenderBuffer();
+			}
+		}
+		buffer.inUse = true;
+		return buffer;
+	}
+
+	/**
+	 * 归还缓冲区, 超过保留上限时重新分配
+	 */
+	void release() {
+		if (text.capacity() > MAX_RETAINED_CHARS) {
+			text = new StringBuilder(INITIAL_CHARS);
+		}
+		if (scratch.capacity() > MAX_RETAINED_CHARS) {
+			scratch = new StringBuilder(INITIAL_CHARS);
+		}
+		if (bytes.length > MAX_RETAINED_CHARS * 3) {
+			bytes = new byte[INITIAL_CHARS];
+		}
+		text.setLength(0);
+		scratch.setLength(0);
+		length = 0;
+		crc.reset();
+		inUse = false;
+		if (pooled) {
+			if (POOL_COUNT.incrementAndGet() <= POOL_SIZE) {
+				POOL.offer(this);
+			} else {
+				POOL_COUNT.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * 输出的文本, 借出时为空
+	 */
+	StringBuilder text() {
+		return text;
+	}
+
+	/**
+	 * 格式化用的临时文本
+	 */
+	StringBuilder scratch() {
+		return scratch;
+	}
+
+	/**
+	 * 将输出的文本编码为UTF-8, 结果通过<b>bytes()</b>和<b>length()</b>获取
+	 */
+	void encode() {
+		int n = text.length();
+		if (bytes.length < n * 3) {
+			bytes = new byte[Math.max(n * 3, bytes.length * 2)];
+		}
+		byte[] dst = bytes;
+		int pos = 0;
+		for (int i = 0; i < n; i++) {
+			char ch = text.charAt(i);
+			if (ch < 0x80) {
+				dst[pos++] = (byte) ch;
+			} else if (ch < 0x800) {
+				dst[pos++] = (byte) (0xc0 | (ch >> 6));
+				dst[pos++] = (byte) (0x80 | (ch & 0x3f));
+			} else if (Character.isHighSurrogate(ch) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+				int cp = Character.toCodePoint(ch, text.charAt(++i));
+				dst[pos++] = (byte) (0xf0 | (cp >> 18));
+				dst[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				dst[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				dst[pos++] = (byte) (0x80 | (cp & 0x3f));
+			} else if (Character.isSurrogate(ch)) {
+				// 不成对的代理字符, 与String.getBytes相同, 替换为'?'
+				dst[pos++] = '?';
+			} else {
+				dst[pos++] = (byte) (0xe0 | (ch >> 12));
+				dst[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+				dst[pos++] = (byte) (0x80 | (ch & 0x3f));
+			}
+		}
+		length = pos;
+	}
+
+	/**
+	 * 编码后的字节数组(长度可能大于有效字节数)
+	 */
+	byte[] bytes() {
+		return bytes;
+	}
+
+	/**
+	 * 编码后的有效字节数
+	 */
+	int length() {
+		return length;
+	}
+
+	/**
+	 * 检查当前线程是否是虚拟线程
+	 */
+	private static boolean isVirtualThread() {
+		if (VIRTUAL_THREAD != null) {
+			return VIRTUAL_THREAD.isInstance(Thread.currentThread());
+		}
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(Thread.currentThread());
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 查找虚拟线程的基类(Thread.isVirtual()即判断是否为此类的实例)
+	 */
+	private static Class<?> virtualThreadClass() {
+		if (isVirtualMethod() == null) {
+			return null;
+		}
+		try {
+			return Class.forName("java.lang.BaseVirtualThread");
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 查找Thread.isVirtual()方法
+	 */
+	private static Method isVirtualMethod() {
+		try {
+			return Thread.class.getMethod("isVirtual");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package org.mura.servlet;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mura.json.JSONObject;
+
+/**
+ * 应答内容缓冲区
+ * <p>
+ * 请求处理过程中的所有输出先写入此缓冲区, 处理结束后一次性写出(需要时进行压缩)<br>
+ * 要输出的JSON对象只记录下来, 写出时才直接生成到可复用的RenderBuffer中, 不生成中间的字符串<br>
+ * 内部使用StringBuilder, 不进行同步(与StringWriter不同), 只应在处理同一个请求的线程中使用<br>
+ * 异步请求超时后, 缓冲区被丢弃(<b>discard()</b>), 仍在执行的主方法之后的写入不再保存
+ *
+ * @author mura
+ */
+class ResponseBuffer extends Writer {
+
+	/**
+	 * 通过Writer写入的内容, 没有写入时为<b>null</b>
+	 */
+	private StringBuilder buff;
+
+	/**
+	 * 等待输出的JSON对象, 在buff的内容之后输出
+	 */
+	private List<JSONObject> pending;
+
+	/**
+	 * 是否以格式化的形式输出JSON对象
+	 */
+	private final boolean format;
+
+	/**
+	 * 是否已被丢弃, 之后的写入被忽略
+	 */
+	private volatile boolean discarded;
+
+	/**
+	 * 构造方法
+	 *
+	 * @param format
+	 *            是否以格式化的形式输出JSON对象
+	 */
+	public ResponseBuffer(boolean format) {
+		this.format = format;
+	}
+
+	/**
+	 * 添加一个等待输出的JSON对象
+	 *
+	 * @param json
+	 *            JSON对象
+	 */
+	public void printJSON(JSONObject json) {
+		if (discarded) {
+			return;
+		}
+		if (pending == null) {
+			pending = new ArrayList<JSONObject>(1);
+		}
+		pending.add(json);
+	}
+
+	/**
+	 * 获取写入用的StringBuilder, 之前等待输出的JSON对象先写入, 保持输出的顺序
+	 */
+	private StringBuilder buff() {
+		if (buff == null) {
+			buff = new StringBuilder();
+		}
+		if (pending != null && !pending.isEmpty()) {
+			render(buff, new StringBuilder());
+		}
+		return buff;
+	}
+
+	@Override
+	public void write(int c) {
+		if (!discarded) {
+			buff().append((char) c);
+		}
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		if (!discarded) {
+			buff().append(cbuf, off, len);
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		if (!discarded) {
+			buff().append(str, off, off + len);
+		}
+	}
+
+	@Override
+	public Writer append(CharSequence csq) {
+		if (!discarded) {
+			buff().append(csq);
+		}
+		return this;
+	}
+
+	/**
+	 * 丢弃缓冲区: 之后的写入被忽略, 缓冲区不再输出(由另一个线程使用新的缓冲区输出应答)
+	 */
+	public void discard() {
+		discarded = true;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * 是否没有任何内容
+	 */
+	public boolean isEmpty() {
+		return (buff == null || buff.length() == 0) && (pending == null || pending.isEmpty());
+	}
+
+	/**
+	 * 将全部内容按顺序写入StringBuilder
+	 *
+	 * @param text
+	 *            写入此StringBuilder
+	 * @param scratch
+	 *            格式化时临时使用的StringBuilder
+	 */
+	public void renderTo(StringBuilder text, StringBuilder scratch) {
+		if (buff != null) {
+			text.append(buff);
+		}
+		render(text, scratch);
+	}
+
+	/**
+	 * 将等待输出的JSON对象写入StringBuilder并清空
+	 */
+	private void render(StringBuilder text, StringBuilder scratch) {
+		if (pending == null) {
+			return;
+		}
+		for (JSONObject json : pending) {
+			if (format) {
+				json.appendFormatTo(text, scratch);
+			} else {
+				json.appendTo(text);
+			}
+		}
+		pending.clear();
+	}
+}
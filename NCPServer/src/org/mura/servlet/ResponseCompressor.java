@@ -0,0 +1,223 @@
+package org.mura.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 应答内容压缩
+ * <p>
+ * 根据请求头<b>Accept-Encoding</b>选择gzip或deflate编码, 压缩后写入输出流<br>
+ * Deflater对象的创建和初始化代价较大(含有本地内存), 使用无锁的对象池复用
+ *
+ * @author mura
+ */
+final class ResponseCompressor {
+
+	/**
+	 * gzip编码名
+	 */
+	static final String GZIP = "gzip";
+
+	/**
+	 * deflate编码名
+	 */
+	static final String DEFLATE = "deflate";
+
+	/**
+	 * 压缩级别, JSON文本压缩率较高, 使用较快的级别即可
+	 */
+	private static final int LEVEL = 4;
+
+	/**
+	 * 每个对象池最多保留的Deflater个数, 超过时直接释放
+	 */
+	private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+	/**
+	 * gzip文件头(无文件名, 无时间戳)
+	 */
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	/**
+	 * gzip用的Deflater对象池(不带zlib头)
+	 */
+	private static final Pool GZIP_POOL = new Pool(true);
+
+	/**
+	 * deflate用的Deflater对象池(带zlib头, 即HTTP中的deflate编码)
+	 */
+	private static final Pool DEFLATE_POOL = new Pool(false);
+
+	private ResponseCompressor() {
+	}
+
+	/**
+	 * 根据Accept-Encoding选择压缩编码
+	 * <p>
+	 * 优先使用gzip, 其次deflate, q=0表示拒绝该编码
+	 *
+	 * @param acceptEncoding
+	 *            请求头Accept-Encoding的值
+	 * @return 编码名, 不能压缩时返回<b>null</b>
+	 */
+	static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		boolean gzip = false;
+		boolean deflate = false;
+		boolean any = false;
+		boolean gzipListed = false;
+		boolean deflateListed = false;
+		for (String item : acceptEncoding.split(",")) {
+			String[] parts = item.split(";");
+			String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+			boolean accepted = quality(parts) > 0;
+			if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+				gzip = accepted;
+				gzipListed = true;
+			} else if (coding.equals(DEFLATE)) {
+				deflate = accepted;
+				deflateListed = true;
+			} else if (coding.equals("*")) {
+				any = accepted;
+			}
+		}
+		if (gzip || (any && !gzipListed)) {
+			return GZIP;
+		} else if (deflate || (any && !deflateListed)) {
+			return DEFLATE;
+		}
+		return null;
+	}
+
+	/**
+	 * 获取编码项中的q值
+	 *
+	 * @param parts
+	 *            以';'分隔的编码项
+	 * @return q值, 没有指定时为1
+	 */
+	private static float quality(String[] parts) {
+		for (int i = 1; i < parts.length; i++) {
+			String param = parts[i].trim();
+			if (param.startsWith("q=")) {
+				try {
+					return Float.parseFloat(param.substring(2));
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * 压缩数据并写入输出流
+	 *
+	 * @param buffer
+	 *            已经编码的输出内容, 同时提供压缩用的缓冲区
+	 * @param encoding
+	 *            编码名, gzip或deflate
+	 * @param os
+	 *            输出流
+	 * @throws IOException
+	 */
+	static void compress(RenderBuffer buffer, String encoding, OutputStream os) throws IOException {
+		byte[] data = buffer.bytes();
+		int length = buffer.length();
+		boolean gzip = GZIP.equals(encoding);
+		Pool pool = gzip ? GZIP_POOL : DEFLATE_POOL;
+		Deflater deflater = pool.borrow();
+		try {
+			if (gzip) {
+				os.write(GZIP_HEADER);
+			}
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			byte[] chunk = buffer.chunk;
+			while (!deflater.finished()) {
+				int n = deflater.deflate(chunk);
+				os.write(chunk, 0, n);
+			}
+			if (gzip) {
+				CRC32 crc = buffer.crc;
+				crc.update(data, 0, length);
+				writeIntLE(os, (int) crc.getValue());
+				writeIntLE(os, length);
+			}
+		} finally {
+			pool.release(deflater);
+		}
+	}
+
+	/**
+	 * 以小端序写出一个int(gzip文件尾)
+	 */
+	private static void writeIntLE(OutputStream os, int value) throws IOException {
+		os.write(value & 0xff);
+		os.write((value >>> 8) & 0xff);
+		os.write((value >>> 16) & 0xff);
+		os.write((value >>> 24) & 0xff);
+	}
+
+	/**
+	 * Deflater对象池
+	 * <p>
+	 * 使用ConcurrentLinkedQueue, 借出和归还都不加锁; 池为空时新建, 池满时释放归还的对象
+	 *
+	 * @author mura
+	 */
+	private static class Pool {
+
+		/**
+		 * 是否不带zlib头
+		 */
+		private final boolean nowrap;
+
+		/**
+		 * 空闲的Deflater
+		 */
+		private final Queue<Deflater> idle = new ConcurrentLinkedQueue<Deflater>();
+
+		/**
+		 * 空闲的Deflater个数(ConcurrentLinkedQueue.size()需要遍历)
+		 */
+		private final AtomicInteger idleCount = new AtomicInteger();
+
+		public Pool(boolean nowrap) {
+			this.nowrap = nowrap;
+		}
+
+		/**
+		 * 借出一个Deflater
+		 */
+		public Deflater borrow() {
+			Deflater deflater = idle.poll();
+			if (deflater == null) {
+				return new Deflater(LEVEL, nowrap);
+			}
+			idleCount.decrementAndGet();
+			return deflater;
+		}
+
+		/**
+		 * 归还一个Deflater
+		 */
+		public void release(Deflater deflater) {
+			if (idleCount.incrementAndGet() <= POOL_SIZE) {
+				deflater.reset();
+				idle.offer(deflater);
+			} else {
+				idleCount.decrementAndGet();
+				deflater.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package org.mura.servlet;
+
+import org.mura.jfr.FlightEventType;
+
+/**
+ * 请求处理过程的JFR事件类型
+ * <p>
+ * 所有事件默认关闭, 参见FlightEventType; 关闭时BaseServlet中的记录不产生任何开销
+ *
+ * @author mura
+ */
+final class ServletEvents {
+
+	/**
+	 * 整个请求: 从开始处理到写出应答
+	 */
+	static final FlightEventType REQUEST = FlightEventType.define("mura.Request", "Request", "Mura",
+			new String[] { "servlet", "method", "requestBytes", "responseBytes", "encoding", "error" },
+			new Class<?>[] { String.class, String.class, long.class, long.class, String.class, String.class });
+
+	/**
+	 * 创建参数Bean并赋值
+	 */
+	static final FlightEventType BIND = FlightEventType.define("mura.Bind", "Bind Parameters", "Mura",
+			new String[] { "servlet", "requestBytes" }, new Class<?>[] { String.class, long.class });
+
+	/**
+	 * 调用主方法并生成输出JSON对象
+	 */
+	static final FlightEventType SERVICE = FlightEventType.define("mura.Service", "Service", "Mura",
+			new String[] { "servlet", "failed" }, new Class<?>[] { String.class, boolean.class });
+
+	/**
+	 * 生成应答文本并编码为UTF-8
+	 */
+	static final FlightEventType SERIALIZE = FlightEventType.define("mura.Serialize", "Serialize", "Mura",
+			new String[] { "servlet", "chars", "bytes" }, new Class<?>[] { String.class, int.class, int.class });
+
+	private ServletEvents() {
+	}
+}
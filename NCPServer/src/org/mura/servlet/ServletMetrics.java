@@ -0,0 +1,175 @@
+package org.mura.servlet;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个Servlet的请求处理统计
+ * <p>
+ * 分阶段记录请求处理的耗时和(抽样的)内存分配量, 并按异常类型统计错误次数<br>
+ * 每个Servlet持有一个实例, 记录时不需要查找, 也不加锁
+ *
+ * @author mura
+ */
+public final class ServletMetrics {
+
+	/**
+	 * Phase: 请求处理的阶段
+	 *
+	 * @author mura
+	 */
+	public static enum Phase {
+		/**
+		 * 创建参数Bean和JSON格式Bean
+		 */
+		CREATE_BEAN("create_bean"),
+		/**
+		 * 为参数Bean赋值(assignParaBean)
+		 */
+		ASSIGN_PARA("assign_para"),
+		/**
+		 * 主方法(main)
+		 */
+		MAIN("main"),
+		/**
+		 * 使用JSON格式Bean为JSON对象赋值(assignJSONObject)
+		 */
+		ASSIGN_JSON("assign_json"),
+		/**
+		 * 生成, 压缩并写出应答
+		 */
+		WRITE("write");
+
+		/**
+		 * 输出统计时使用的名称
+		 */
+		private final String label;
+
+		private Phase(String label) {
+			this.label = label;
+		}
+
+		public String label() {
+			return label;
+		}
+	}
+
+	/**
+	 * Servlet名称
+	 */
+	private final String name;
+
+	/**
+	 * 各阶段的耗时(纳秒)
+	 */
+	private final LatencyHistogram[] latencies = new LatencyHistogram[Phase.values().length];
+
+	/**
+	 * 各阶段抽样统计的内存分配字节数
+	 */
+	private final LongAdder[] allocatedBytes = new LongAdder[Phase.values().length];
+
+	/**
+	 * 各阶段抽样统计内存分配的次数
+	 */
+	private final LongAdder[] allocationSamples = new LongAdder[Phase.values().length];
+
+	/**
+	 * BeanFieldException(请求参数错误)的次数
+	 */
+	private final LongAdder beanFieldErrors = new LongAdder();
+
+	/**
+	 * 其他异常的次数
+	 */
+	private final LongAdder otherErrors = new LongAdder();
+
+	ServletMetrics(String name) {
+		this.name = name;
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+			allocatedBytes[i] = new LongAdder();
+			allocationSamples[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * 记录一个阶段的耗时
+	 *
+	 * @param phase
+	 *            阶段
+	 * @param nanos
+	 *            耗时(纳秒)
+	 */
+	public void record(Phase phase, long nanos) {
+		latencies[phase.ordinal()].record(nanos);
+	}
+
+	/**
+	 * 记录一个阶段(一次抽样)的内存分配量
+	 *
+	 * @param phase
+	 *            阶段
+	 * @param bytes
+	 *            分配的字节数
+	 */
+	public void recordAllocation(Phase phase, long bytes) {
+		allocatedBytes[phase.ordinal()].add(bytes);
+		allocationSamples[phase.ordinal()].increment();
+	}
+
+	/**
+	 * 记录一次异常
+	 *
+	 * @param e
+	 *            异常
+	 */
+	public void error(Exception e) {
+		if (e instanceof BeanFieldException) {
+			beanFieldErrors.increment();
+		} else {
+			otherErrors.increment();
+		}
+	}
+
+	/**
+	 * Servlet名称
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * 获取一个阶段的耗时直方图
+	 */
+	public LatencyHistogram latency(Phase phase) {
+		return latencies[phase.ordinal()];
+	}
+
+	/**
+	 * 一个阶段抽样统计的内存分配字节数
+	 */
+	public long allocatedBytes(Phase phase) {
+		return allocatedBytes[phase.ordinal()].sum();
+	}
+
+	/**
+	 * 一个阶段抽样统计内存分配的次数
+	 */
+	public long allocationSamples(Phase phase) {
+		return allocationSamples[phase.ordinal()].sum();
+	}
+
+	/**
+	 * BeanFieldException的次数
+	 */
+	public long beanFieldErrors() {
+		return beanFieldErrors.sum();
+	}
+
+	/**
+	 * 其他异常的次数
+	 */
+	public long otherErrors() {
+		return otherErrors.sum();
+	}
+}